@@ -23,14 +23,26 @@ CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package com.artofarc.esb.icap;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
 import com.artofarc.util.KMPInputStream;
-import com.artofarc.util.URLUtils;
 
 /**
  * ICAP implementation for virus scanners.
@@ -39,29 +51,44 @@ import com.artofarc.util.URLUtils;
 public final class ICAP implements Closeable {
     private static final int BUFFER_SIZE = 8 * 1024;
     private static final int STD_RECEIVE_LENGTH = 8192;
-    private static final int STD_SEND_LENGTH = 8192;
-    private static final String VERSION   = "1.0";
-    private static final String USERAGENT = "ESB0 ICAP Client/1.1";
+    static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    static final int DEFAULT_READ_TIMEOUT = 60000;
+    static final String VERSION   = "1.0";
+    static final String USERAGENT = "ESB0 ICAP Client/1.1";
     private static final byte[] EOL = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IEOFTERMINATOR = "0; ieof\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
     private static final KMPInputStream.Pattern ICAPTERMINATOR = new KMPInputStream.Pattern("\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+    private static final KMPInputStream.Pattern EOLPATTERN = new KMPInputStream.Pattern(EOL);
     private static final KMPInputStream.Pattern HTTPTERMINATOR = new KMPInputStream.Pattern("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
 
     private final String serverIP;
     private final int port;
     private final String icapService;
 
+    private final WritableByteChannel channel;
     private final Socket client;
     private final OutputStream out;
     private final KMPInputStream in;
 
-    private final int stdPreviewSize;
+    private ICAPOptions options;
     private final byte[] recvBuffer = new byte[STD_RECEIVE_LENGTH];
-
-    private Map<String,String> responseMap;
+    private final ICAPRequestTemplate template;
+    private final ICAPResponseHeader responseHeader = new ICAPResponseHeader();
+    private byte[] headerBuffer = new byte[1024];
+    private ByteBuffer headerView = ByteBuffer.wrap(headerBuffer);
+    private final byte[] framing = new byte[24];
+    private final ByteBuffer framingView = ByteBuffer.wrap(framing);
+
+    private String ISTag;
     private String responseText;
-    private long optionsExpiration = Long.MAX_VALUE;
     private long lastUse = Long.MAX_VALUE;
     private ScanEngine scanEngine;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private byte[] sendBuffer;
+    private final ICAPMetrics metrics;
+    // state of the current scan for the metrics
+    private long phaseStart, bytesSent, previewLatency = -1L;
+    private boolean inPreview;
 
     static class ScanEngine {
     	public boolean isVirus(int status, Map<String, String> responseMap) {
@@ -85,21 +112,7 @@ public final class ICAP implements Closeable {
      * @param icapService The service to use (fx "avscan").
      */
     public ICAP(String serverIP, int port, String icapService) throws IOException, ICAPException{
-        this.icapService = icapService;
-        this.serverIP = serverIP;
-        this.port = port;
-        //Initialize connection
-        client = new Socket(serverIP, port);
-        client.setKeepAlive(true);
-        client.setSoTimeout(60000);
-
-        //Opening out stream
-        out = new BufferedOutputStream(client.getOutputStream(), BUFFER_SIZE);
-
-        //Opening in stream
-        in = new KMPInputStream(new BufferedInputStream(client.getInputStream()));
-
-        stdPreviewSize = options();
+        this(serverIP, port, icapService, new ICAPRequestTemplate(serverIP, port, icapService), null, null, 0, DEFAULT_READ_TIMEOUT, null, false);
     }
 
     /**
@@ -111,21 +124,103 @@ public final class ICAP implements Closeable {
      * @param previewSize Amount of bytes to  send as preview.
      */
     public ICAP(String s,int p, String icapService, int previewSize) throws IOException{
+        this(s, p, icapService, new ICAPRequestTemplate(s, p, icapService), new ICAPOptions(previewSize), null, 0, DEFAULT_READ_TIMEOUT, null, false);
+    }
+
+    /**
+     * Uses the request template and the options shared by all connections to the server.
+     * @param options If null they are requested from the server.
+     * @param metrics Where to record the statistics of the server, may be null.
+     */
+    ICAP(ICAPConnectionData icapConnectionData, ICAPOptions options, ICAPMetrics metrics) throws IOException, ICAPException{
+        this(icapConnectionData.getICAPRemoteHost(), icapConnectionData.getICAPRemotePort(), icapConnectionData.getICAPRemoteURI(), icapConnectionData.getRequestTemplate(), options, metrics,
+                icapConnectionData.getConnectTimeout(), icapConnectionData.getReadTimeout(), icapConnectionData.isSecure() ? icapConnectionData.getSSLContext() : null, icapConnectionData.isVerifyHostname());
+    }
+
+    /**
+     * @param connectTimeout In milliseconds, 0 means infinite.
+     * @param readTimeout In milliseconds, 0 means infinite.
+     * @param sslContext For ICAPS, null for plain ICAP.
+     */
+    private ICAP(String serverIP, int port, String icapService, ICAPRequestTemplate template, ICAPOptions options, ICAPMetrics metrics, int connectTimeout, int readTimeout,
+            SSLContext sslContext, boolean verifyHostname) throws IOException, ICAPException{
         this.icapService = icapService;
-        serverIP = s;
-        port = p;
-        //Initialize connection
-        client = new Socket(serverIP, port);
-        client.setKeepAlive(true);
-        client.setSoTimeout(60000);
+        this.serverIP = serverIP;
+        this.port = port;
+        this.template = template;
+        this.metrics = metrics;
+        if (sslContext != null) {
+            client = connectSecure(sslContext, verifyHostname, connectTimeout, readTimeout);
+            out = new BufferedOutputStream(client.getOutputStream(), BUFFER_SIZE);
+            //No zero-copy through TLS, the content is encrypted in the buffer anyway
+            channel = Channels.newChannel(out);
+        } else {
+            //Initialize connection, the channel allows for zero-copy transfer of files
+            SocketChannel socketChannel = SocketChannel.open();
+            client = socketChannel.socket();
+            try {
+                client.connect(new InetSocketAddress(serverIP, port), connectTimeout);
+            } catch (IOException e) {
+                socketChannel.close();
+                throw e;
+            }
+            client.setKeepAlive(true);
+            client.setSoTimeout(readTimeout);
+            channel = socketChannel;
 
-        //Opening out stream
-        out = new BufferedOutputStream(client.getOutputStream(), BUFFER_SIZE);
+            //Opening out stream
+            out = new BufferedOutputStream(client.getOutputStream(), BUFFER_SIZE);
+        }
 
         //Opening in stream
         in = new KMPInputStream(new BufferedInputStream(client.getInputStream()));
 
-        stdPreviewSize = previewSize;
+        if (options != null) {
+            setOptions(options);
+        } else {
+            options();
+        }
+    }
+
+    /**
+     * Sessions are cached by the {@link SSLContext} per host and port, so a reconnect usually needs an abbreviated handshake only.
+     */
+    private SSLSocket connectSecure(SSLContext sslContext, boolean verifyHostname, int connectTimeout, int readTimeout) throws IOException{
+        Socket socket = new Socket();
+        SSLSocket sslSocket;
+        try {
+            socket.connect(new InetSocketAddress(serverIP, port), connectTimeout);
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(readTimeout);
+            sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket, serverIP, port, true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        try {
+            if (verifyHostname) {
+                SSLParameters sslParameters = sslSocket.getSSLParameters();
+                sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(sslParameters);
+            }
+            long start = System.nanoTime();
+            long startMillis = System.currentTimeMillis();
+            sslSocket.startHandshake();
+            if (metrics != null) {
+                metrics.recordHandshake(System.nanoTime() - start, isResumed(sslSocket.getSession(), startMillis));
+            }
+        } catch (IOException e) {
+            sslSocket.close();
+            throw e;
+        }
+        return sslSocket;
+    }
+
+    /**
+     * A resumed session keeps the creation time of the full handshake it originates from.
+     */
+    static boolean isResumed(SSLSession session, long handshakeStartMillis) {
+        return session.getCreationTime() < handshakeStartMillis;
     }
 
     public ScanEngine getScanEngine() {
@@ -139,6 +234,16 @@ public final class ICAP implements Closeable {
 		this.scanEngine = scanEngine;
 	}
 
+	/**
+	 * @param chunkSize Maximum size of a chunk when sending the remainder after the preview.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize != this.chunkSize) {
+			this.chunkSize = chunkSize;
+			sendBuffer = null;
+		}
+	}
+
 	/**
      * Given a filepath, it will send the file to the server and return true,
      * if the server accepts the file. Visa-versa, false if the server rejects it.
@@ -146,31 +251,46 @@ public final class ICAP implements Closeable {
      * @return Returns true when no infection is found.
      */
     public boolean scanFile(String filename, InputStream fileInStream) throws IOException,ICAPException{
-        // First part of header
-        String resHeader= "GET /" + URLUtils.encode(filename) + " HTTP/1.1\r\nHost: " + serverIP + ":" + port + "\r\n\r\n";
-        String resBody = resHeader + "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n";
-
-        byte[] buffer = new byte[STD_SEND_LENGTH];
-        int len = fileInStream.read(buffer);
+        int transfer = options.getTransfer(filename);
+        if (transfer == ICAPOptions.TRANSFER_IGNORE) {
+            return ignore();
+        }
+        int stdPreviewSize = options.getPreviewSize();
+        if (sendBuffer == null || sendBuffer.length < stdPreviewSize + chunkSize) {
+            // room for preview plus the first chunk, so a full preview reliably means more is to come
+            sendBuffer = new byte[stdPreviewSize + chunkSize];
+        }
+        byte[] buffer = sendBuffer;
+        int len = readFully(fileInStream, buffer, buffer.length);
         int previewSize = len < stdPreviewSize ? len : stdPreviewSize;
 
-        sendString("RESPMOD icap://"+serverIP+"/"+icapService+" ICAP/"+VERSION+"\r\n"
-            +"Host: "+serverIP+"\r\n"
-            +"User-Agent: "+USERAGENT+"\r\n"
-            +"Allow: 204\r\n"
-            +"Preview: "+previewSize+"\r\n"
-            +"Encapsulated: req-hdr=0, res-hdr=" + resHeader.length() + ", res-body="+resBody.length()+"\r\n"
-            +"\r\n"
-            +resBody
-            +Integer.toHexString(previewSize) +"\r\n", false);
+        if (transfer == ICAPOptions.TRANSFER_COMPLETE) {
+            // no preview, the server wants to see everything anyway
+            beginScan(0, false);
+            out.write(headerBuffer, 0, writeHeader(filename, -1));
+            for (; len > 0; len = readFully(fileInStream, buffer, chunkSize)) {
+                bytesSent += len;
+                out.write(framing, 0, ICAPRequestTemplate.writeChunkSize(framing, 0, len));
+                out.write(buffer, 0, len);
+                out.write(EOL);
+            }
+            out.write(HTTPTERMINATOR.bytes());
+            out.flush();
+            return parseResponse();
+        }
+        beginScan(previewSize, true);
+        out.write(headerBuffer, 0, writeHeader(filename, previewSize));
 
         //Sending preview or, if smaller than previewSize, the whole file.
-        out.write(buffer, 0, previewSize);
-        out.write(EOL);
+        if (previewSize > 0){
+            out.write(buffer, 0, previewSize);
+            out.write(EOL);
+        }
         if (len<=stdPreviewSize){
-            sendString("0; ieof\r\n\r\n", true);
+            out.write(IEOFTERMINATOR);
+            out.flush();
         }
-        else if (previewSize != 0){
+        else {
             out.write(HTTPTERMINATOR.bytes());
             out.flush();
         }
@@ -179,163 +299,423 @@ public final class ICAP implements Closeable {
         // if fileSize<previewSize, then this is actually the response
         // otherwise it is a "go" for the rest of the file.
         if (len>previewSize){
-            responseMap = parseHeaders(parse(ICAPTERMINATOR));
-
-            String tempString = responseMap.get("StatusCode");
-            if (tempString != null){
-                int status = Integer.parseInt(tempString);
-
-                if (getScanEngine().isVirus(status, responseMap) ) {
-                	return false;
-                }
-                if (getScanEngine().isOk(status)) {
-                	return true;
-                }
-                switch (status){
-                    case 100: break; //Continue transfer
-                    case 404: throw new ICAPException("404: ICAP Service not found");
-                    default: throw new ICAPException("Server returned unexpected status code:"+status);
-                }
-            }
-            else {
-                throw new ICAPException("Unexpected or no status code in response header.");
+            Boolean result = parsePreviewResponse();
+            if (result != null) {
+                return result;
             }
-            //Sending remaining part of file
+            //Sending remaining part of file in full chunks
             len -= previewSize;
             do {
-                sendString(Integer.toHexString(len) +"\r\n", false);
+                bytesSent += len;
+                out.write(framing, 0, ICAPRequestTemplate.writeChunkSize(framing, 0, len));
                 out.write(buffer, previewSize, len);
                 out.write(EOL);
                 previewSize = 0;
-            } while ((len = fileInStream.read(buffer)) != -1);
+            } while ((len = readFully(fileInStream, buffer, chunkSize)) > 0);
             //Closing file transfer.
             out.write(HTTPTERMINATOR.bytes());
             out.flush();
         }
+        return parseResponse();
+    }
 
-        responseMap = parseHeaders(parse(ICAPTERMINATOR));
-        responseText = null;
+    /**
+     * Zero-copy variant for content already in memory, e.g. a {@link java.nio.MappedByteBuffer}. The chunked framing
+     * and the content slices are sent with gathering writes. The position of the buffer is not changed.
+     * @return Returns true when no infection is found.
+     */
+    public boolean scanFile(String filename, ByteBuffer content) throws IOException,ICAPException{
+        int transfer = options.getTransfer(filename);
+        if (transfer == ICAPOptions.TRANSFER_IGNORE) {
+            return ignore();
+        }
+        out.flush();
+        ByteBuffer body = content.duplicate();
+        if (transfer == ICAPOptions.TRANSFER_COMPLETE) {
+            beginScan(0, false);
+            writeFully(header(filename, -1));
+            sendChunks(body);
+            return parseResponse();
+        }
+        int length = body.remaining();
+        int stdPreviewSize = options.getPreviewSize();
+        int previewSize = length < stdPreviewSize ? length : stdPreviewSize;
+        ByteBuffer preview = body.duplicate();
+        preview.limit(preview.position() + previewSize);
+        body.position(preview.limit());
+        boolean complete = length <= stdPreviewSize;
+        beginScan(previewSize, true);
+        writeFully(header(filename, previewSize), preview, terminator(previewSize > 0, complete));
+        if (!complete) {
+            Boolean result = parsePreviewResponse();
+            if (result != null) {
+                return result;
+            }
+            sendChunks(body);
+        }
+        return parseResponse();
+    }
 
-        String tempString=responseMap.get("StatusCode");
-        if (tempString != null){
-            int status = Integer.parseInt(tempString);
+    private void sendChunks(ByteBuffer body) throws IOException{
+        boolean next = false;
+        for (int limit = body.limit(); body.hasRemaining(); next = true) {
+            int n = Math.min(body.remaining(), chunkSize);
+            body.limit(body.position() + n);
+            bytesSent += n;
+            writeFully(chunkFraming(next, n), body);
+            body.limit(limit);
+        }
+        writeFully(terminator(next, false));
+    }
 
-            if (getScanEngine().isVirus(status, responseMap) ) {
-            	responseText = getScanEngine().parseResponse(responseMap, parse(HTTPTERMINATOR));
-            	return false;
+    /**
+     * Zero-copy variant for content spooled to disk. The preview is sent with a gathering write, the remainder
+     * is transferred with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+     * Content is taken from the current position of the channel to its end, the position is not changed.
+     * @return Returns true when no infection is found.
+     */
+    public boolean scanFile(String filename, FileChannel fileChannel) throws IOException,ICAPException{
+        int transfer = options.getTransfer(filename);
+        if (transfer == ICAPOptions.TRANSFER_IGNORE) {
+            return ignore();
+        }
+        long position = fileChannel.position();
+        long length = fileChannel.size() - position;
+        if (transfer == ICAPOptions.TRANSFER_COMPLETE) {
+            out.flush();
+            beginScan(0, false);
+            writeFully(header(filename, -1));
+            sendChunks(fileChannel, position, length);
+            return parseResponse();
+        }
+        int stdPreviewSize = options.getPreviewSize();
+        int previewSize = length < stdPreviewSize ? (int) length : stdPreviewSize;
+        ByteBuffer preview = ByteBuffer.allocate(previewSize);
+        while (preview.hasRemaining()) {
+            if (fileChannel.read(preview, position + preview.position()) < 0) {
+                throw new EOFException("File truncated while scanning");
             }
-            if (getScanEngine().isOk(status)) {
-            	return true;
+        }
+        preview.flip();
+        position += previewSize;
+        long remaining = length - previewSize;
+        return remaining == 0 ? scanFile(filename, preview) : scanFile(filename, preview, fileChannel, position, remaining);
+    }
+
+    private boolean scanFile(String filename, ByteBuffer preview, FileChannel fileChannel, long position, long remaining) throws IOException,ICAPException{
+        out.flush();
+        int previewSize = preview.remaining();
+        beginScan(previewSize, true);
+        writeFully(header(filename, previewSize), preview, terminator(previewSize > 0, false));
+        Boolean result = parsePreviewResponse();
+        if (result != null) {
+            return result;
+        }
+        sendChunks(fileChannel, position, remaining);
+        return parseResponse();
+    }
+
+    private void sendChunks(FileChannel fileChannel, long position, long remaining) throws IOException{
+        boolean next = false;
+        for (; remaining > 0; next = true) {
+            long n = Math.min(remaining, chunkSize);
+            writeFully(chunkFraming(next, n));
+            for (long sent = 0; sent < n;) {
+                sent += fileChannel.transferTo(position + sent, n - sent, channel);
             }
+            position += n;
+            remaining -= n;
+            bytesSent += n;
         }
-        throw new ICAPException("Unexpected or no status code in response header.");
+        writeFully(terminator(next, false));
     }
 
     /**
-     * Asks for the servers available options.
-     * @return Preview size.
+     * The server announced in Transfer-Ignore not to scan files of this type, so they are not sent at all.
      */
-    private int options() throws IOException, ICAPException{
-        //Send OPTIONS header and receive response
-    	sendString("OPTIONS icap://"+serverIP+"/"+icapService+" ICAP/"+VERSION+"\r\n"
-                + "Host: "+serverIP+"\r\n"
-                + "User-Agent: "+USERAGENT+"\r\n"
-                + "Encapsulated: null-body=0\r\n"
-                + "\r\n", true);
+    private boolean ignore() {
+        responseText = null;
+        return true;
+    }
 
-        responseMap = parseHeaders(parse(ICAPTERMINATOR));
+    /**
+     * @see #scanFile(String, FileChannel)
+     */
+    public boolean scanFile(Path path) throws IOException,ICAPException{
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return scanFile(path.getFileName().toString(), fileChannel);
+        }
+    }
 
-        if (responseMap.get("StatusCode") != null){
-            int status = Integer.parseInt(responseMap.get("StatusCode"));
+    /**
+     * Writes the RESPMOD header from the template into the reusable header buffer.
+     * @return The length.
+     */
+    private int writeHeader(String filename, int previewSize) {
+        int max = template.maxRespmodLength(filename);
+        if (headerBuffer.length < max) {
+            headerBuffer = new byte[max];
+            headerView = ByteBuffer.wrap(headerBuffer);
+        }
+        return template.writeRespmod(headerBuffer, 0, filename, previewSize);
+    }
+
+    private ByteBuffer header(String filename, int previewSize) {
+        int len = writeHeader(filename, previewSize);
+        headerView.clear();
+        headerView.limit(len);
+        return headerView;
+    }
+
+    /**
+     * @param next Whether a chunk precedes, which then has to be closed.
+     */
+    private ByteBuffer chunkFraming(boolean next, long size) {
+        int pos = 0;
+        if (next) {
+            framing[pos++] = '\r';
+            framing[pos++] = '\n';
+        }
+        framingView.clear();
+        framingView.limit(ICAPRequestTemplate.writeChunkSize(framing, pos, size));
+        return framingView;
+    }
+
+    private ByteBuffer terminator(boolean next, boolean ieof) {
+        byte[] terminator = ieof ? IEOFTERMINATOR : HTTPTERMINATOR.bytes();
+        int pos = 0;
+        if (next) {
+            framing[pos++] = '\r';
+            framing[pos++] = '\n';
+        }
+        System.arraycopy(terminator, 0, framing, pos, terminator.length);
+        framingView.clear();
+        framingView.limit(pos + terminator.length);
+        return framingView;
+    }
+
+    /**
+     * @return The verdict or null if the server wants the rest of the file.
+     */
+    private Boolean parsePreviewResponse() throws IOException, ICAPException{
+        parseHeader();
+        endPhase();
+        responseText = null;
+        {
+            int status = responseHeader.getStatus();
 
+            if (getScanEngine().isVirus(status, responseHeader) ) {
+            	return verdict(virus(), true);
+            }
+            if (getScanEngine().isOk(status)) {
+            	skipEncapsulated();
+            	return verdict(true, true);
+            }
             switch (status){
-                case 200:
-                    String tempString = responseMap.get("Options-TTL");
-                    if (tempString != null) {
-                        optionsExpiration = System.nanoTime() + TimeUnit.SECONDS.toNanos(Integer.parseInt(tempString));
-                    }
-                    tempString = responseMap.get("Preview");
-                    if (tempString != null){
-                        return Integer.parseInt(tempString);
-                    }
-                default: throw new ICAPException("Could not get preview size from server");
+                case 100: return null; //Continue transfer
+                case 404: throw new ICAPException("404: ICAP Service not found");
+                default: throw new ICAPException("Server returned unexpected status code:"+status);
             }
         }
-        else{
-            throw new ICAPException("Could not get options from server");
+    }
+
+    private boolean parseResponse() throws IOException, ICAPException{
+        parseHeader();
+        endPhase();
+        responseText = null;
+
+        int status = responseHeader.getStatus();
+        if (getScanEngine().isVirus(status, responseHeader) ) {
+            return verdict(virus(), false);
+        }
+        if (getScanEngine().isOk(status)) {
+            skipEncapsulated();
+            return verdict(true, false);
         }
+        throw new ICAPException("Server returned unexpected status code:"+status);
     }
 
     /**
-     * Receive a chunk of ICAP data as a response to a request. The returned string can be parsed with {@link #parseHeaders} if it contains headers.
-     * @return String of the raw response including terminator
+     * @param preview Whether the first response answers the preview.
      */
-    private String parse(KMPInputStream.Pattern terminator) throws IOException, ICAPException{
-        in.setPattern(terminator);
-        int pos = in.read(recvBuffer);
-        lastUse = System.nanoTime();
-        if (in.indexOf() < 0) {
-            throw new ICAPException("Terminator not found");
+    private void beginScan(long previewSize, boolean preview) {
+        bytesSent = previewSize;
+        inPreview = preview;
+        previewLatency = -1L;
+        phaseStart = System.nanoTime();
+    }
+
+    /**
+     * Records the latency of the preview or the body phase, the time until the next response was received.
+     */
+    private void endPhase() {
+        long now = System.nanoTime();
+        if (inPreview) {
+            previewLatency = now - phaseStart;
+        }
+        if (metrics != null) {
+            if (inPreview) {
+                metrics.recordPreviewLatency(now - phaseStart);
+            } else {
+                metrics.recordBodyLatency(now - phaseStart);
+            }
+        }
+        phaseStart = now;
+        inPreview = false;
+    }
+
+    private boolean verdict(boolean clean, boolean previewOnly) {
+        if (metrics != null) {
+            metrics.recordScan(bytesSent, clean, previewOnly);
         }
-        return new String(recvBuffer,0,pos, StandardCharsets.UTF_8);
+        return clean;
+    }
+
+    private boolean virus() throws IOException, ICAPException{
+        String response;
+        if (responseHeader.hasEncapsulatedBody()) {
+            response = new String(recvBuffer, 0, parse(HTTPTERMINATOR), StandardCharsets.UTF_8);
+        } else {
+            // with null-body only the encapsulated header follows, it must be consumed anyway
+            int offset = responseHeader.getEncapsulatedBodyOffset();
+            int len = Math.min(offset, recvBuffer.length);
+            in.setPattern(null);
+            if (readFully(in, recvBuffer, len) < len) {
+                throw new EOFException("Connection closed by ICAP server");
+            }
+            skipFully(offset - len);
+            response = new String(recvBuffer, 0, len, StandardCharsets.UTF_8);
+        }
+        responseText = getScanEngine().parseResponse(responseHeader, response);
+        return false;
     }
 
     /**
-     * Given a raw response header as a String, it will parse through it and return a HashMap of the result
-     * @param response A raw response header as a String.
-     * @return HashMap of the key,value pairs of the response
+     * Skips an encapsulated body, e.g. the unmodified content echoed by a server which does not answer 204 outside of
+     * the preview. Only the chunk size lines are parsed, the chunk data is skipped in bulk.
      */
-    private Map<String,String> parseHeaders(String response){
-        Map<String,String> headers = new HashMap<>();
-
-        /****SAMPLE:****
-         * ICAP/1.0 204 Unmodified
-         * Server: C-ICAP/0.1.6
-         * Connection: keep-alive
-         * ISTag: CI0001-000-0978-6918203
-         */
-        // The status code is located between the first 2 whitespaces.
-        // Read status code
-        int x = response.indexOf(" ",0);
-        int y = response.indexOf(" ",x+1);
-        String statusCode = response.substring(x+1,y);
-        headers.put("StatusCode", statusCode);
-
-        // Each line in the sample is ended with "\r\n".
-        // When (i+2==response.length()) The end of the header have been reached.
-        // The +=2 is added to skip the "\r\n".
-        // Read headers
-        int i = response.indexOf("\r\n",y), j;
-        i+=2;
-        while (i+2<response.length() && (j = response.indexOf(':',i)) > 0) {
-
-            String key = response.substring(i, j);
-            j += 2;
-            i = response.indexOf("\r\n",j);
-            String value = response.substring(j, i);
-            i+=2;
-            while (i+2<response.length() && Character.isWhitespace(response.charAt(i))) {
-            	// folded header (e.g. X-Violations-Found)
-            	j = response.indexOf("\r\n",i);
-            	value += response.substring(i, j);
-            	i=j+2;
+    private void skipEncapsulated() throws IOException, ICAPException{
+        in.setPattern(null);
+        // an encapsulated header precedes null-body as well
+        skipFully(responseHeader.getEncapsulatedBodyOffset());
+        if (!responseHeader.hasEncapsulatedBody()) {
+            return;
+        }
+        for (;;) {
+            int len = parse(EOLPATTERN);
+            long size = ICAPResponseHeader.parseChunkSize(recvBuffer, 0, len - EOL.length);
+            if (size == 0) {
+                break;
             }
-            headers.put(key, value);
+            in.setPattern(null);
+            skipFully(size + EOL.length);
         }
+        // trailer ends with an empty line
+        while (parse(EOLPATTERN) > EOL.length);
+    }
 
-        return headers;
+    private void skipFully(long n) throws IOException{
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Connection closed by ICAP server");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
     }
 
     /**
-     * Sends a String through the socket connection. Used for sending ICAP/HTTP headers.
+     * Unlike {@link InputStream#read(byte[])} fills the buffer unless end of stream is reached.
+     * @return Number of bytes read, 0 at end of stream.
      */
-    private void sendString(String requestHeader, boolean withFlush) throws IOException{
-        out.write(requestHeader.getBytes(StandardCharsets.UTF_8));
-        if (withFlush) {
+    private static int readFully(InputStream inputStream, byte[] buffer, int length) throws IOException{
+        int pos = 0;
+        for (int len; pos < length && (len = inputStream.read(buffer, pos, length - pos)) >= 0;) {
+            pos += len;
+        }
+        return pos;
+    }
+
+    private void writeFully(ByteBuffer... buffers) throws IOException{
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gatheringByteChannel = (GatheringByteChannel) channel;
+            while (buffers[buffers.length - 1].hasRemaining()) {
+                gatheringByteChannel.write(buffers);
+            }
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
             out.flush();
         }
     }
 
+    /**
+     * Asks for the servers available options. They are used by this connection afterwards.
+     * @return The options.
+     */
+    ICAPOptions options() throws IOException, ICAPException{
+        //Send OPTIONS header and receive response
+        long start = System.nanoTime();
+        out.write(template.getOptions());
+        out.flush();
+
+        parseHeader();
+        if (metrics != null) {
+            metrics.recordOptionsLatency(System.nanoTime() - start);
+        }
+        setOptions(ICAPOptions.parse(responseHeader));
+        skipEncapsulated();
+        return options;
+    }
+
+    /**
+     * Use options shared with other connections to the same server.
+     */
+    void setOptions(ICAPOptions options) {
+        if (options == this.options) {
+            return;
+        }
+        this.options = options;
+        if (options.getISTag() != null) {
+            ISTag = options.getISTag();
+        }
+    }
+
+    ICAPOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Receive a chunk of ICAP data as a response to a request into {@link #recvBuffer}.
+     * @return Length of the raw response including terminator
+     */
+    private int parse(KMPInputStream.Pattern terminator) throws IOException, ICAPException{
+        in.setPattern(terminator);
+        int pos = in.read(recvBuffer);
+        lastUse = System.nanoTime();
+        if (in.indexOf() < 0) {
+            throw new ICAPException("Terminator not found");
+        }
+        return pos;
+    }
+
+    /**
+     * Receive and parse a response header into the reusable {@link #responseHeader}.
+     */
+    private void parseHeader() throws IOException, ICAPException{
+        responseHeader.parse(recvBuffer, 0, parse(ICAPTERMINATOR));
+        String tag = responseHeader.getISTag();
+        if (tag != null) {
+            ISTag = tag;
+        }
+    }
+
     @Override
     public void close() throws IOException {
         client.close();
@@ -345,11 +725,17 @@ public final class ICAP implements Closeable {
 	 * @return The ISTag which refers to a unique version of scan engine and signature files. Length is 32 chars.
 	 */
 	public String getISTag() throws ICAPException, IOException {
-		if (responseMap == null || System.nanoTime() > optionsExpiration) {
+		if (ISTag == null || options.isExpired(System.nanoTime())) {
 			options();
 		}
-		String ISTag = responseMap.get("ISTag");
-		return ISTag.substring(1, ISTag.length() - 1);
+		return ISTag;
+	}
+
+	/**
+	 * @return The latency of the preview phase of the last scan in nanoseconds or -1 if it had no preview.
+	 */
+	long getPreviewLatency() {
+		return previewLatency;
 	}
 
 	/**
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.icap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive limit of concurrent scans to one server (AIMD). The recent latency is compared with the long term latency,
+ * both being moving averages. The latency is that of the preview phase, whose size is bounded by the preview size, so
+ * that the mix of small and large files does not matter. While the server keeps up
+ * the limit grows by one per round trip. When the recent latency exceeds the long term latency by the tolerance or a
+ * scan fails, the limit is decreased by a factor. Thus a slowing server gets less load before the socket timeouts hit,
+ * and the surplus requests wait in a bounded queue or overflow.
+ */
+public final class ICAPConcurrencyLimiter {
+
+	private static final double TOLERANCE = 2.0, BACKOFF = 0.9, FAILURE_BACKOFF = 0.5;
+	// smoothing of the recent and the long term latency, a permanent change is accepted eventually
+	private static final double SHORT_ALPHA = 1.0 / 4, LONG_ALPHA = 1.0 / 64;
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _available = _lock.newCondition();
+	private final int _maxLimit, _maxQueue;
+	private double _limit;
+	private int _inFlight, _queued;
+	private double _shortLatency, _longLatency;
+
+	/**
+	 * @param maxLimit Upper bound of the limit, usually the maximum number of connections.
+	 * @param maxQueue Maximum number of callers waiting in {@link #acquire(long)}.
+	 */
+	public ICAPConcurrencyLimiter(int maxLimit, int maxQueue) {
+		_maxLimit = Math.max(1, maxLimit);
+		_maxQueue = maxQueue;
+		_limit = Math.min(_maxLimit, 4);
+	}
+
+	/**
+	 * @return Whether a scan may start now. If so {@link #release(long)} or {@link #cancel()} must follow.
+	 */
+	public boolean tryAcquire() {
+		_lock.lock();
+		try {
+			if (_inFlight < (int) _limit) {
+				++_inFlight;
+				return true;
+			}
+			return false;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the limit allows another scan.
+	 * @param timeout In milliseconds.
+	 * @return false if the queue is full or the timeout elapsed.
+	 */
+	public boolean acquire(long timeout) throws InterruptedException {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		_lock.lock();
+		try {
+			if (_inFlight < (int) _limit) {
+				++_inFlight;
+				return true;
+			}
+			if (_queued >= _maxQueue) {
+				return false;
+			}
+			++_queued;
+			try {
+				while (_inFlight >= (int) _limit) {
+					if (nanos <= 0L) {
+						return false;
+					}
+					nanos = _available.awaitNanos(nanos);
+				}
+				++_inFlight;
+				return true;
+			} finally {
+				--_queued;
+			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Pass regardless of the limit, for callers which must not wait. The scan is still taken into account.
+	 */
+	public void forceAcquire() {
+		_lock.lock();
+		try {
+			++_inFlight;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * A scan finished successfully.
+	 * @param latency Of the preview phase in nanoseconds, -1 if the scan had no preview, which then only counts for growth.
+	 */
+	public void release(long latency) {
+		_lock.lock();
+		try {
+			--_inFlight;
+			if (latency < 0L) {
+				// no sample
+			} else if (_longLatency == 0.0) {
+				_shortLatency = _longLatency = latency;
+			} else {
+				_shortLatency += (latency - _shortLatency) * SHORT_ALPHA;
+				_longLatency += (latency - _longLatency) * LONG_ALPHA;
+			}
+			if (latency >= 0L && _shortLatency > _longLatency * TOLERANCE) {
+				_limit = Math.max(1.0, _limit * BACKOFF);
+			} else if (_inFlight + 1 >= (int) _limit) {
+				// only grow if the limit was actually reached
+				_limit = Math.min(_maxLimit, _limit + 1.0 / _limit);
+			}
+			_available.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * A scan failed, e.g. with a timeout.
+	 */
+	public void drop() {
+		_lock.lock();
+		try {
+			--_inFlight;
+			_limit = Math.max(1.0, _limit * FAILURE_BACKOFF);
+			_available.signal();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * A scan did not take place, the limit is not adapted.
+	 */
+	public void cancel() {
+		_lock.lock();
+		try {
+			--_inFlight;
+			_available.signal();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	public int getLimit() {
+		_lock.lock();
+		try {
+			return (int) _limit;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	public int getInFlight() {
+		_lock.lock();
+		try {
+			return _inFlight;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	public int getQueued() {
+		_lock.lock();
+		try {
+			return _queued;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+}
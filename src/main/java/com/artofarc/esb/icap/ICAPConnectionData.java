@@ -15,18 +15,90 @@
  */
 package com.artofarc.esb.icap;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * ICAPRemoteHost may be prefixed with icaps:// (or ICAPSecure=true) to talk TLS, the port then defaults to 11344.
+ * All connections with the same trust and key store share one {@link SSLContext} and thus its client session cache,
+ * so reconnects to a server resume the TLS session instead of doing a full handshake.
+ */
 public final class ICAPConnectionData {
 
+	private static final ConcurrentHashMap<String, SSLContext> SSL_CONTEXTS = new ConcurrentHashMap<>();
+
+	private final boolean _secure;
 	private final String _ICAPRemoteHost;
 	private final int _ICAPRemotePort;
 	private final String _ICAPRemoteURI;
+	// settings, not part of the identity
+	private final int _minConnections, _maxConnections;
+	private final long _maxWait;
+	private final Integer _maxIdleTime;
+	private final int _cacheSize, _chunkSize;
+	private final int _connectTimeout, _readTimeout;
+	private final int _maxQueue;
+	private final String _cacheFile;
+	private final ICAPRequestTemplate _requestTemplate;
+	private final String _trustStore, _trustStorePassword, _trustStoreType;
+	private final String _keyStore, _keyStorePassword, _keyStoreType;
+	private final boolean _verifyHostname;
 
 	public ICAPConnectionData(String iCAPRemoteHost, String iCAPRemotePort, String iCAPRemoteURI) {
-		_ICAPRemoteHost = Objects.requireNonNull(iCAPRemoteHost, "ICAPRemoteHost");
-		_ICAPRemotePort = iCAPRemotePort != null ? Integer.parseInt(iCAPRemotePort) : 1344;
+		this(iCAPRemoteHost, iCAPRemotePort, iCAPRemoteURI, new Properties());
+	}
+
+	public ICAPConnectionData(String iCAPRemoteHost, String iCAPRemotePort, String iCAPRemoteURI, Properties properties) {
+		Objects.requireNonNull(iCAPRemoteHost, "ICAPRemoteHost");
+		if (iCAPRemoteHost.startsWith("icaps://")) {
+			_secure = true;
+			_ICAPRemoteHost = iCAPRemoteHost.substring(8);
+		} else if (iCAPRemoteHost.startsWith("icap://")) {
+			_secure = false;
+			_ICAPRemoteHost = iCAPRemoteHost.substring(7);
+		} else {
+			_secure = Boolean.parseBoolean(properties.getProperty("ICAPSecure"));
+			_ICAPRemoteHost = iCAPRemoteHost;
+		}
+		_ICAPRemotePort = iCAPRemotePort != null ? Integer.parseInt(iCAPRemotePort) : _secure ? 11344 : 1344;
 		_ICAPRemoteURI = Objects.requireNonNull(iCAPRemoteURI, "ICAPRemoteURI");
+		_minConnections = Integer.parseInt(properties.getProperty("ICAPMinConnections", "0"));
+		_maxConnections = Integer.parseInt(properties.getProperty("ICAPMaxConnections", "8"));
+		if (_minConnections > _maxConnections) {
+			throw new IllegalArgumentException("ICAPMinConnections must not exceed ICAPMaxConnections");
+		}
+		_maxWait = Long.parseLong(properties.getProperty("ICAPMaxWait", "10000"));
+		String iCAPMaxIdleTime = properties.getProperty("ICAPMaxIdleTime");
+		_maxIdleTime = iCAPMaxIdleTime != null ? Integer.valueOf(iCAPMaxIdleTime) : null;
+		_cacheSize = Integer.parseInt(properties.getProperty("ICAPCacheSize", "0"));
+		_cacheFile = properties.getProperty("ICAPCacheFile");
+		_chunkSize = Integer.parseInt(properties.getProperty("ICAPChunkSize", String.valueOf(ICAP.DEFAULT_CHUNK_SIZE)));
+		_connectTimeout = Integer.parseInt(properties.getProperty("ICAPConnectTimeout", "10000"));
+		_readTimeout = Integer.parseInt(properties.getProperty("ICAPReadTimeout", "60000"));
+		_maxQueue = Integer.parseInt(properties.getProperty("ICAPMaxQueue", "64"));
+		_requestTemplate = new ICAPRequestTemplate(_ICAPRemoteHost, _ICAPRemotePort, _ICAPRemoteURI);
+		_trustStore = properties.getProperty("ICAPTrustStore");
+		_trustStorePassword = properties.getProperty("ICAPTrustStorePassword");
+		_trustStoreType = properties.getProperty("ICAPTrustStoreType", KeyStore.getDefaultType());
+		_keyStore = properties.getProperty("ICAPKeyStore");
+		_keyStorePassword = properties.getProperty("ICAPKeyStorePassword");
+		_keyStoreType = properties.getProperty("ICAPKeyStoreType", KeyStore.getDefaultType());
+		_verifyHostname = Boolean.parseBoolean(properties.getProperty("ICAPVerifyHostname", "true"));
+	}
+
+	public boolean isSecure() {
+		return _secure;
 	}
 
 	public String getICAPRemoteHost() {
@@ -41,9 +113,129 @@ public final class ICAPConnectionData {
 		return _ICAPRemoteURI;
 	}
 
+	/**
+	 * @return Number of connections to be kept open (pre-warmed) at all times.
+	 */
+	public int getMinConnections() {
+		return _minConnections;
+	}
+
+	public int getMaxConnections() {
+		return _maxConnections;
+	}
+
+	/**
+	 * @return Milliseconds to wait for a connection when all are in use.
+	 */
+	public long getMaxWait() {
+		return _maxWait;
+	}
+
+	/**
+	 * @return Seconds an idle connection is kept open or null if unlimited.
+	 */
+	public Integer getMaxIdleTime() {
+		return _maxIdleTime;
+	}
+
+	/**
+	 * @return Maximum number of cached verdicts, 0 disables the cache.
+	 */
+	public int getCacheSize() {
+		return _cacheSize;
+	}
+
+	/**
+	 * @return File to persist the cached verdicts or null.
+	 */
+	public String getCacheFile() {
+		return _cacheFile;
+	}
+
+	/**
+	 * @return Maximum size of a chunk sent after the preview.
+	 */
+	public int getChunkSize() {
+		return _chunkSize;
+	}
+
+	/**
+	 * @return Milliseconds to wait for a connection to be established.
+	 */
+	public int getConnectTimeout() {
+		return _connectTimeout;
+	}
+
+	/**
+	 * @return Milliseconds to wait for a response from the server.
+	 */
+	public int getReadTimeout() {
+		return _readTimeout;
+	}
+
+	/**
+	 * @return Maximum number of scans waiting when the concurrency limit is reached.
+	 */
+	public int getMaxQueue() {
+		return _maxQueue;
+	}
+
+	/**
+	 * @return Whether the server certificate must match the host name.
+	 */
+	public boolean isVerifyHostname() {
+		return _verifyHostname;
+	}
+
+	ICAPRequestTemplate getRequestTemplate() {
+		return _requestTemplate;
+	}
+
+	/**
+	 * @return The context shared by all servers with the same trust and key store, the JVM default if none is configured.
+	 */
+	SSLContext getSSLContext() throws IOException {
+		try {
+			if (_trustStore == null && _keyStore == null) {
+				return SSLContext.getDefault();
+			}
+			String key = _trustStore + '|' + _trustStoreType + '|' + _keyStore + '|' + _keyStoreType;
+			SSLContext sslContext = SSL_CONTEXTS.get(key);
+			if (sslContext == null) {
+				sslContext = SSLContext.getInstance("TLS");
+				TrustManagerFactory tmf = null;
+				if (_trustStore != null) {
+					tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+					tmf.init(loadKeyStore(_trustStore, _trustStoreType, _trustStorePassword));
+				}
+				KeyManagerFactory kmf = null;
+				if (_keyStore != null) {
+					kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+					kmf.init(loadKeyStore(_keyStore, _keyStoreType, _keyStorePassword), _keyStorePassword != null ? _keyStorePassword.toCharArray() : null);
+				}
+				sslContext.init(kmf != null ? kmf.getKeyManagers() : null, tmf != null ? tmf.getTrustManagers() : null, null);
+				SSLContext old = SSL_CONTEXTS.putIfAbsent(key, sslContext);
+				if (old != null) {
+					sslContext = old;
+				}
+			}
+			return sslContext;
+		} catch (GeneralSecurityException e) {
+			throw new SSLException("Cannot create SSLContext for " + this, e);
+		}
+	}
+
+	private static KeyStore loadKeyStore(String file, String type, String password) throws IOException, GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance(type);
+		try (InputStream is = new FileInputStream(file)) {
+			keyStore.load(is, password != null ? password.toCharArray() : null);
+		}
+		return keyStore;
+	}
+
 	@Override
 	public String toString() {
-		return "icap://" + _ICAPRemoteHost + ":" + _ICAPRemotePort + "/" + _ICAPRemoteURI;
+		return (_secure ? "icaps://" : "icap://") + _ICAPRemoteHost + ":" + _ICAPRemotePort + "/" + _ICAPRemoteURI;
 	}
 
 	@Override
@@ -60,4 +252,17 @@ public final class ICAPConnectionData {
 		return false;
 	}
 
+	/**
+	 * Servers are identified by their URL only, so all users of a server share the pool created with the settings of the
+	 * first one.
+	 * @return Whether the other data would create the same pool.
+	 */
+	boolean hasSameSettings(ICAPConnectionData other) {
+		return _minConnections == other._minConnections && _maxConnections == other._maxConnections && _maxWait == other._maxWait
+				&& Objects.equals(_maxIdleTime, other._maxIdleTime) && _cacheSize == other._cacheSize && Objects.equals(_cacheFile, other._cacheFile)
+				&& _chunkSize == other._chunkSize && _connectTimeout == other._connectTimeout && _readTimeout == other._readTimeout
+				&& _maxQueue == other._maxQueue && Objects.equals(_trustStore, other._trustStore) && Objects.equals(_trustStoreType, other._trustStoreType)
+				&& Objects.equals(_keyStore, other._keyStore) && Objects.equals(_keyStoreType, other._keyStoreType) && _verifyHostname == other._verifyHostname;
+	}
+
 }
@@ -15,17 +15,55 @@
  */
 package com.artofarc.esb.icap;
 
-import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import com.artofarc.esb.resource.ResourceFactory;
 
-public class ICAPConnectionFactory extends ResourceFactory<ICAP, ICAPConnectionData, ICAP.ScanEngine, IOException> {
+/**
+ * Shared by all worker threads, so it must be obtained from the GlobalContext.
+ * The {@link ICAPMetricsMXBean} of each server is registered at the platform MBeanServer.
+ */
+public class ICAPConnectionFactory extends ResourceFactory<ICAPConnectionPool, ICAPConnectionData, Void, RuntimeException> {
+
+	private final ScheduledExecutorService _scheduledExecutorService = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread thread = new Thread(r, "ICAPConnectionPool-Maintenance");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final MBeanServer _mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+	@Override
+	protected ICAPConnectionPool createResource(ICAPConnectionData data, Void param) {
+		ICAPConnectionPool pool = new ICAPConnectionPool(data, _scheduledExecutorService);
+		try {
+			_mbeanServer.registerMBean(pool.getMetrics(), getObjectName(data));
+		} catch (JMException e) {
+			// metrics are not essential, e.g. another deployment uses the same server
+		}
+		return pool;
+	}
+
+	private static ObjectName getObjectName(ICAPConnectionData data) throws JMException {
+		return new ObjectName("com.artofarc.esb.icap:type=ICAPMetrics,name=" + ObjectName.quote(data.toString()));
+	}
 
 	@Override
-	protected ICAP createResource(ICAPConnectionData data, ICAP.ScanEngine scanEngine) throws IOException {
-		ICAP icap = new ICAP(data.getICAPRemoteHost(), data.getICAPRemotePort(), data.getICAPRemoteURI());
-		icap.setScanEngine(scanEngine);
-		return icap;
+	public void close() {
+		for (ICAPConnectionPool pool : getResources()) {
+			try {
+				_mbeanServer.unregisterMBean(getObjectName(pool.getICAPConnectionData()));
+			} catch (JMException e) {
+				// was not registered
+			}
+		}
+		super.close();
+		_scheduledExecutorService.shutdownNow();
 	}
 
 }
@@ -0,0 +1,473 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.icap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of {@link ICAP} connections to one server. Idle connections are reused LIFO, so surplus connections
+ * become idle long enough to be evicted in the background. Eviction and pre-warming never run on the request path.
+ */
+public final class ICAPConnectionPool implements AutoCloseable {
+
+	private static final long MAINTENANCE_INTERVAL = 60L;
+	private static final long OPTIONS_RETRY_DELAY = TimeUnit.SECONDS.toNanos(1L);
+
+	private final ICAPConnectionData _icapConnectionData;
+	private final ScheduledExecutorService _scheduledExecutorService;
+	// bounds the connections in use, open connections of the ICAPMultiplexer of the server hold a permit, too
+	private final ResizableSemaphore _permits;
+	// notified when a permit is released or a borrower has to wait
+	private volatile Runnable _permitListener;
+	// configured maximum, lowered to Max-Connections if announced by the server
+	private int _maxConnections;
+	private final LinkedBlockingDeque<ICAP> _idle = new LinkedBlockingDeque<>();
+	private final ScheduledFuture<?> _maintenance;
+	private final ScanResultCache _scanResultCache;
+	private volatile boolean _closed;
+	// health of the server as seen by the ICAPLoadBalancer
+	private final AtomicInteger _inFlight = new AtomicInteger();
+	private final AtomicLong _latency = new AtomicLong();
+	private volatile long _quarantinedUntil;
+	private volatile String _ISTag;
+	// OPTIONS snapshot shared by all connections, refreshed in the background before it expires
+	private volatile ICAPOptions _options;
+	private ScheduledFuture<?> _refresh;
+	private final ICAPMetrics _metrics = new ICAPMetrics(this);
+	private final ICAPConcurrencyLimiter _limiter;
+	// scans in flight by ISTag and digest of the content
+	private final ConcurrentHashMap<String, CompletableFuture<ScanResult>> _scansInFlight = new ConcurrentHashMap<>();
+
+	public ICAPConnectionPool(ICAPConnectionData icapConnectionData, ScheduledExecutorService scheduledExecutorService) {
+		_icapConnectionData = icapConnectionData;
+		_scheduledExecutorService = scheduledExecutorService;
+		_maxConnections = icapConnectionData.getMaxConnections();
+		_permits = new ResizableSemaphore(_maxConnections);
+		_limiter = new ICAPConcurrencyLimiter(_maxConnections, icapConnectionData.getMaxQueue());
+		if (icapConnectionData.getCacheSize() > 0) {
+			String cacheFile = icapConnectionData.getCacheFile();
+			_scanResultCache = new ScanResultCache(icapConnectionData.getCacheSize(), cacheFile != null ? new File(cacheFile) : null);
+		} else {
+			_scanResultCache = null;
+		}
+		Integer maxIdleTime = icapConnectionData.getMaxIdleTime();
+		long interval = maxIdleTime != null ? Math.max(1L, Math.min(maxIdleTime / 2, MAINTENANCE_INTERVAL)) : MAINTENANCE_INTERVAL;
+		_maintenance = scheduledExecutorService.scheduleWithFixedDelay(this::maintain, 0L, interval, TimeUnit.SECONDS);
+	}
+
+	private ICAP createConnection() throws IOException {
+		ICAPOptions options = _options;
+		if (options != null && options.isExpired(System.nanoTime())) {
+			// background refresh failed
+			options = null;
+		}
+		ICAP icap = new ICAP(_icapConnectionData, options, _metrics);
+		_metrics.recordReconnect();
+		icap.setChunkSize(_icapConnectionData.getChunkSize());
+		if (options == null) {
+			updateOptions(icap.getOptions());
+		}
+		return icap;
+	}
+
+	private boolean isExpired(ICAP icap) {
+		Integer maxIdleTime = _icapConnectionData.getMaxIdleTime();
+		return maxIdleTime != null && icap.getIdleTime() > maxIdleTime;
+	}
+
+	private static void closeQuietly(ICAP icap) {
+		try {
+			icap.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Borrow a connection. It must be given back with either {@link #release(ICAP)} or {@link #invalidate(ICAP)}.
+	 */
+	public ICAP borrow(ICAP.ScanEngine scanEngine) throws IOException {
+		if (_closed) {
+			throw new ICAPException("Pool is closed: " + _icapConnectionData);
+		}
+		try {
+			if (!_permits.tryAcquire()) {
+				// idle connections of the multiplexer might hold the permits
+				notifyPermitListener();
+				if (!_permits.tryAcquire(_icapConnectionData.getMaxWait(), TimeUnit.MILLISECONDS)) {
+					throw new ICAPException("Timeout waiting for ICAP connection to " + _icapConnectionData);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ICAPException("Interrupted while waiting for ICAP connection to " + _icapConnectionData);
+		}
+		try {
+			ICAP icap;
+			while ((icap = _idle.pollFirst()) != null && isExpired(icap)) {
+				closeQuietly(icap);
+			}
+			if (icap == null) {
+				icap = createConnection();
+			} else {
+				_metrics.recordConnectionReuse();
+				ICAPOptions options = _options;
+				if (options != null) {
+					icap.setOptions(options);
+				}
+			}
+			icap.setScanEngine(scanEngine);
+			return icap;
+		} catch (IOException | RuntimeException e) {
+			releasePermit();
+			throw e;
+		}
+	}
+
+	/**
+	 * Give back a healthy connection.
+	 */
+	public void release(ICAP icap) {
+		if (_closed || _idle.size() + getActiveCount() > getMaxConnections()) {
+			closeQuietly(icap);
+		} else {
+			_idle.offerFirst(icap);
+		}
+		releasePermit();
+	}
+
+	/**
+	 * Give back a connection which might be corrupt.
+	 */
+	public void invalidate(ICAP icap) {
+		closeQuietly(icap);
+		releasePermit();
+	}
+
+	private void releasePermit() {
+		_permits.release();
+		notifyPermitListener();
+	}
+
+	private void notifyPermitListener() {
+		Runnable permitListener = _permitListener;
+		if (permitListener != null) {
+			permitListener.run();
+		}
+	}
+
+	/**
+	 * Lets an {@link ICAPMultiplexer} share the bound of this pool, so that Max-Connections holds for both together.
+	 * @return Whether a permit could be acquired without overtaking waiting borrowers, never blocks.
+	 */
+	boolean tryAcquirePermit() {
+		return !_closed && !_permits.hasQueuedThreads() && _permits.tryAcquire();
+	}
+
+	/**
+	 * Gives back a permit acquired with {@link #tryAcquirePermit()}.
+	 */
+	void permitReleased() {
+		releasePermit();
+	}
+
+	/**
+	 * @return Whether threads wait in {@link #borrow(ICAP.ScanEngine)}.
+	 */
+	boolean hasWaiters() {
+		return _permits.hasQueuedThreads();
+	}
+
+	void setPermitListener(Runnable permitListener) {
+		_permitListener = permitListener;
+	}
+
+	/**
+	 * @return The cache of verdicts for this server or null if not configured.
+	 */
+	public ScanResultCache getScanResultCache() {
+		return _scanResultCache;
+	}
+
+	public int getIdleCount() {
+		return _idle.size();
+	}
+
+	public int getActiveCount() {
+		return getMaxConnections() - _permits.availablePermits();
+	}
+
+	/**
+	 * @return The current OPTIONS snapshot or null if not yet known.
+	 */
+	public ICAPOptions getOptions() {
+		return _options;
+	}
+
+	/**
+	 * Publish a new OPTIONS snapshot, connections pick it up when they are borrowed next.
+	 */
+	void updateOptions(ICAPOptions options) {
+		_options = options;
+		int maxConnections = _icapConnectionData.getMaxConnections();
+		if (options.getMaxConnections() > 0) {
+			maxConnections = Math.min(maxConnections, options.getMaxConnections());
+		}
+		resize(maxConnections);
+		if (options.getISTag() != null) {
+			_ISTag = options.getISTag();
+		}
+		scheduleRefresh(options.getRefreshDelay(System.nanoTime()));
+	}
+
+	private synchronized void resize(int maxConnections) {
+		int delta = maxConnections - _maxConnections;
+		if (delta > 0) {
+			_permits.release(delta);
+			notifyPermitListener();
+		} else if (delta < 0) {
+			// surplus connections are closed when given back or by maintenance
+			_permits.reducePermits(-delta);
+		}
+		_maxConnections = maxConnections;
+	}
+
+	public synchronized int getMaxConnections() {
+		return _maxConnections;
+	}
+
+	private synchronized void scheduleRefresh(long delay) {
+		if (_refresh != null) {
+			_refresh.cancel(false);
+		}
+		_refresh = delay >= 0L && !_closed ? _scheduledExecutorService.schedule(this::refreshOptions, delay, TimeUnit.NANOSECONDS) : null;
+	}
+
+	private void refreshOptions() {
+		if (!_permits.tryAcquire()) {
+			// all connections busy, options are still valid for a while
+			scheduleRefresh(OPTIONS_RETRY_DELAY);
+			return;
+		}
+		ICAP icap = null;
+		try {
+			while ((icap = _idle.pollFirst()) != null && isExpired(icap)) {
+				closeQuietly(icap);
+			}
+			if (icap != null) {
+				updateOptions(icap.options());
+			} else {
+				icap = new ICAP(_icapConnectionData, null, _metrics);
+				_metrics.recordReconnect();
+				icap.setChunkSize(_icapConnectionData.getChunkSize());
+				updateOptions(icap.getOptions());
+			}
+		} catch (IOException e) {
+			if (icap != null) {
+				invalidate(icap);
+			} else {
+				releasePermit();
+			}
+			scheduleRefresh(OPTIONS_RETRY_DELAY);
+			return;
+		}
+		release(icap);
+	}
+
+	public ICAPConnectionData getICAPConnectionData() {
+		return _icapConnectionData;
+	}
+
+	public ICAPMetrics getMetrics() {
+		return _metrics;
+	}
+
+	/**
+	 * A scan must pass the limiter before {@link #scanStarted()}. It is released by {@link #scanSucceeded(long, long, String)},
+	 * {@link #scanFailed(long)} or {@link #scanAborted()}.
+	 */
+	public ICAPConcurrencyLimiter getLimiter() {
+		return _limiter;
+	}
+
+	/**
+	 * Single-flight for identical content: only the first of concurrent scans is sent to the server, the others wait
+	 * for its result. The caller owning the scan must complete it and call {@link #leaveScan(String, CompletableFuture)}.
+	 * @param digest Identifies the content.
+	 * @param scan The future to be completed by the caller if no scan of the same content is in flight.
+	 * @return The scan in flight or null if the caller owns the scan now.
+	 */
+	CompletableFuture<ScanResult> joinScan(String digest, CompletableFuture<ScanResult> scan) {
+		return _scansInFlight.putIfAbsent(getScanKey(digest), scan);
+	}
+
+	void leaveScan(String digest, CompletableFuture<ScanResult> scan) {
+		if (!_scansInFlight.remove(getScanKey(digest), scan)) {
+			// the ISTag changed in the meantime
+			_scansInFlight.values().remove(scan);
+		}
+	}
+
+	private String getScanKey(String digest) {
+		return _ISTag + '/' + digest;
+	}
+
+	/**
+	 * @return Exponentially weighted moving average of the scan latency in nanoseconds.
+	 */
+	public long getLatency() {
+		return _latency.get();
+	}
+
+	public int getInFlight() {
+		return _inFlight.get();
+	}
+
+	/**
+	 * @return The last ISTag reported by this server or null if not yet known.
+	 */
+	public String getISTag() {
+		return _ISTag;
+	}
+
+	void setISTag(String ISTag) {
+		_ISTag = ISTag;
+	}
+
+	public boolean isQuarantined(long now) {
+		return now - _quarantinedUntil < 0L;
+	}
+
+	long getQuarantinedUntil() {
+		return _quarantinedUntil;
+	}
+
+	/**
+	 * Must be followed by either {@link #scanSucceeded(long, long, String)} or {@link #scanFailed(long)}.
+	 * @return The start time.
+	 */
+	long scanStarted() {
+		_inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * @param previewLatency Of the preview phase for the limiter, -1 if the scan had no preview.
+	 */
+	void scanSucceeded(long start, long previewLatency, String ISTag) {
+		_inFlight.decrementAndGet();
+		long sample = System.nanoTime() - start;
+		_limiter.release(previewLatency);
+		// alpha = 1/8
+		_latency.accumulateAndGet(sample, (ewma, s) -> ewma == 0L ? s : ewma + (s - ewma) / 8);
+		if (ISTag != null) {
+			_ISTag = ISTag;
+		}
+	}
+
+	void scanFailed(long quarantineTime) {
+		_inFlight.decrementAndGet();
+		_limiter.drop();
+		quarantine(quarantineTime);
+	}
+
+	void quarantine(long quarantineTime) {
+		_metrics.recordError();
+		_quarantinedUntil = System.nanoTime() + quarantineTime;
+	}
+
+	/**
+	 * @return Whether all connections are in use, i.e. a failing {@link #borrow(ICAP.ScanEngine)} might not indicate a server problem.
+	 */
+	boolean isExhausted() {
+		return _permits.availablePermits() == 0;
+	}
+
+	/**
+	 * The scan did not take place, e.g. because the pool is exhausted or the verdict was known. The server is not considered unhealthy.
+	 */
+	void scanAborted() {
+		_inFlight.decrementAndGet();
+		_limiter.cancel();
+	}
+
+	private void maintain() {
+		// Evict from the tail, these are the least recently used
+		for (Iterator<ICAP> iter = _idle.descendingIterator(); iter.hasNext();) {
+			ICAP icap = iter.next();
+			if (isExpired(icap) && _idle.removeLastOccurrence(icap)) {
+				closeQuietly(icap);
+			}
+		}
+		// Max-Connections might have been lowered
+		for (ICAP icap; _idle.size() + getActiveCount() > getMaxConnections() && (icap = _idle.pollLast()) != null;) {
+			closeQuietly(icap);
+		}
+		// Pre-warm, holding a permit so that the pool never exceeds its bound
+		while (!_closed && _idle.size() + getActiveCount() < _icapConnectionData.getMinConnections() && _permits.tryAcquire()) {
+			try {
+				_idle.offerLast(createConnection());
+			} catch (IOException e) {
+				// server not reachable, retry next time
+				break;
+			} finally {
+				releasePermit();
+			}
+		}
+	}
+
+	private static final class ResizableSemaphore extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		ResizableSemaphore(int permits) {
+			super(permits, true);
+		}
+
+		@Override
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+
+	@Override
+	public void close() {
+		_closed = true;
+		_maintenance.cancel(false);
+		scheduleRefresh(-1L);
+		for (ICAP icap; (icap = _idle.pollFirst()) != null;) {
+			closeQuietly(icap);
+		}
+		if (_scanResultCache != null) {
+			try {
+				_scanResultCache.close();
+			} catch (IOException e) {
+				// cache will be cold after restart
+			}
+		}
+	}
+
+}
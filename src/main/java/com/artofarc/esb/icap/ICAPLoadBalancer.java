@@ -0,0 +1,112 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.icap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Routes scans to a list of ICAP servers. The server with the lowest latency (EWMA) weighted by the number of scans in
+ * flight is chosen. Servers which failed are skipped for the quarantine time unless no other server is left.
+ * The statistics are kept in the {@link ICAPConnectionPool} of each server and thus shared by all actions.
+ * <p>
+ * ICAPRemoteHost takes a comma separated list of [icaps://]host[:port], the port defaults to ICAPRemotePort.
+ */
+public final class ICAPLoadBalancer {
+
+	private final ICAPConnectionData[] _servers;
+	private final long _quarantineTime;
+
+	public ICAPLoadBalancer(Properties properties) {
+		String hosts = properties.getProperty("ICAPRemoteHost");
+		String port = properties.getProperty("ICAPRemotePort");
+		String uri = properties.getProperty("ICAPRemoteURI");
+		List<ICAPConnectionData> servers = new ArrayList<>();
+		if (hosts == null) {
+			servers.add(new ICAPConnectionData(null, port, uri, properties));
+		} else {
+			for (String server : hosts.split(",")) {
+				server = server.trim();
+				// skip scheme
+				int s = server.indexOf("://");
+				s = s < 0 ? 0 : s + 3;
+				int i = server.indexOf(':', s);
+				// Literal IPv6 addresses cannot carry a port here
+				if (i > s && i == server.lastIndexOf(':')) {
+					servers.add(new ICAPConnectionData(server.substring(0, i), server.substring(i + 1), uri, properties));
+				} else {
+					servers.add(new ICAPConnectionData(server, port, uri, properties));
+				}
+			}
+		}
+		_servers = servers.toArray(new ICAPConnectionData[servers.size()]);
+		_quarantineTime = Long.parseLong(properties.getProperty("ICAPQuarantineTime", "30000")) * 1000000L;
+	}
+
+	public int size() {
+		return _servers.length;
+	}
+
+	public ICAPConnectionData getServer(int index) {
+		return _servers[index];
+	}
+
+	public long getQuarantineTime() {
+		return _quarantineTime;
+	}
+
+	/**
+	 * @param factory Provides the pools holding the statistics.
+	 * @param tried Servers already tried for this scan, the chosen one is added.
+	 * @return Index of the chosen server or -1 if all have been tried.
+	 */
+	public int select(ICAPConnectionFactory factory, boolean[] tried) {
+		long now = System.nanoTime();
+		int best = -1, fallback = -1;
+		double bestScore = Double.MAX_VALUE;
+		long earliest = Long.MAX_VALUE;
+		for (int i = 0; i < _servers.length; ++i) {
+			if (tried[i]) {
+				continue;
+			}
+			ICAPConnectionPool pool = factory.getResource(_servers[i]);
+			if (pool.isQuarantined(now)) {
+				long until = pool.getQuarantinedUntil() - now;
+				if (until < earliest) {
+					earliest = until;
+					fallback = i;
+				}
+				continue;
+			}
+			// +1 so that unused servers and idle servers are still ranked
+			double score = (pool.getLatency() + 1.0) * (pool.getInFlight() + 1);
+			if (score < bestScore) {
+				bestScore = score;
+				best = i;
+			}
+		}
+		if (best < 0) {
+			// fail fast rather than not at all: use the server leaving quarantine next
+			best = fallback;
+		}
+		if (best >= 0) {
+			tried[best] = true;
+		}
+		return best;
+	}
+
+}
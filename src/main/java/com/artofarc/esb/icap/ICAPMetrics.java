@@ -0,0 +1,253 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.icap;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.artofarc.util.LatencyHistogram;
+
+/**
+ * Counters of one ICAP server, updated on the hot path without locking.
+ */
+public final class ICAPMetrics implements ICAPMetricsMXBean {
+
+	private final ICAPConnectionPool _pool;
+	private final LongAdder _scanCount = new LongAdder();
+	private final LongAdder _bytesScanned = new LongAdder();
+	private final LongAdder _infectedCount = new LongAdder();
+	private final LongAdder _errorCount = new LongAdder();
+	private final LongAdder _previewOnlyCount = new LongAdder();
+	private final LongAdder _connectionReuseCount = new LongAdder();
+	private final LongAdder _reconnectCount = new LongAdder();
+	private final LongAdder _resumedHandshakeCount = new LongAdder();
+	private final LatencyHistogram _previewLatency = new LatencyHistogram();
+	private final LatencyHistogram _bodyLatency = new LatencyHistogram();
+	private final LatencyHistogram _optionsLatency = new LatencyHistogram();
+	private final LatencyHistogram _handshakeLatency = new LatencyHistogram();
+
+	ICAPMetrics(ICAPConnectionPool pool) {
+		_pool = pool;
+	}
+
+	void recordScan(long bytes, boolean clean, boolean previewOnly) {
+		_scanCount.increment();
+		_bytesScanned.add(bytes);
+		if (!clean) {
+			_infectedCount.increment();
+		}
+		if (previewOnly) {
+			_previewOnlyCount.increment();
+		}
+	}
+
+	void recordError() {
+		_errorCount.increment();
+	}
+
+	void recordConnectionReuse() {
+		_connectionReuseCount.increment();
+	}
+
+	void recordReconnect() {
+		_reconnectCount.increment();
+	}
+
+	void recordPreviewLatency(long nanos) {
+		_previewLatency.recordNanos(nanos);
+	}
+
+	void recordBodyLatency(long nanos) {
+		_bodyLatency.recordNanos(nanos);
+	}
+
+	void recordOptionsLatency(long nanos) {
+		_optionsLatency.recordNanos(nanos);
+	}
+
+	void recordHandshake(long nanos, boolean resumed) {
+		_handshakeLatency.recordNanos(nanos);
+		if (resumed) {
+			_resumedHandshakeCount.increment();
+		}
+	}
+
+	@Override
+	public String getServer() {
+		return _pool.getICAPConnectionData().toString();
+	}
+
+	@Override
+	public long getScanCount() {
+		return _scanCount.sum();
+	}
+
+	@Override
+	public long getBytesScanned() {
+		return _bytesScanned.sum();
+	}
+
+	@Override
+	public long getInfectedCount() {
+		return _infectedCount.sum();
+	}
+
+	@Override
+	public long getErrorCount() {
+		return _errorCount.sum();
+	}
+
+	@Override
+	public double getPreviewOnlyRatio() {
+		long scanCount = _scanCount.sum();
+		return scanCount > 0L ? (double) _previewOnlyCount.sum() / scanCount : 0.0;
+	}
+
+	@Override
+	public long getConnectionReuseCount() {
+		return _connectionReuseCount.sum();
+	}
+
+	@Override
+	public long getReconnectCount() {
+		return _reconnectCount.sum();
+	}
+
+	@Override
+	public long getHandshakeCount() {
+		return _handshakeLatency.getCount();
+	}
+
+	@Override
+	public long getResumedHandshakeCount() {
+		return _resumedHandshakeCount.sum();
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return _pool.getActiveCount();
+	}
+
+	@Override
+	public int getIdleConnections() {
+		return _pool.getIdleCount();
+	}
+
+	@Override
+	public int getMaxConnections() {
+		return _pool.getMaxConnections();
+	}
+
+	@Override
+	public int getConcurrencyLimit() {
+		return _pool.getLimiter().getLimit();
+	}
+
+	@Override
+	public int getQueuedScans() {
+		return _pool.getLimiter().getQueued();
+	}
+
+	@Override
+	public boolean isQuarantined() {
+		return _pool.isQuarantined(System.nanoTime());
+	}
+
+	@Override
+	public String getISTag() {
+		return _pool.getISTag();
+	}
+
+	private static double millis(LatencyHistogram histogram, double quantile) {
+		return histogram.getPercentile(quantile) / 1000.0;
+	}
+
+	@Override
+	public double getPreviewLatencyP50() {
+		return millis(_previewLatency, 0.5);
+	}
+
+	@Override
+	public double getPreviewLatencyP99() {
+		return millis(_previewLatency, 0.99);
+	}
+
+	@Override
+	public double getPreviewLatencyP999() {
+		return millis(_previewLatency, 0.999);
+	}
+
+	@Override
+	public double getBodyLatencyP50() {
+		return millis(_bodyLatency, 0.5);
+	}
+
+	@Override
+	public double getBodyLatencyP99() {
+		return millis(_bodyLatency, 0.99);
+	}
+
+	@Override
+	public double getBodyLatencyP999() {
+		return millis(_bodyLatency, 0.999);
+	}
+
+	@Override
+	public double getOptionsLatencyP50() {
+		return millis(_optionsLatency, 0.5);
+	}
+
+	@Override
+	public double getOptionsLatencyP99() {
+		return millis(_optionsLatency, 0.99);
+	}
+
+	@Override
+	public double getOptionsLatencyP999() {
+		return millis(_optionsLatency, 0.999);
+	}
+
+	@Override
+	public double getHandshakeLatencyP50() {
+		return millis(_handshakeLatency, 0.5);
+	}
+
+	@Override
+	public double getHandshakeLatencyP99() {
+		return millis(_handshakeLatency, 0.99);
+	}
+
+	@Override
+	public double getHandshakeLatencyP999() {
+		return millis(_handshakeLatency, 0.999);
+	}
+
+	@Override
+	public void reset() {
+		_scanCount.reset();
+		_bytesScanned.reset();
+		_infectedCount.reset();
+		_errorCount.reset();
+		_previewOnlyCount.reset();
+		_connectionReuseCount.reset();
+		_reconnectCount.reset();
+		_resumedHandshakeCount.reset();
+		_previewLatency.reset();
+		_bodyLatency.reset();
+		_optionsLatency.reset();
+		_handshakeLatency.reset();
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.icap;
+
+/**
+ * Statistics of one ICAP server. Latencies are in milliseconds.
+ */
+public interface ICAPMetricsMXBean {
+
+	String getServer();
+
+	long getScanCount();
+
+	long getBytesScanned();
+
+	long getInfectedCount();
+
+	long getErrorCount();
+
+	/**
+	 * @return Fraction of verdicts which were given after the preview, i.e. without sending the whole file.
+	 */
+	double getPreviewOnlyRatio();
+
+	long getConnectionReuseCount();
+
+	long getReconnectCount();
+
+	/**
+	 * @return Number of TLS handshakes, 0 for plain ICAP.
+	 */
+	long getHandshakeCount();
+
+	/**
+	 * @return Number of TLS handshakes which resumed a cached session instead of a full key exchange.
+	 */
+	long getResumedHandshakeCount();
+
+	int getActiveConnections();
+
+	int getIdleConnections();
+
+	int getMaxConnections();
+
+	/**
+	 * @return The current adaptive limit of concurrent scans.
+	 */
+	int getConcurrencyLimit();
+
+	int getQueuedScans();
+
+	boolean isQuarantined();
+
+	String getISTag();
+
+	double getPreviewLatencyP50();
+
+	double getPreviewLatencyP99();
+
+	double getPreviewLatencyP999();
+
+	double getBodyLatencyP50();
+
+	double getBodyLatencyP99();
+
+	double getBodyLatencyP999();
+
+	double getOptionsLatencyP50();
+
+	double getOptionsLatencyP99();
+
+	double getOptionsLatencyP999();
+
+	double getHandshakeLatencyP50();
+
+	double getHandshakeLatencyP99();
+
+	double getHandshakeLatencyP999();
+
+	void reset();
+
+}
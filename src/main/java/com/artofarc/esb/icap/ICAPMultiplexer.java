@@ -0,0 +1,790 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.icap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Non-blocking ICAP client. A single selector thread drives a small set of keep-alive connections to one ICAP server.
+ * Each connection carries one RESPMOD exchange at a time, callers only get a {@link CompletableFuture} and are never
+ * blocked by socket IO. The OPTIONS snapshot (preview size, ISTag) is shared with the {@link ICAPConnectionPool} of the server.
+ * Each open connection holds a permit of the pool, so Max-Connections is honoured by both together. Idle connections
+ * are closed as soon as threads wait for a connection of the pool.
+ * For ICAPS each connection runs an {@link SSLEngine} between the channel and the protocol buffers.
+ */
+public final class ICAPMultiplexer implements AutoCloseable {
+
+	private static final int RECEIVE_BUFFER_SIZE = 8192;
+	private static final int MAX_HEADER_SIZE = 64 * 1024;
+	private static final byte[] EOL = "\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ICAPTERMINATOR = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HTTPTERMINATOR = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] IEOFTERMINATOR = "0; ieof\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CHUNK_HTTPTERMINATOR = "\r\n0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CHUNK_IEOFTERMINATOR = "\r\n0; ieof\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	// phases of a connection
+	private static final int CONNECTING = 0, IDLE = 1, OPTIONS = 2, PREVIEW = 3, RESPONSE = 4;
+	// states of the receiving side
+	private static final int NONE = 0, HEADER = 1, ENCAPSULATED_HEADER = 2, CHUNK_SIZE = 3, CHUNK_DATA = 4, CHUNK_END = 5, TRAILER = 6;
+
+	private final ICAPConnectionData _icapConnectionData;
+	private final ICAPConnectionPool _pool;
+	private final ICAPMetrics _metrics;
+	private final ICAPRequestTemplate _template;
+	private final SSLContext _sslContext;
+	private final int _maxConnections;
+	private final long _connectTimeout, _readTimeout;
+	private final Selector _selector;
+	private final Thread _thread;
+	private final Queue<Exchange> _pending = new ConcurrentLinkedQueue<>();
+	// only accessed by the selector thread
+	private final ArrayDeque<Connection> _idle = new ArrayDeque<>();
+	private final Set<Connection> _connections = new HashSet<>();
+	private volatile boolean _closed;
+
+
+	private final class Exchange {
+		final String _filename;
+		final ByteBuffer _body;
+		final ICAP.ScanEngine _scanEngine;
+		final CompletableFuture<ScanResult> _future = new CompletableFuture<ScanResult>() {
+
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				boolean cancelled = super.cancel(mayInterruptIfRunning);
+				// let the selector thread abort the exchange
+				_selector.wakeup();
+				return cancelled;
+			}
+		};
+		boolean _retried;
+
+		Exchange(String filename, ByteBuffer body, ICAP.ScanEngine scanEngine) {
+			_filename = filename;
+			_body = body;
+			_scanEngine = scanEngine;
+		}
+	}
+
+	public ICAPMultiplexer(ICAPConnectionData icapConnectionData, ICAPConnectionPool pool, int maxConnections) throws IOException {
+		_icapConnectionData = icapConnectionData;
+		_pool = pool;
+		_metrics = pool.getMetrics();
+		_template = icapConnectionData.getRequestTemplate();
+		_maxConnections = maxConnections;
+		_connectTimeout = timeout(icapConnectionData.getConnectTimeout());
+		_sslContext = icapConnectionData.isSecure() ? icapConnectionData.getSSLContext() : null;
+		_readTimeout = timeout(icapConnectionData.getReadTimeout());
+		_selector = Selector.open();
+		pool.setPermitListener(_selector::wakeup);
+		_thread = new Thread(this::run, "ICAPMultiplexer-" + icapConnectionData);
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Submits a RESPMOD exchange. The body is not copied, it must not be modified until the returned future is done.
+	 * @param filename Used to build the encapsulated HTTP request.
+	 * @param body The content to be scanned.
+	 * @param scanEngine Interprets the responses of the server.
+	 * @return A future that is completed by the selector thread. Cancelling it aborts the exchange.
+	 */
+	public CompletableFuture<ScanResult> scan(String filename, ByteBuffer body, ICAP.ScanEngine scanEngine) {
+		Exchange exchange = new Exchange(filename, body, scanEngine);
+		ICAPOptions options = _pool.getOptions();
+		if (options != null && options.getTransfer(filename) == ICAPOptions.TRANSFER_IGNORE) {
+			// never sent, so there is no need for a connection
+			exchange._future.complete(ScanResult.NOT_SCANNED);
+		} else if (_closed) {
+			exchange._future.completeExceptionally(new ICAPException("ICAPMultiplexer is closed"));
+		} else {
+			_pending.add(exchange);
+			_selector.wakeup();
+		}
+		return exchange._future;
+	}
+
+	/**
+	 * @param millis 0 means infinite.
+	 */
+	private static long timeout(int millis) {
+		return millis > 0 ? TimeUnit.MILLISECONDS.toNanos(millis) : Long.MAX_VALUE / 2;
+	}
+
+	/**
+	 * @return The ISTag from the last OPTIONS or RESPMOD response or null if not yet known.
+	 */
+	public String getISTag() {
+		return _pool.getISTag();
+	}
+
+	@Override
+	public void close() {
+		_closed = true;
+		_selector.wakeup();
+	}
+
+	private void setISTag(String ISTag) {
+		if (ISTag != null) {
+			_pool.setISTag(ISTag);
+		}
+	}
+
+	private void run() {
+		try {
+			while (!_closed) {
+				_selector.select(1000L);
+				for (Iterator<SelectionKey> iter = _selector.selectedKeys().iterator(); iter.hasNext();) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isConnectable()) {
+							connection.finishConnect();
+						} else if (key.isWritable()) {
+							connection.flush();
+						} else if (key.isReadable()) {
+							connection.read();
+						}
+					} catch (IOException | RuntimeException e) {
+						connection.fail(e);
+					}
+				}
+				yieldIdle();
+				dispatch();
+				checkExchanges();
+			}
+		} catch (IOException e) {
+			// selector broken, fall through
+		} finally {
+			_closed = true;
+			for (Connection connection : _connections.toArray(new Connection[_connections.size()])) {
+				connection.fail(new ICAPException("ICAPMultiplexer is closed"));
+			}
+			for (Exchange exchange; (exchange = _pending.poll()) != null;) {
+				exchange._future.completeExceptionally(new ICAPException("ICAPMultiplexer is closed"));
+			}
+			try {
+				_selector.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private void dispatch() {
+		for (Exchange exchange; (exchange = _pending.peek()) != null;) {
+			if (exchange._future.isDone()) {
+				// cancelled meanwhile
+				_pending.poll();
+				continue;
+			}
+			Connection connection = _idle.pollFirst();
+			// a new connection needs a permit of the pool, the listener wakes us up when one is released
+			if (connection == null && (_connections.size() >= _maxConnections || !_pool.tryAcquirePermit())) {
+				break;
+			}
+			_pending.poll();
+			if (connection == null) {
+				try {
+					connection = new Connection(exchange);
+				} catch (IOException e) {
+					_pool.permitReleased();
+					exchange._future.completeExceptionally(e);
+				}
+			} else {
+				try {
+					connection.start(exchange);
+				} catch (IOException | RuntimeException e) {
+					connection.fail(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Idle connections give their permits back to threads waiting for a connection of the pool.
+	 */
+	private void yieldIdle() {
+		while (!_idle.isEmpty() && _pool.hasWaiters()) {
+			_idle.peekLast().fail(new CancellationException());
+		}
+	}
+
+	private void checkExchanges() {
+		long now = System.nanoTime();
+		for (Connection connection : _connections.toArray(new Connection[_connections.size()])) {
+			if (connection._phase != IDLE && now - connection._deadline > 0L) {
+				connection.fail(new SocketTimeoutException("ICAP exchange timed out"));
+			} else if (connection._exchange != null && connection._exchange._future.isCancelled()) {
+				// the rest of the exchange is not of interest, the connection cannot be reused
+				connection.fail(new CancellationException());
+			}
+		}
+	}
+
+	private static int indexOf(ByteBuffer buffer, byte[] pattern) {
+		final byte[] array = buffer.array();
+		final int offset = buffer.arrayOffset();
+		final int end = offset + buffer.limit() - pattern.length;
+		outer: for (int i = offset + buffer.position(); i <= end; ++i) {
+			for (int j = 0; j < pattern.length; ++j) {
+				if (array[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i - offset;
+		}
+		return -1;
+	}
+
+	private final class Connection {
+		private final SocketChannel _channel;
+		private final SelectionKey _key;
+		private ByteBuffer _in;
+		private ByteBuffer[] _out;
+		// TLS, encrypted data is in the net buffers
+		private final SSLEngine _engine;
+		private ByteBuffer _netIn, _netOut;
+		private boolean _handshaking;
+		private long _handshakeStart, _handshakeStartMillis;
+		// request framing is rendered into these reusable buffers
+		private byte[] _header = new byte[1024];
+		private ByteBuffer _headerView = ByteBuffer.wrap(_header);
+		private final ICAPResponseHeader _response = new ICAPResponseHeader();
+		private ICAPOptions _options;
+		private Exchange _exchange;
+		private ByteBuffer _body;
+		private int _phase = CONNECTING, _state = NONE;
+		private long _deadline = System.nanoTime() + _connectTimeout;
+		private boolean _reused, _received;
+		// response of current exchange
+		private boolean _clean, _hasBody;
+		private int _headerRemaining;
+		private long _chunkRemaining;
+		private ByteArrayOutputStream _keep;
+		// statistics of current exchange, bytes sent is -1 if the file is not scanned at all
+		private long _phaseStart, _bytesSent, _previewLatency;
+		private boolean _previewPending, _previewOnly;
+
+		Connection(Exchange exchange) throws IOException {
+			_exchange = exchange;
+			if (_sslContext != null) {
+				_engine = _sslContext.createSSLEngine(_icapConnectionData.getICAPRemoteHost(), _icapConnectionData.getICAPRemotePort());
+				_engine.setUseClientMode(true);
+				if (_icapConnectionData.isVerifyHostname()) {
+					SSLParameters sslParameters = _engine.getSSLParameters();
+					sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+					_engine.setSSLParameters(sslParameters);
+				}
+				_netIn = ByteBuffer.allocate(_engine.getSession().getPacketBufferSize());
+				_netOut = ByteBuffer.allocate(_engine.getSession().getPacketBufferSize());
+				_netOut.flip();
+				// unwrap needs room for a whole record
+				_in = ByteBuffer.allocate(Math.max(RECEIVE_BUFFER_SIZE, _engine.getSession().getApplicationBufferSize()));
+			} else {
+				_engine = null;
+				_in = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+			}
+			_channel = SocketChannel.open();
+			try {
+				_channel.configureBlocking(false);
+				_channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+				boolean connected = _channel.connect(new InetSocketAddress(_icapConnectionData.getICAPRemoteHost(), _icapConnectionData.getICAPRemotePort()));
+				_key = _channel.register(_selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+			} catch (IOException e) {
+				_channel.close();
+				throw e;
+			}
+			_connections.add(this);
+			_metrics.recordReconnect();
+			if (_channel.isConnected()) {
+				try {
+					connected();
+				} catch (IOException | RuntimeException e) {
+					fail(e);
+				}
+			}
+		}
+
+		void finishConnect() throws IOException {
+			if (_channel.finishConnect()) {
+				connected();
+			}
+		}
+
+		private void connected() throws IOException {
+			if (_engine != null) {
+				_handshaking = true;
+				_handshakeStart = System.nanoTime();
+				_handshakeStartMillis = System.currentTimeMillis();
+				_engine.beginHandshake();
+				handshake();
+			} else {
+				begin();
+			}
+		}
+
+		/**
+		 * Drives the handshake as far as possible without blocking and starts the exchange when done.
+		 */
+		private void handshake() throws IOException {
+			_deadline = System.nanoTime() + _readTimeout;
+			for (;;) {
+				switch (_engine.getHandshakeStatus()) {
+				case NEED_TASK:
+					for (Runnable task; (task = _engine.getDelegatedTask()) != null;) {
+						task.run();
+					}
+					break;
+				case NEED_WRAP:
+					if (!writeNet()) {
+						_key.interestOps(SelectionKey.OP_WRITE);
+						return;
+					}
+					_netOut.clear();
+					SSLEngineResult result = _engine.wrap(ByteBuffer.allocate(0), _netOut);
+					_netOut.flip();
+					if (result.getStatus() != SSLEngineResult.Status.OK) {
+						throw new SSLException("TLS handshake failed: " + result.getStatus());
+					}
+					break;
+				case NEED_UNWRAP:
+					if (!writeNet()) {
+						_key.interestOps(SelectionKey.OP_WRITE);
+						return;
+					}
+					if (!unwrap()) {
+						_key.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+					break;
+				default:
+					if (!writeNet()) {
+						_key.interestOps(SelectionKey.OP_WRITE);
+						return;
+					}
+					_handshaking = false;
+					_metrics.recordHandshake(System.nanoTime() - _handshakeStart, ICAP.isResumed(_engine.getSession(), _handshakeStartMillis));
+					begin();
+					return;
+				}
+			}
+		}
+
+		/**
+		 * @return Whether all encrypted data has been written.
+		 */
+		private boolean writeNet() throws IOException {
+			if (_netOut.hasRemaining()) {
+				_channel.write(_netOut);
+			}
+			return !_netOut.hasRemaining();
+		}
+
+		/**
+		 * Decrypts the received records into {@link #_in}.
+		 * @return Whether any record was consumed.
+		 */
+		private boolean unwrap() throws IOException {
+			boolean consumed = false;
+			_netIn.flip();
+			try {
+				for (;;) {
+					SSLEngineResult result = _engine.unwrap(_netIn, _in);
+					switch (result.getStatus()) {
+					case BUFFER_OVERFLOW:
+						if (_in.position() >= MAX_HEADER_SIZE) {
+							throw new ICAPException("Response header too large");
+						}
+						ByteBuffer in = ByteBuffer.allocate(_in.position() + _engine.getSession().getApplicationBufferSize());
+						_in.flip();
+						_in = in.put(_in);
+						break;
+					case CLOSED:
+						throw new EOFException("Connection closed by ICAP server");
+					case BUFFER_UNDERFLOW:
+						return consumed;
+					default:
+						consumed |= result.bytesConsumed() > 0;
+						if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+							// post handshake message, e.g. a session ticket
+							for (Runnable task; (task = _engine.getDelegatedTask()) != null;) {
+								task.run();
+							}
+						}
+						if (result.bytesConsumed() == 0 || _handshaking && result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP || !_netIn.hasRemaining()) {
+							return consumed;
+						}
+						break;
+					}
+				}
+			} finally {
+				_netIn.compact();
+			}
+		}
+
+		void start(Exchange exchange) throws IOException {
+			_exchange = exchange;
+			_reused = true;
+			_metrics.recordConnectionReuse();
+			begin();
+		}
+
+		private void begin() throws IOException {
+			_received = false;
+			_phaseStart = System.nanoTime();
+			_body = _exchange._body.duplicate();
+			_options = _pool.getOptions();
+			// usually refreshed by the pool in the background
+			if (_options == null || _options.isExpired(System.nanoTime())) {
+				_phase = OPTIONS;
+				_state = HEADER;
+				send(ByteBuffer.wrap(_template.getOptions()));
+			} else {
+				sendRequest();
+			}
+		}
+
+		private void sendRequest() throws IOException {
+			_previewLatency = -1L;
+			int transfer = _options.getTransfer(_exchange._filename);
+			if (transfer == ICAPOptions.TRANSFER_IGNORE) {
+				// not sent at all
+				_key.interestOps(SelectionKey.OP_READ);
+				_phase = RESPONSE;
+				_clean = true;
+				_bytesSent = -1L;
+				onEncapsulatedDone();
+				return;
+			}
+			int max = _template.maxRespmodLength(_exchange._filename);
+			if (_header.length < max) {
+				_header = new byte[max];
+				_headerView = ByteBuffer.wrap(_header);
+			}
+			if (transfer == ICAPOptions.TRANSFER_COMPLETE) {
+				_phase = RESPONSE;
+				_state = HEADER;
+				_bytesSent = _body.remaining();
+				_previewPending = false;
+				int len = _template.writeRespmod(_header, 0, _exchange._filename, -1);
+				if (_body.hasRemaining()) {
+					len = ICAPRequestTemplate.writeChunkSize(_header, len, _body.remaining());
+					send(header(len), _body, ByteBuffer.wrap(CHUNK_HTTPTERMINATOR));
+				} else {
+					send(header(len), ByteBuffer.wrap(HTTPTERMINATOR));
+				}
+				return;
+			}
+			int previewSize = _options.getPreviewSize();
+			int length = _body.remaining();
+			int preview = Math.min(length, previewSize);
+			boolean complete = length <= previewSize;
+			ByteBuffer first = _body.duplicate();
+			first.limit(first.position() + preview);
+			_body.position(_body.position() + preview);
+			_phase = complete ? RESPONSE : PREVIEW;
+			_state = HEADER;
+			_bytesSent = preview;
+			_previewPending = true;
+			ByteBuffer header = header(_template.writeRespmod(_header, 0, _exchange._filename, preview));
+			byte[] terminator = complete ? IEOFTERMINATOR : HTTPTERMINATOR;
+			if (preview > 0) {
+				send(header, first, ByteBuffer.wrap(complete ? CHUNK_IEOFTERMINATOR : CHUNK_HTTPTERMINATOR));
+			} else {
+				send(header, ByteBuffer.wrap(terminator));
+			}
+		}
+
+		private void sendRemainder() throws IOException {
+			_phase = RESPONSE;
+			_state = HEADER;
+			_bytesSent += _body.remaining();
+			if (_body.hasRemaining()) {
+				send(header(ICAPRequestTemplate.writeChunkSize(_header, 0, _body.remaining())), _body, ByteBuffer.wrap(CHUNK_HTTPTERMINATOR));
+			} else {
+				send(ByteBuffer.wrap(HTTPTERMINATOR));
+			}
+		}
+
+		private ByteBuffer header(int length) {
+			_headerView.clear();
+			_headerView.limit(length);
+			return _headerView;
+		}
+
+		private void send(ByteBuffer... buffers) throws IOException {
+			_out = buffers;
+			flush();
+		}
+
+		void flush() throws IOException {
+			if (_handshaking) {
+				handshake();
+				return;
+			}
+			if (_engine != null) {
+				while (writeNet() && _out[_out.length - 1].hasRemaining()) {
+					_netOut.clear();
+					SSLEngineResult result = _engine.wrap(_out, _netOut);
+					_netOut.flip();
+					if (result.getStatus() != SSLEngineResult.Status.OK) {
+						throw new SSLException("TLS wrap failed: " + result.getStatus());
+					}
+				}
+			} else {
+				_channel.write(_out);
+			}
+			_deadline = System.nanoTime() + _readTimeout;
+			if (_out[_out.length - 1].hasRemaining() || _engine != null && _netOut.hasRemaining()) {
+				_key.interestOps(SelectionKey.OP_WRITE);
+			} else {
+				_out = null;
+				_key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		void read() throws IOException {
+			if (_engine != null) {
+				if (_channel.read(_netIn) < 0) {
+					throw new EOFException("Connection closed by ICAP server");
+				}
+				if (_handshaking) {
+					handshake();
+					return;
+				}
+				unwrap();
+			} else {
+				if (!_in.hasRemaining()) {
+					if (_in.capacity() >= MAX_HEADER_SIZE) {
+						throw new ICAPException("Response header too large");
+					}
+					ByteBuffer in = ByteBuffer.allocate(_in.capacity() * 2);
+					_in.flip();
+					_in = in.put(_in);
+				}
+				if (_channel.read(_in) < 0) {
+					throw new EOFException("Connection closed by ICAP server");
+				}
+			}
+			_received = true;
+			_deadline = System.nanoTime() + _readTimeout;
+			_in.flip();
+			try {
+				while (step());
+				if (_phase == IDLE && _in.hasRemaining()) {
+					throw new ICAPException("Unexpected data from ICAP server");
+				}
+			} finally {
+				_in.compact();
+			}
+		}
+
+		private boolean step() throws IOException {
+			switch (_state) {
+			case HEADER:
+				int end = indexOf(_in, ICAPTERMINATOR);
+				if (end < 0) {
+					return false;
+				}
+				end += ICAPTERMINATOR.length;
+				_response.parse(_in.array(), _in.arrayOffset() + _in.position(), end - _in.position());
+				_in.position(end);
+				onHeader(_response);
+				return true;
+			case ENCAPSULATED_HEADER:
+				_headerRemaining -= consume(_headerRemaining);
+				if (_headerRemaining > 0) {
+					return false;
+				}
+				if (_hasBody) {
+					_state = CHUNK_SIZE;
+				} else {
+					onEncapsulatedDone();
+				}
+				return true;
+			case CHUNK_SIZE:
+				int eol = indexOf(_in, EOL);
+				if (eol < 0) {
+					return false;
+				}
+				_chunkRemaining = ICAPResponseHeader.parseChunkSize(_in.array(), _in.arrayOffset() + _in.position(), _in.arrayOffset() + eol);
+				_in.position(eol + EOL.length);
+				_state = _chunkRemaining > 0L ? CHUNK_DATA : TRAILER;
+				return true;
+			case CHUNK_DATA:
+				_chunkRemaining -= consume(_chunkRemaining);
+				if (_chunkRemaining > 0L) {
+					return false;
+				}
+				_state = CHUNK_END;
+				return true;
+			case CHUNK_END:
+				if (_in.remaining() < EOL.length) {
+					return false;
+				}
+				_in.position(_in.position() + EOL.length);
+				_state = CHUNK_SIZE;
+				return true;
+			case TRAILER:
+				eol = indexOf(_in, EOL);
+				if (eol < 0) {
+					return false;
+				}
+				boolean empty = eol == _in.position();
+				_in.position(eol + EOL.length);
+				if (empty) {
+					onEncapsulatedDone();
+				}
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		private int consume(long max) {
+			int n = (int) Math.min(max, _in.remaining());
+			if (_keep != null) {
+				_keep.write(_in.array(), _in.arrayOffset() + _in.position(), n);
+			}
+			_in.position(_in.position() + n);
+			return n;
+		}
+
+		private void onHeader(ICAPResponseHeader headers) throws IOException {
+			int status = headers.getStatus();
+			long now = System.nanoTime();
+			if (_phase == OPTIONS) {
+				_metrics.recordOptionsLatency(now - _phaseStart);
+			} else if (_previewPending) {
+				_previewLatency = now - _phaseStart;
+				_metrics.recordPreviewLatency(now - _phaseStart);
+			} else {
+				_metrics.recordBodyLatency(now - _phaseStart);
+			}
+			_phaseStart = now;
+			_previewOnly = _phase == PREVIEW;
+			_previewPending = false;
+			switch (_phase) {
+			case OPTIONS:
+				_options = ICAPOptions.parse(headers);
+				_pool.updateOptions(_options);
+				startEncapsulated(headers, false);
+				break;
+			case PREVIEW:
+				if (status == 100) {
+					sendRemainder();
+					break;
+				}
+				// fall through
+			default:
+				setISTag(headers.getISTag());
+				if (_exchange._scanEngine.isVirus(status, headers)) {
+					_clean = false;
+					startEncapsulated(headers, true);
+				} else if (_exchange._scanEngine.isOk(status)) {
+					_clean = true;
+					startEncapsulated(headers, false);
+				} else if (status == 404) {
+					throw new ICAPException("404: ICAP Service not found");
+				} else {
+					throw new ICAPException("Server returned unexpected status code:" + status);
+				}
+				break;
+			}
+		}
+
+		private void startEncapsulated(ICAPResponseHeader headers, boolean keep) {
+			_headerRemaining = headers.getEncapsulatedBodyOffset();
+			_hasBody = headers.hasEncapsulatedBody();
+			_keep = keep ? new ByteArrayOutputStream() : null;
+			_state = ENCAPSULATED_HEADER;
+		}
+
+		private void onEncapsulatedDone() throws IOException {
+			if (_phase == OPTIONS) {
+				sendRequest();
+			} else {
+				Exchange exchange = _exchange;
+				String responseText = _clean ? null : exchange._scanEngine.parseResponse(_response, new String(_keep.toByteArray(), StandardCharsets.UTF_8));
+				_exchange = null;
+				_body = null;
+				_keep = null;
+				_phase = IDLE;
+				_state = NONE;
+				_idle.addFirst(this);
+				if (_bytesSent >= 0L) {
+					_metrics.recordScan(_bytesSent, _clean, _previewOnly);
+				}
+				exchange._future.complete(_bytesSent >= 0L ? new ScanResult(_clean, responseText, _pool.getISTag(), _previewLatency) : ScanResult.NOT_SCANNED);
+			}
+		}
+
+		void fail(Exception e) {
+			if (_connections.remove(this)) {
+				_pool.permitReleased();
+			}
+			_idle.remove(this);
+			try {
+				_channel.close();
+			} catch (IOException ex) {
+				// ignore
+			}
+			Exchange exchange = _exchange;
+			if (exchange != null) {
+				_exchange = null;
+				// keep-alive connection might have been closed by the server meanwhile
+				if (_reused && !_received && !exchange._retried && !_closed && e instanceof IOException) {
+					exchange._retried = true;
+					_pending.add(exchange);
+				} else {
+					exchange._future.completeExceptionally(e);
+				}
+			}
+		}
+	}
+
+}
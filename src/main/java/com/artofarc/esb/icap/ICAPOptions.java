@@ -0,0 +1,155 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.icap;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable snapshot of an OPTIONS response. One snapshot is shared by all connections to a server.
+ */
+public final class ICAPOptions {
+
+	public static final int TRANSFER_PREVIEW = 0, TRANSFER_IGNORE = 1, TRANSFER_COMPLETE = 2;
+
+	private final int _previewSize, _maxConnections;
+	private final String _ISTag;
+	private final Set<String> _transferPreview, _transferIgnore, _transferComplete;
+	private final long _timestamp, _ttl;
+
+	/**
+	 * Static options for a fixed preview size, they never expire.
+	 */
+	ICAPOptions(int previewSize) {
+		_previewSize = previewSize;
+		_maxConnections = -1;
+		_ISTag = null;
+		_transferPreview = _transferIgnore = _transferComplete = Collections.emptySet();
+		_timestamp = System.nanoTime();
+		_ttl = -1L;
+	}
+
+	private ICAPOptions(ICAPResponseHeader header) throws ICAPException {
+		_previewSize = header.getInt("Preview", -1);
+		if (_previewSize < 0) {
+			throw new ICAPException("Could not get preview size from server");
+		}
+		_maxConnections = header.getInt("Max-Connections", -1);
+		_ISTag = header.getISTag();
+		_transferPreview = parseList(header.get("Transfer-Preview"));
+		_transferIgnore = parseList(header.get("Transfer-Ignore"));
+		_transferComplete = parseList(header.get("Transfer-Complete"));
+		_timestamp = System.nanoTime();
+		long ttl = header.getLong("Options-TTL", -1L);
+		_ttl = ttl >= 0L ? TimeUnit.SECONDS.toNanos(ttl) : -1L;
+	}
+
+	static ICAPOptions parse(ICAPResponseHeader header) throws ICAPException {
+		if (header.getStatus() != 200) {
+			throw new ICAPException("Could not get options from server");
+		}
+		return new ICAPOptions(header);
+	}
+
+	private static Set<String> parseList(String list) {
+		if (list == null) {
+			return Collections.emptySet();
+		}
+		Set<String> result = new HashSet<>();
+		for (String extension : list.split(",")) {
+			extension = extension.trim();
+			if (!extension.isEmpty()) {
+				result.add(extension.toLowerCase(Locale.ROOT));
+			}
+		}
+		return Collections.unmodifiableSet(result);
+	}
+
+	public int getPreviewSize() {
+		return _previewSize;
+	}
+
+	/**
+	 * @return The advertised Max-Connections or -1 if unlimited.
+	 */
+	public int getMaxConnections() {
+		return _maxConnections;
+	}
+
+	public String getISTag() {
+		return _ISTag;
+	}
+
+	/**
+	 * @return Extensions as lower case, "*" stands for all.
+	 */
+	public Set<String> getTransferPreview() {
+		return _transferPreview;
+	}
+
+	public Set<String> getTransferIgnore() {
+		return _transferIgnore;
+	}
+
+	public Set<String> getTransferComplete() {
+		return _transferComplete;
+	}
+
+	/**
+	 * An extension listed explicitly wins over the list containing "*". Without any "*" preview is the default.
+	 * @return One of {@link #TRANSFER_PREVIEW}, {@link #TRANSFER_IGNORE}, {@link #TRANSFER_COMPLETE}.
+	 */
+	public int getTransfer(String filename) {
+		if (_transferIgnore.isEmpty() && _transferComplete.isEmpty()) {
+			return TRANSFER_PREVIEW;
+		}
+		int i = filename.lastIndexOf('.');
+		String extension = i >= 0 && filename.indexOf('/', i) < 0 ? filename.substring(i + 1).toLowerCase(Locale.ROOT) : "";
+		if (_transferIgnore.contains(extension)) {
+			return TRANSFER_IGNORE;
+		}
+		if (_transferComplete.contains(extension)) {
+			return TRANSFER_COMPLETE;
+		}
+		if (_transferPreview.contains(extension) || _transferPreview.contains("*")) {
+			return TRANSFER_PREVIEW;
+		}
+		if (_transferIgnore.contains("*")) {
+			return TRANSFER_IGNORE;
+		}
+		return _transferComplete.contains("*") ? TRANSFER_COMPLETE : TRANSFER_PREVIEW;
+	}
+
+	public boolean isExpired(long now) {
+		return _ttl >= 0L && now - _timestamp > _ttl;
+	}
+
+	/**
+	 * @return Nanoseconds until the options should be refreshed, i.e. when 80% of the TTL are over, or -1 if they never expire.
+	 */
+	long getRefreshDelay(long now) {
+		return _ttl >= 0L ? Math.max(0L, _timestamp + _ttl / 5 * 4 - now) : -1L;
+	}
+
+	@Override
+	public String toString() {
+		return "ICAPOptions [Preview=" + _previewSize + ", ISTag=" + _ISTag + ", Max-Connections=" + _maxConnections + ", TTL=" + (_ttl >= 0L ? TimeUnit.NANOSECONDS.toSeconds(_ttl) : "none") + "]";
+	}
+
+}
@@ -0,0 +1,14 @@
+package com.artofarc.esb.icap;
+
+/**
+ * The concurrency limit of a server is reached, the server itself is not considered unhealthy.
+ */
+public class ICAPOverloadException extends ICAPException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ICAPOverloadException(String message) {
+		super(message);
+	}
+
+}
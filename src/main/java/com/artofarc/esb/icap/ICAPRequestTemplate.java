@@ -0,0 +1,176 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.icap;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte level templates for the requests to one ICAP service. Only preview size, filename and the dependent
+ * Encapsulated offsets are patched in, nothing is allocated per request.
+ */
+final class ICAPRequestTemplate {
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] PREVIEW = ascii("Preview: ");
+	private static final byte[] ENCAPSULATED = ascii("Encapsulated: req-hdr=0, res-hdr=");
+	private static final byte[] RES_BODY = ascii(", res-body=");
+	private static final byte[] REQ_HEADER = ascii("\r\n\r\nGET /");
+	private static final byte[] RES_HEADER = ascii("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n");
+
+	private final byte[] _respmod, _hostLine, _options;
+
+	ICAPRequestTemplate(String host, int port, String service) {
+		String icapHeader = " icap://" + host + "/" + service + " ICAP/" + ICAP.VERSION + "\r\nHost: " + host + "\r\nUser-Agent: " + ICAP.USERAGENT + "\r\n";
+		_respmod = ascii("RESPMOD" + icapHeader + "Allow: 204\r\n");
+		_hostLine = ascii(" HTTP/1.1\r\nHost: " + host + ":" + port + "\r\n\r\n");
+		_options = ascii("OPTIONS" + icapHeader + "Encapsulated: null-body=0\r\n\r\n");
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	byte[] getOptions() {
+		return _options;
+	}
+
+	/**
+	 * @return Upper bound of the size of a RESPMOD header including the chunk size line of the preview.
+	 */
+	int maxRespmodLength(CharSequence filename) {
+		return _respmod.length + PREVIEW.length + ENCAPSULATED.length + RES_BODY.length + REQ_HEADER.length + _hostLine.length + RES_HEADER.length + 3 * 10 + 9 * filename.length() + 18;
+	}
+
+	/**
+	 * Writes the RESPMOD header and, if previewSize is positive, the chunk size line of the preview.
+	 * @param previewSize If negative, no preview is announced and the complete body must follow.
+	 * @return The new offset.
+	 */
+	int writeRespmod(byte[] dst, int off, CharSequence filename, int previewSize) {
+		int resHeader = REQ_HEADER.length - 4 + encodedLength(filename) + _hostLine.length;
+		off = put(dst, off, _respmod);
+		if (previewSize >= 0) {
+			off = put(dst, off, PREVIEW);
+			off = writeDecimal(dst, off, previewSize);
+			dst[off++] = '\r';
+			dst[off++] = '\n';
+		}
+		off = put(dst, off, ENCAPSULATED);
+		off = writeDecimal(dst, off, resHeader);
+		off = put(dst, off, RES_BODY);
+		off = writeDecimal(dst, off, resHeader + RES_HEADER.length);
+		off = put(dst, off, REQ_HEADER);
+		off = encode(filename, dst, off);
+		off = put(dst, off, _hostLine);
+		off = put(dst, off, RES_HEADER);
+		return previewSize > 0 ? writeChunkSize(dst, off, previewSize) : off;
+	}
+
+	private static int put(byte[] dst, int off, byte[] src) {
+		System.arraycopy(src, 0, dst, off, src.length);
+		return off + src.length;
+	}
+
+	static int writeDecimal(byte[] dst, int off, int value) {
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10) {
+			++digits;
+		}
+		for (int i = off + digits - 1; i >= off; --i, value /= 10) {
+			dst[i] = (byte) ('0' + value % 10);
+		}
+		return off + digits;
+	}
+
+	/**
+	 * Writes the chunk size in hex followed by CRLF.
+	 * @return The new offset.
+	 */
+	static int writeChunkSize(byte[] dst, int off, long size) {
+		int digits = Math.max(1, (67 - Long.numberOfLeadingZeros(size)) >> 2);
+		for (int i = off + digits - 1; i >= off; --i, size >>>= 4) {
+			dst[i] = HEX[(int) size & 0xF];
+		}
+		off += digits;
+		dst[off++] = '\r';
+		dst[off++] = '\n';
+		return off;
+	}
+
+	private static boolean isUnreserved(int c) {
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '.' || c == '_' || c == '~';
+	}
+
+	/**
+	 * @return Length of the filename percent-encoded as UTF-8.
+	 */
+	static int encodedLength(CharSequence s) {
+		int len = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (isUnreserved(c)) {
+				++len;
+			} else if (c < 0x80) {
+				len += 3;
+			} else if (c < 0x800) {
+				len += 6;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				len += 12;
+				++i;
+			} else {
+				len += 9;
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Percent-encodes the filename as UTF-8 without intermediate objects.
+	 * @return The new offset.
+	 */
+	static int encode(CharSequence s, byte[] dst, int off) {
+		for (int i = 0; i < s.length(); ++i) {
+			int c = s.charAt(i);
+			if (isUnreserved(c)) {
+				dst[off++] = (byte) c;
+			} else if (c < 0x80) {
+				off = percent(dst, off, c);
+			} else if (c < 0x800) {
+				off = percent(dst, off, 0xC0 | c >> 6);
+				off = percent(dst, off, 0x80 | c & 0x3F);
+			} else {
+				if (Character.isHighSurrogate((char) c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+					c = Character.toCodePoint((char) c, s.charAt(++i));
+					off = percent(dst, off, 0xF0 | c >> 18);
+					off = percent(dst, off, 0x80 | c >> 12 & 0x3F);
+				} else {
+					off = percent(dst, off, 0xE0 | c >> 12);
+				}
+				off = percent(dst, off, 0x80 | c >> 6 & 0x3F);
+				off = percent(dst, off, 0x80 | c & 0x3F);
+			}
+		}
+		return off;
+	}
+
+	private static int percent(byte[] dst, int off, int b) {
+		dst[off++] = '%';
+		dst[off++] = HEX[b >> 4 & 0xF];
+		dst[off++] = HEX[b & 0xF];
+		return off;
+	}
+
+}
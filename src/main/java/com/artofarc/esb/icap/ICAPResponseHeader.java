@@ -0,0 +1,296 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.icap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reusable ICAP response header, parsed in place from the receive buffer. Only offsets are recorded, strings are
+ * created on demand when a value is actually requested. Header names are compared case insensitive.
+ * For compatibility with {@link ICAP.ScanEngine} it is a read-only {@link Map} which also contains the key "StatusCode".
+ */
+final class ICAPResponseHeader extends AbstractMap<String, String> {
+
+	static final String STATUS_CODE = "StatusCode";
+
+	private byte[] _buffer = new byte[1024];
+	private int[] _offsets = new int[4 * 16];
+	private int _count, _status;
+	// avoid creating the same ISTag string again and again
+	private byte[] _ISTagBytes = new byte[0];
+	private String _ISTag;
+
+	/**
+	 * Parses the header. The bytes are copied, so the source buffer can be reused afterwards.
+	 *
+	 * <pre>
+	 * ICAP/1.0 204 Unmodified
+	 * Server: C-ICAP/0.1.6
+	 * Connection: keep-alive
+	 * ISTag: CI0001-000-0978-6918203
+	 * </pre>
+	 */
+	void parse(byte[] src, int offset, int length) throws ICAPException {
+		if (_buffer.length < length) {
+			_buffer = new byte[Math.max(length, 2 * _buffer.length)];
+		}
+		System.arraycopy(src, offset, _buffer, 0, length);
+		final byte[] b = _buffer;
+		_count = 0;
+		// The status code is located between the first 2 whitespaces.
+		int i = 0;
+		while (i < length && b[i] != ' ') ++i;
+		int status = 0, digits = 0;
+		for (++i; i < length && b[i] >= '0' && b[i] <= '9'; ++i, ++digits) {
+			status = status * 10 + b[i] - '0';
+		}
+		if (digits == 0) {
+			throw new ICAPException("Unexpected or no status code in response header.");
+		}
+		_status = status;
+		i = nextLine(b, i, length);
+		while (i < length && b[i] != '\r') {
+			int eol = lineEnd(b, i, length);
+			if (b[i] == ' ' || b[i] == '\t') {
+				// folded header (e.g. X-Violations-Found)
+				if (_count > 0) {
+					_offsets[4 * _count - 1] = eol;
+				}
+			} else {
+				int colon = i;
+				while (colon < eol && b[colon] != ':') ++colon;
+				if (colon < eol) {
+					int valueStart = colon + 1;
+					while (valueStart < eol && (b[valueStart] == ' ' || b[valueStart] == '\t')) ++valueStart;
+					if (4 * _count == _offsets.length) {
+						int[] offsets = new int[2 * _offsets.length];
+						System.arraycopy(_offsets, 0, offsets, 0, _offsets.length);
+						_offsets = offsets;
+					}
+					int k = 4 * _count++;
+					_offsets[k] = i;
+					_offsets[k + 1] = colon;
+					_offsets[k + 2] = valueStart;
+					_offsets[k + 3] = eol;
+				}
+			}
+			i = nextLine(b, eol, length);
+		}
+	}
+
+	private static int lineEnd(byte[] b, int i, int length) {
+		while (i < length && b[i] != '\r' && b[i] != '\n') ++i;
+		return i;
+	}
+
+	private static int nextLine(byte[] b, int i, int length) {
+		i = lineEnd(b, i, length);
+		if (i < length && b[i] == '\r') ++i;
+		if (i < length && b[i] == '\n') ++i;
+		return i;
+	}
+
+	int getStatus() {
+		return _status;
+	}
+
+	/**
+	 * @return Index of the header or -1 if not present.
+	 */
+	int indexOf(String name) {
+		final byte[] b = _buffer;
+		outer: for (int h = 0; h < _count; ++h) {
+			int start = _offsets[4 * h], end = _offsets[4 * h + 1];
+			if (end - start == name.length()) {
+				for (int i = 0; i < name.length(); ++i) {
+					int c = b[start + i];
+					if (c != name.charAt(i) && Character.toLowerCase(c) != Character.toLowerCase(name.charAt(i))) {
+						continue outer;
+					}
+				}
+				return h;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The numeric value of the header or the default value if absent or not a number.
+	 */
+	long getLong(String name, long defaultValue) {
+		int h = indexOf(name);
+		if (h < 0) {
+			return defaultValue;
+		}
+		long value = 0;
+		int i = _offsets[4 * h + 2], end = _offsets[4 * h + 3];
+		if (i == end) {
+			return defaultValue;
+		}
+		for (; i < end; ++i) {
+			int c = _buffer[i];
+			if (c < '0' || c > '9') {
+				return defaultValue;
+			}
+			value = value * 10 + c - '0';
+		}
+		return value;
+	}
+
+	int getInt(String name, int defaultValue) {
+		return (int) getLong(name, defaultValue);
+	}
+
+	/**
+	 * @return The ISTag without quotes or null if absent.
+	 */
+	String getISTag() {
+		int h = indexOf("ISTag");
+		if (h < 0) {
+			return null;
+		}
+		int start = _offsets[4 * h + 2], end = _offsets[4 * h + 3];
+		if (end - start > 1 && _buffer[start] == '"' && _buffer[end - 1] == '"') {
+			++start;
+			--end;
+		}
+		boolean same = _ISTagBytes.length == end - start;
+		for (int i = 0; same && i < _ISTagBytes.length; ++i) {
+			same = _ISTagBytes[i] == _buffer[start + i];
+		}
+		if (!same) {
+			_ISTagBytes = new byte[end - start];
+			System.arraycopy(_buffer, start, _ISTagBytes, 0, _ISTagBytes.length);
+			_ISTag = new String(_ISTagBytes, StandardCharsets.ISO_8859_1);
+		}
+		return _ISTag;
+	}
+
+	/**
+	 * @return The offset of the encapsulated body (i.e. the length of the encapsulated headers) or 0.
+	 */
+	int getEncapsulatedBodyOffset() {
+		int h = indexOf("Encapsulated");
+		return h < 0 ? 0 : parseEncapsulated(h, false);
+	}
+
+	/**
+	 * @return Whether an encapsulated body follows (res-body, req-body or opt-body rather than null-body).
+	 */
+	boolean hasEncapsulatedBody() {
+		int h = indexOf("Encapsulated");
+		return h >= 0 && parseEncapsulated(h, true) != 0;
+	}
+
+	private int parseEncapsulated(int h, boolean hasBody) {
+		// e.g. "res-hdr=0, res-body=108" or "null-body=0"
+		final byte[] b = _buffer;
+		int result = 0;
+		for (int i = _offsets[4 * h + 2], end = _offsets[4 * h + 3]; i < end;) {
+			int eq = i;
+			while (eq < end && b[eq] != '=') ++eq;
+			boolean body = eq - i >= 5 && b[eq - 4] == 'b' && b[eq - 3] == 'o' && b[eq - 2] == 'd' && b[eq - 1] == 'y';
+			boolean nullBody = body && eq - i == 9 && b[i] == 'n';
+			int value = 0;
+			for (i = eq + 1; i < end && b[i] >= '0' && b[i] <= '9'; ++i) {
+				value = value * 10 + b[i] - '0';
+			}
+			if (body) {
+				result = hasBody ? (nullBody ? 0 : 1) : value;
+			}
+			while (i < end && (b[i] == ',' || b[i] == ' ')) ++i;
+		}
+		return result;
+	}
+
+	/**
+	 * Parses the hex chunk size up to an optional chunk extension.
+	 */
+	static long parseChunkSize(byte[] b, int start, int end) throws ICAPException {
+		long size = 0L;
+		int i = start;
+		while (i < end && b[i] == ' ') ++i;
+		int digits = 0;
+		for (; i < end; ++i, ++digits) {
+			int c = b[i], d;
+			if (c >= '0' && c <= '9') {
+				d = c - '0';
+			} else if (c >= 'a' && c <= 'f') {
+				d = c - 'a' + 10;
+			} else if (c >= 'A' && c <= 'F') {
+				d = c - 'A' + 10;
+			} else {
+				break;
+			}
+			size = size << 4 | d;
+		}
+		if (digits == 0 || digits > 15) {
+			throw new ICAPException("Invalid chunk size");
+		}
+		return size;
+	}
+
+	private String value(int h) {
+		int start = _offsets[4 * h + 2], end = _offsets[4 * h + 3];
+		StringBuilder value = null;
+		for (int i = start; i < end; ++i) {
+			if (_buffer[i] == '\r' || _buffer[i] == '\n') {
+				if (value == null) {
+					value = new StringBuilder(end - start);
+					value.append(new String(_buffer, start, i - start, StandardCharsets.UTF_8));
+				}
+			} else if (value != null) {
+				value.append((char) (_buffer[i] & 0xFF));
+			}
+		}
+		return value != null ? value.toString() : new String(_buffer, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return STATUS_CODE.equals(key) || key instanceof String && indexOf((String) key) >= 0;
+	}
+
+	@Override
+	public String get(Object key) {
+		if (STATUS_CODE.equals(key)) {
+			return Integer.toString(_status);
+		}
+		int h = key instanceof String ? indexOf((String) key) : -1;
+		return h >= 0 ? value(h) : null;
+	}
+
+	@Override
+	public int size() {
+		return _count + 1;
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		Map<String, String> map = new LinkedHashMap<>();
+		map.put(STATUS_CODE, Integer.toString(_status));
+		for (int h = 0; h < _count; ++h) {
+			int start = _offsets[4 * h];
+			map.put(new String(_buffer, start, _offsets[4 * h + 1] - start, StandardCharsets.ISO_8859_1), value(h));
+		}
+		return map.entrySet();
+	}
+
+}
@@ -15,59 +15,768 @@
  */
 package com.artofarc.esb.icap;
 
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.mail.internet.MimeBodyPart;
 
 import com.artofarc.esb.action.Action;
 import com.artofarc.esb.action.ExecutionException;
 import com.artofarc.esb.context.Context;
 import com.artofarc.esb.context.ExecutionContext;
+import com.artofarc.esb.context.GlobalContext;
 import com.artofarc.esb.http.HttpConstants;
+import com.artofarc.esb.message.BodyType;
 import com.artofarc.esb.message.ESBConstants;
 import com.artofarc.esb.message.ESBMessage;
+import com.artofarc.util.IOUtils;
+import com.artofarc.util.SpillOutputStream;
+import com.artofarc.util.TeeInputStream;
 
 public class ScanForVirusAction extends Action {
 
-	private final ICAPConnectionData icapConnectionData;
-	private final Integer maxIdleTime;
+	private final ICAPLoadBalancer loadBalancer;
 	private final ICAP.ScanEngine scanEngine;
+	private final boolean async, coalesced, scanAttachments, tee;
+	private final int spillThreshold;
+	// what happens when the concurrency limit of all servers is reached
+	private final Overflow overflow;
+	// per server, whether a pool with different settings has been reported
+	private final boolean[] settingsReported;
+
+	private enum Overflow {
+		/**
+		 * Wait in the bounded queue of the server for at most ICAPMaxWait.
+		 */
+		queue,
+		/**
+		 * Fail with an {@link ICAPOverloadException}.
+		 */
+		reject,
+		/**
+		 * Let the message pass unscanned, the variable scanSkipped is set.
+		 */
+		failOpen
+	}
 
 	public ScanForVirusAction(ClassLoader classLoader, Properties properties) throws ReflectiveOperationException {
 		_pipelineStop = true;
-		icapConnectionData = new ICAPConnectionData(properties.getProperty("ICAPRemoteHost"), properties.getProperty("ICAPRemotePort"), properties.getProperty("ICAPRemoteURI"));
-		String iCAPMaxIdleTime = properties.getProperty("ICAPMaxIdleTime");
-		maxIdleTime = iCAPMaxIdleTime != null ? Integer.valueOf(iCAPMaxIdleTime) : null;
+		loadBalancer = new ICAPLoadBalancer(properties);
 		scanEngine = (ICAP.ScanEngine) classLoader.loadClass(properties.getProperty("ICAPScanEngine", "com.artofarc.esb.icap.ICAP$ScanEngine")).newInstance();
+		async = Boolean.parseBoolean(properties.getProperty("ICAPAsync"));
+		scanAttachments = Boolean.parseBoolean(properties.getProperty("ICAPScanAttachments"));
+		tee = Boolean.parseBoolean(properties.getProperty("ICAPTee"));
+		spillThreshold = Integer.parseInt(properties.getProperty("ICAPSpillThreshold", "1048576"));
+		overflow = Overflow.valueOf(properties.getProperty("ICAPOverflow", Overflow.queue.name()));
+		coalesced = Boolean.parseBoolean(properties.getProperty("ICAPCoalesce"));
+		settingsReported = new boolean[loadBalancer.size()];
 	}
 
-	@Override
-	protected void execute(Context context, ExecutionContext execContext, ESBMessage message, boolean nextActionIsPipelineStop) throws Exception {
+	/**
+	 * Pools are shared by all actions using the same server and have the settings of the action which came first.
+	 */
+	private ICAPConnectionPool getPool(ICAPConnectionFactory factory, int index) {
+		ICAPConnectionData server = loadBalancer.getServer(index);
+		ICAPConnectionPool pool = factory.getResource(server);
+		if (!settingsReported[index] && !server.hasSameSettings(pool.getICAPConnectionData())) {
+			settingsReported[index] = true;
+			logger.warn("ICAP server " + server + " is configured differently elsewhere, the settings of the first configuration apply");
+		}
+		return pool;
+	}
+
+	/**
+	 * The content is identified by its SHA-256 for coalescing or if the pool of any server has a cache. The pool decides
+	 * because it might have been created by another action.
+	 */
+	private boolean isDigested(ICAPConnectionFactory factory) {
+		if (coalesced) {
+			return true;
+		}
+		for (int i = 0; i < loadBalancer.size(); ++i) {
+			if (getPool(factory, i).getScanResultCache() != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String getFilename(ESBMessage message) throws ExecutionException {
 		String filename = message.getVariable(ESBConstants.filename);
 		if (filename == null) {
 			throw new ExecutionException(this, "filename must be set");
 		}
-		String ISTag = message.getVariable("ISTag");
-		ICAPConnectionFactory resourceFactory = context.getResourceFactory(ICAPConnectionFactory.class);
-		ICAP icap = resourceFactory.getResource(icapConnectionData, scanEngine);
-		if (maxIdleTime != null && icap.getIdleTime() > maxIdleTime) {
-			resourceFactory.close(icapConnectionData);
-			icap = resourceFactory.getResource(icapConnectionData, scanEngine);
+		return filename;
+	}
+
+	/**
+	 * Bodies already in memory or backed by a file are sent without copying.
+	 */
+	private static boolean scan(ICAP icap, String filename, Context context, ESBMessage message) throws Exception {
+		if (message.getBodyType() == BodyType.BYTES) {
+			return icap.scanFile(filename, ByteBuffer.wrap(message.<byte[]> getBody()));
+		}
+		if (isFile(message)) {
+			return icap.scanFile(filename, message.<FileInputStream> getBody().getChannel());
 		}
+		return icap.scanFile(filename, getSource(context, message));
+	}
+
+	private static boolean isFile(ESBMessage message) {
+		return message.getBodyType() == BodyType.INPUT_STREAM && message.getBody() instanceof FileInputStream;
+	}
+
+	/**
+	 * Copies a stream to a spill buffer, the cache key is computed on the way if digested.
+	 * @param key Receives the cache key at index 0.
+	 */
+	private SpillOutputStream spill(InputStream inputStream, boolean digested, String[] key) throws IOException {
+		SpillOutputStream spill = new SpillOutputStream(spillThreshold);
 		try {
-			if (ISTag != null && ISTag.equals(icap.getISTag())) {
-				message.putVariable("scanResult", true);
-				message.reset(null, null);
+			if (digested) {
+				key[0] = ScanResultCache.digest(inputStream, spill);
 			} else {
-				boolean result = icap.scanFile(filename, message.getBodyAsInputStream(context));
-				message.reset(null, icap.getResponseText());
+				IOUtils.copy(inputStream, spill);
+			}
+		} catch (IOException e) {
+			spill.discard();
+			throw e;
+		}
+		return spill;
+	}
+
+	/**
+	 * Makes the body repeatable without reading it into the heap as a whole. A stream is replaced by its spilled copy,
+	 * which is a file beyond ICAPSpillThreshold and thus sent zero-copy like a body backed by a file already.
+	 * @return The cache key if digested.
+	 */
+	private String spill(Context context, ESBMessage message, boolean digested) throws Exception {
+		if (message.getBodyType() == BodyType.BYTES) {
+			return digested ? ScanResultCache.digest(ByteBuffer.wrap(message.<byte[]> getBody())) : null;
+		}
+		if (isFile(message)) {
+			return digested ? ScanResultCache.digest(message.<FileInputStream> getBody().getChannel()) : null;
+		}
+		String[] key = new String[1];
+		SpillOutputStream spill = spill(message.getBodyAsInputStream(context), digested, key);
+		if (spill.isSpilled()) {
+			message.reset(BodyType.INPUT_STREAM, spill.getInputStream());
+		} else {
+			message.reset(BodyType.BYTES, spill.toByteArray());
+		}
+		return key[0];
+	}
+
+	/**
+	 * @return The body of a message after {@link #spill(Context, ESBMessage, boolean)}, a file is mapped into memory.
+	 */
+	private static ByteBuffer getByteBuffer(ESBMessage message) throws IOException {
+		if (message.getBodyType() == BodyType.BYTES) {
+			return ByteBuffer.wrap(message.<byte[]> getBody());
+		}
+		FileChannel fileChannel = message.<FileInputStream> getBody().getChannel();
+		return fileChannel.map(FileChannel.MapMode.READ_ONLY, fileChannel.position(), fileChannel.size() - fileChannel.position());
+	}
+
+	/**
+	 * In tee mode a clean body is left untouched for the next action, otherwise it is replaced by the response text.
+	 */
+	private void setScanResult(ESBMessage message, ScanResult result) {
+		if (result == null) {
+			// already scanned with the current signatures
+			message.putVariable("scanResult", true);
+			if (!tee) {
+				closeBody(message);
+				message.reset(null, null);
+			}
+		} else {
+			if (!tee || !result.isClean()) {
+				closeBody(message);
+				message.reset(null, result.getResponseText());
 				message.putHeader(HttpConstants.HTTP_HEADER_CONTENT_TYPE, HttpConstants.HTTP_HEADER_CONTENT_TYPE_TEXT);
-				message.putVariable("ISTag", icap.getISTag());
-				message.putVariable("scanResult", result);
 			}
+			if (result.isScanned()) {
+				message.putVariable("ISTag", result.getISTag());
+			} else {
+				message.putVariable("scanSkipped", true);
+			}
+			message.putVariable("scanResult", result.isClean());
+		}
+	}
+
+	/**
+	 * Closes a body before it is replaced, a spilled copy deletes its temporary file then.
+	 */
+	private static void closeBody(ESBMessage message) {
+		if (message.getBodyType() == BodyType.INPUT_STREAM) {
+			try {
+				message.<InputStream> getBody().close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Files listed in Transfer-Ignore are not sent, so there is no verdict to cache or to share.
+	 */
+	private static boolean isIgnored(ICAPOptions options, String filename) {
+		return options != null && options.getTransfer(filename) == ICAPOptions.TRANSFER_IGNORE;
+	}
+
+	/**
+	 * Scans a stream while copying it to a spill buffer, so no extra pass is needed to keep the body. If the scan ends
+	 * early, e.g. with a verdict after the preview or with an error, the rest of the stream is copied, too. The message
+	 * gets the copy unless the body is infected, which is thus never handed on.
+	 */
+	private boolean scanAndKeep(ICAP icap, String filename, Context context, ESBMessage message) throws Exception {
+		SpillOutputStream spill = new SpillOutputStream(spillThreshold);
+		TeeInputStream inputStream;
+		try {
+			inputStream = new TeeInputStream(message.getBodyAsInputStream(context), spill);
+		} catch (IOException e) {
+			spill.discard();
+			throw new SourceException(e);
+		}
+		boolean clean;
+		try {
+			// failures writing the copy are no fault of the server either
+			clean = icap.scanFile(filename, new SourceInputStream(inputStream));
+		} catch (SourceException e) {
+			spill.discard();
+			throw e;
+		} catch (IOException e) {
+			// keep the body for the next server
+			keep(message, inputStream, spill);
+			throw e;
 		} catch (Exception e) {
-			// Underlying socket connection might be corrupt
-			resourceFactory.close(icapConnectionData);
+			spill.discard();
 			throw e;
 		}
+		if (clean) {
+			keep(message, inputStream, spill);
+		} else {
+			spill.discard();
+		}
+		return clean;
+	}
+
+	private static void keep(ESBMessage message, TeeInputStream inputStream, SpillOutputStream spill) throws IOException {
+		try {
+			inputStream.drain();
+		} catch (IOException e) {
+			spill.discard();
+			throw new SourceException(e);
+		}
+		// a spilled copy is a FileInputStream and thus sent zero-copy when retried
+		message.reset(BodyType.INPUT_STREAM, spill.getInputStream());
+	}
+
+	private static InputStream getSource(Context context, ESBMessage message) throws SourceException {
+		try {
+			return new SourceInputStream(message.getBodyAsInputStream(context));
+		} catch (Exception e) {
+			throw new SourceException(e);
+		}
+	}
+
+	/**
+	 * A failure reading the message rather than talking to the server. It must neither quarantine the server nor
+	 * lead to a failover, as the next server would fail the same way.
+	 */
+	private static final class SourceException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		SourceException(Exception cause) {
+			super(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Tags the exceptions of the message body, so that they can be told apart from those of the socket.
+	 */
+	private static final class SourceInputStream extends FilterInputStream {
+
+		SourceInputStream(InputStream inputStream) {
+			super(inputStream);
+		}
+
+		@Override
+		public int read() throws IOException {
+			try {
+				return in.read();
+			} catch (IOException e) {
+				throw new SourceException(e);
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			try {
+				return in.read(b, off, len);
+			} catch (IOException e) {
+				throw new SourceException(e);
+			}
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			try {
+				return in.skip(n);
+			} catch (IOException e) {
+				throw new SourceException(e);
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			try {
+				return in.available();
+			} catch (IOException e) {
+				throw new SourceException(e);
+			}
+		}
+	}
+
+	/**
+	 * Hands the outcome of a coalesced scan over to the waiting requests.
+	 */
+	private static void land(ICAPConnectionPool pool, String key, CompletableFuture<ScanResult> flight, ScanResult result, Throwable e) {
+		if (flight != null) {
+			pool.leaveScan(key, flight);
+			if (e != null) {
+				flight.completeExceptionally(e);
+			} else {
+				flight.complete(result);
+			}
+		}
+	}
+
+	/**
+	 * Pass the concurrency limiter of the server. In async mode there must be no waiting, so queueing is left to the
+	 * {@link ICAPMultiplexer} then.
+	 * @throws ICAPOverloadException If the limit is reached and cannot be waited for.
+	 */
+	private void admit(ICAPConnectionPool pool, boolean async) throws ICAPOverloadException {
+		ICAPConcurrencyLimiter limiter = pool.getLimiter();
+		boolean admitted;
+		if (overflow != Overflow.queue) {
+			admitted = limiter.tryAcquire();
+		} else if (async) {
+			limiter.forceAcquire();
+			admitted = true;
+		} else {
+			try {
+				admitted = limiter.acquire(pool.getICAPConnectionData().getMaxWait());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ICAPOverloadException("Interrupted while waiting for ICAP server " + pool.getICAPConnectionData());
+			}
+		}
+		if (!admitted) {
+			throw new ICAPOverloadException("Concurrency limit reached for ICAP server " + pool.getICAPConnectionData());
+		}
+	}
+
+	/**
+	 * @return Whether the message may pass unscanned.
+	 */
+	private boolean failOpen(ESBMessage message, Throwable e) {
+		if (overflow == Overflow.failOpen && e instanceof ICAPOverloadException) {
+			logger.warn("Message passed unscanned: " + e.getMessage());
+			message.putVariable("scanSkipped", true);
+			message.putVariable("scanResult", true);
+			return true;
+		}
+		return false;
+	}
+
+	private static <T> CompletableFuture<T> failedFuture(Throwable e) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(e);
+		return future;
+	}
+
+	/**
+	 * In async mode the exchange is handed over to the {@link ICAPMultiplexer} here, so no socket IO happens on the worker thread.
+	 */
+	@Override
+	protected ExecutionContext prepare(Context context, ESBMessage message, boolean inPipeline) throws Exception {
+		if (scanAttachments) {
+			return new ExecutionContext(new AttachmentScan(context.getGlobalContext(), message));
+		}
+		if (async) {
+			String filename = getFilename(message);
+			String key = spill(context, message, isDigested(context.getGlobalContext().getResourceFactory(ICAPConnectionFactory.class)));
+			return new ExecutionContext(new AsyncScan(context.getGlobalContext(), filename, getByteBuffer(message), key, message.getVariable("ISTag"), null).start(null));
+		}
+		return super.prepare(context, message, inPipeline);
+	}
+
+	/**
+	 * One scan on its way through the {@link ICAPMultiplexer}s. It fails over to the next server when the exchange fails.
+	 */
+	private final class AsyncScan {
+		final GlobalContext globalContext;
+		final String filename, key, ISTag;
+		final ByteBuffer body;
+		final boolean[] tried = new boolean[loadBalancer.size()];
+		// receives the futures of the exchanges so that they can be cancelled
+		final Collection<CompletableFuture<ScanResult>> exchanges;
+
+		AsyncScan(GlobalContext globalContext, String filename, ByteBuffer body, String key, String ISTag, Collection<CompletableFuture<ScanResult>> exchanges) {
+			this.globalContext = globalContext;
+			this.filename = filename;
+			this.body = body;
+			this.key = key;
+			this.ISTag = ISTag;
+			this.exchanges = exchanges;
+		}
+
+		/**
+		 * @return A future completed with null if the ISTag is unchanged.
+		 */
+		CompletableFuture<ScanResult> start(Throwable lastException) {
+			ICAPConnectionFactory factory = globalContext.getResourceFactory(ICAPConnectionFactory.class);
+			int index = loadBalancer.select(factory, tried);
+			if (index < 0) {
+				return failedFuture(lastException);
+			}
+			ICAPConnectionData server = loadBalancer.getServer(index);
+			ICAPConnectionPool pool = getPool(factory, index);
+			if (isIgnored(pool.getOptions(), filename)) {
+				return CompletableFuture.completedFuture(ScanResult.NOT_SCANNED);
+			}
+			ICAPMultiplexer multiplexer;
+			try {
+				multiplexer = globalContext.getResourceFactory(ICAPMultiplexerFactory.class).getResource(server, pool);
+			} catch (IOException e) {
+				pool.quarantine(loadBalancer.getQuarantineTime());
+				return start(e);
+			}
+			String currentISTag = multiplexer.getISTag();
+			if (ISTag != null && ISTag.equals(currentISTag)) {
+				return CompletableFuture.completedFuture(null);
+			}
+			// without a key the content is unknown
+			ScanResultCache cache = key != null ? pool.getScanResultCache() : null;
+			if (cache != null) {
+				ScanResult result = cache.get(key, currentISTag);
+				if (result != null) {
+					return CompletableFuture.completedFuture(result);
+				}
+			}
+			CompletableFuture<ScanResult> flight = coalesced ? new CompletableFuture<>() : null;
+			if (flight != null) {
+				CompletableFuture<ScanResult> leader = pool.joinScan(key, flight);
+				if (leader != null) {
+					return leader.handle((result, e) -> {
+						if (result != null && result.isScanned()) {
+							return CompletableFuture.completedFuture(result);
+						}
+						Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+						if (cause == null || cause instanceof CancellationException) {
+							// no verdict for us, either cancelled, not sent or the ISTag of the leader's message was current
+							tried[index] = false;
+							return start(lastException);
+						}
+						// the leader has already dealt with the server, try the next one
+						return cause instanceof IOException ? start(cause) : ScanForVirusAction.<ScanResult> failedFuture(cause);
+					}).thenCompose(future -> future);
+				}
+			}
+			try {
+				admit(pool, true);
+			} catch (ICAPOverloadException e) {
+				land(pool, key, flight, null, e);
+				return start(e);
+			}
+			long start = pool.scanStarted();
+			CompletableFuture<ScanResult> exchange = multiplexer.scan(filename, body.duplicate(), scanEngine);
+			if (exchanges != null) {
+				exchanges.add(exchange);
+			}
+			if (flight != null) {
+				exchange.whenComplete((result, e) -> {
+					pool.leaveScan(key, flight);
+					if (e == null) {
+						flight.complete(result);
+					} else {
+						flight.completeExceptionally(e);
+					}
+				});
+			}
+			return exchange.handle((result, e) -> {
+				if (e == null && !result.isScanned()) {
+					// not sent, the server learned about Transfer-Ignore meanwhile
+					pool.scanAborted();
+					return CompletableFuture.completedFuture(result);
+				}
+				if (e == null) {
+					pool.scanSucceeded(start, result.getPreviewLatency(), result.getISTag());
+					if (cache != null) {
+						cache.put(key, result);
+					}
+					return CompletableFuture.completedFuture(result);
+				}
+				Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+				if (cause instanceof IOException) {
+					pool.scanFailed(loadBalancer.getQuarantineTime());
+					logger.warn("ICAP server failed: " + server, cause);
+					return start(cause);
+				}
+				pool.scanAborted();
+				return ScanForVirusAction.<ScanResult> failedFuture(cause);
+			}).thenCompose(future -> future);
+		}
+	}
+
+	/**
+	 * Scans all attachments concurrently. The first infection or error decides, the remaining scans are cancelled then.
+	 */
+	private final class AttachmentScan {
+		final Map<String, CompletableFuture<ScanResult>> results = new LinkedHashMap<>();
+		final Collection<CompletableFuture<ScanResult>> exchanges = new ConcurrentLinkedQueue<>();
+		// completed by the first infection or error
+		final CompletableFuture<ScanResult> decisive = new CompletableFuture<>();
+
+		AttachmentScan(GlobalContext globalContext, ESBMessage message) throws Exception {
+			String ISTag = message.getVariable("ISTag");
+			boolean digested = isDigested(globalContext.getResourceFactory(ICAPConnectionFactory.class));
+			for (Map.Entry<String, MimeBodyPart> entry : message.getAttachments().entrySet()) {
+				MimeBodyPart bodyPart = entry.getValue();
+				String filename = bodyPart.getFileName();
+				if (filename == null) {
+					filename = entry.getKey();
+				}
+				String[] key = new String[1];
+				// Each scan starts as soon as its attachment is read
+				ByteBuffer body = spill(bodyPart.getInputStream(), digested, key).getByteBuffer();
+				CompletableFuture<ScanResult> future = new AsyncScan(globalContext, filename, body, key[0], ISTag, exchanges).start(null);
+				future.whenComplete((result, e) -> {
+					if (e != null) {
+						decisive.completeExceptionally(e);
+					} else if (result != null && !result.isClean()) {
+						decisive.complete(result);
+					}
+				});
+				results.put(entry.getKey(), future);
+				if (decisive.isDone()) {
+					break;
+				}
+			}
+		}
+
+		void execute(ESBMessage message) throws Exception {
+			CompletableFuture<Void> all = CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[results.size()]));
+			try {
+				CompletableFuture.anyOf(decisive, all).join();
+			} catch (CompletionException e) {
+				cancel();
+				if (failOpen(message, e.getCause())) {
+					return;
+				}
+				throw (Exception) e.getCause();
+			}
+			ScanResult infected = decisive.getNow(null);
+			if (infected != null) {
+				cancel();
+			}
+			Map<String, Boolean> scanResults = new LinkedHashMap<>();
+			String ISTag = null;
+			for (Map.Entry<String, CompletableFuture<ScanResult>> entry : results.entrySet()) {
+				CompletableFuture<ScanResult> future = entry.getValue();
+				if (future.isDone() && !future.isCompletedExceptionally()) {
+					ScanResult result = future.join();
+					// null means already scanned with the current signatures
+					scanResults.put(entry.getKey(), result == null || result.isClean());
+					if (result != null && result.isScanned()) {
+						ISTag = result.getISTag();
+					}
+				}
+			}
+			message.putVariable("scanResults", scanResults);
+			if (infected != null) {
+				setScanResult(message, infected);
+			} else {
+				// the message stays as it is
+				if (ISTag != null) {
+					message.putVariable("ISTag", ISTag);
+				}
+				message.putVariable("scanResult", true);
+			}
+		}
+
+		private void cancel() {
+			for (CompletableFuture<ScanResult> exchange : exchanges) {
+				exchange.cancel(false);
+			}
+		}
+	}
+
+	@Override
+	protected void execute(Context context, ExecutionContext execContext, ESBMessage message, boolean nextActionIsPipelineStop) throws Exception {
+		if (scanAttachments) {
+			AttachmentScan attachmentScan = execContext.getResource();
+			attachmentScan.execute(message);
+			return;
+		}
+		if (async) {
+			CompletableFuture<ScanResult> future = execContext.getResource();
+			try {
+				setScanResult(message, future.join());
+			} catch (CompletionException e) {
+				if (!failOpen(message, e.getCause())) {
+					throw (Exception) e.getCause();
+				}
+			}
+			return;
+		}
+		String filename = getFilename(message);
+		String ISTag = message.getVariable("ISTag");
+		ICAPConnectionFactory factory = context.getGlobalContext().getResourceFactory(ICAPConnectionFactory.class);
+		String key = null;
+		if (isDigested(factory)) {
+			// the key is needed before the scan
+			key = spill(context, message, true);
+		} else if (loadBalancer.size() > 1 && !tee && message.getBodyType() != BodyType.BYTES && !isFile(message)) {
+			// a stream cannot be sent twice, in tee mode it is kept while it is scanned
+			spill(context, message, false);
+		}
+		boolean[] tried = new boolean[loadBalancer.size()];
+		IOException lastException = null;
+		for (int index; (index = loadBalancer.select(factory, tried)) >= 0;) {
+			ICAPConnectionData server = loadBalancer.getServer(index);
+			ICAPConnectionPool pool = getPool(factory, index);
+			if (isIgnored(pool.getOptions(), filename)) {
+				setScanResult(message, ScanResult.NOT_SCANNED);
+				return;
+			}
+			CompletableFuture<ScanResult> flight = coalesced ? new CompletableFuture<>() : null;
+			if (flight != null) {
+				CompletableFuture<ScanResult> leader = pool.joinScan(key, flight);
+				if (leader != null) {
+					ScanResult result;
+					try {
+						result = leader.join();
+					} catch (CancellationException e) {
+						result = null;
+					} catch (CompletionException e) {
+						if (e.getCause() instanceof IOException) {
+							// the leader has already dealt with the server, try the next one
+							lastException = (IOException) e.getCause();
+							continue;
+						}
+						throw (Exception) e.getCause();
+					}
+					if (result == null || !result.isScanned()) {
+						// no verdict for us, either cancelled, not sent or the ISTag of the leader's message was current
+						tried[index] = false;
+						continue;
+					}
+					setScanResult(message, result);
+					return;
+				}
+			}
+			try {
+				admit(pool, false);
+			} catch (ICAPOverloadException e) {
+				logger.warn(e.getMessage());
+				lastException = e;
+				land(pool, key, flight, null, e);
+				continue;
+			}
+			ICAP icap;
+			try {
+				icap = pool.borrow(scanEngine);
+			} catch (IOException e) {
+				pool.getLimiter().cancel();
+				if (!pool.isExhausted()) {
+					pool.quarantine(loadBalancer.getQuarantineTime());
+				}
+				logger.warn("ICAP server not available: " + server, e);
+				lastException = e;
+				land(pool, key, flight, null, e);
+				continue;
+			}
+			long start = pool.scanStarted();
+			ScanResult result;
+			String currentISTag;
+			// whether the verdict came from the server, only then the latency is of interest
+			boolean scanned = true;
+			try {
+				currentISTag = icap.getISTag();
+				if (isIgnored(icap.getOptions(), filename)) {
+					// the OPTIONS have just been received
+					result = ScanResult.NOT_SCANNED;
+					scanned = false;
+				} else if (ISTag != null && ISTag.equals(currentISTag)) {
+					result = null;
+					scanned = false;
+				} else if (key != null) {
+					ScanResultCache cache = pool.getScanResultCache();
+					result = cache != null ? cache.get(key, currentISTag) : null;
+					if (result != null) {
+						scanned = false;
+					} else {
+						boolean clean = scan(icap, filename, context, message);
+						result = new ScanResult(clean, icap.getResponseText(), icap.getISTag());
+						if (cache != null) {
+							cache.put(key, result);
+						}
+					}
+				} else {
+					boolean clean = tee && message.getBodyType() != BodyType.BYTES && !isFile(message) ? scanAndKeep(icap, filename, context, message) : scan(icap, filename, context, message);
+					result = new ScanResult(clean, icap.getResponseText(), icap.getISTag());
+				}
+			} catch (SourceException e) {
+				// the request is incomplete, but the server is not to blame
+				pool.invalidate(icap);
+				pool.scanAborted();
+				land(pool, key, flight, null, e);
+				throw (Exception) e.getCause();
+			} catch (IOException e) {
+				// Underlying socket connection might be corrupt
+				pool.invalidate(icap);
+				pool.scanFailed(loadBalancer.getQuarantineTime());
+				logger.warn("ICAP server failed: " + server, e);
+				lastException = e;
+				land(pool, key, flight, null, e);
+				continue;
+			} catch (Exception e) {
+				pool.invalidate(icap);
+				pool.scanAborted();
+				land(pool, key, flight, null, e);
+				throw e;
+			}
+			if (scanned) {
+				pool.scanSucceeded(start, icap.getPreviewLatency(), result.getISTag());
+			} else {
+				pool.scanAborted();
+				if (currentISTag != null) {
+					pool.setISTag(currentISTag);
+				}
+			}
+			pool.release(icap);
+			land(pool, key, flight, result, null);
+			setScanResult(message, result);
+			return;
+		}
+		if (!failOpen(message, lastException)) {
+			throw lastException;
+		}
 	}
 
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.icap;
+
+/**
+ * Verdict of a single RESPMOD exchange.
+ */
+public final class ScanResult {
+
+	/**
+	 * The file was not sent, because the server listed its type in Transfer-Ignore. It passes, but it is no verdict
+	 * about the content and thus must neither be cached nor shared with other scans of the same content.
+	 */
+	public static final ScanResult NOT_SCANNED = new ScanResult(true, null, null, false, -1L);
+
+	private final boolean _clean, _scanned;
+	private final String _responseText;
+	private final String _ISTag;
+	private final long _previewLatency;
+
+	public ScanResult(boolean clean, String responseText, String ISTag) {
+		this(clean, responseText, ISTag, true, -1L);
+	}
+
+	ScanResult(boolean clean, String responseText, String ISTag, long previewLatency) {
+		this(clean, responseText, ISTag, true, previewLatency);
+	}
+
+	private ScanResult(boolean clean, String responseText, String ISTag, boolean scanned, long previewLatency) {
+		_clean = clean;
+		_responseText = responseText;
+		_ISTag = ISTag;
+		_scanned = scanned;
+		_previewLatency = previewLatency;
+	}
+
+	/**
+	 * @return Returns true when no infection is found.
+	 */
+	public boolean isClean() {
+		return _clean;
+	}
+
+	/**
+	 * @return Whether the content has been seen by the server.
+	 */
+	public boolean isScanned() {
+		return _scanned;
+	}
+
+	/**
+	 * @return The latency of the preview phase in nanoseconds or -1 if there was no preview, as a size independent sample.
+	 */
+	long getPreviewLatency() {
+		return _previewLatency;
+	}
+
+	/**
+	 * @return The response text to a virus finding or null.
+	 */
+	public String getResponseText() {
+		return _responseText;
+	}
+
+	/**
+	 * @return The ISTag of the scan engine that produced this verdict.
+	 */
+	public String getISTag() {
+		return _ISTag;
+	}
+
+	@Override
+	public String toString() {
+		return "ScanResult [clean=" + _clean + ", scanned=" + _scanned + ", ISTag=" + _ISTag + "]";
+	}
+
+}
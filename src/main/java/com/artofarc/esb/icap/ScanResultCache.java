@@ -0,0 +1,184 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.esb.icap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.artofarc.util.IOUtils;
+
+/**
+ * LRU cache of verdicts keyed by the SHA-256 of the scanned content. All entries belong to one ISTag, i.e. a new
+ * version of scan engine or signature files clears the cache. Optionally persisted to a file when closed.
+ */
+public final class ScanResultCache implements AutoCloseable {
+
+	private final int _maxSize;
+	private final File _file;
+	private final LinkedHashMap<String, ScanResult> _cache;
+	private String _ISTag;
+
+	public ScanResultCache(int maxSize, File file) {
+		_maxSize = maxSize;
+		_file = file;
+		_cache = new LinkedHashMap<String, ScanResult>(Math.min(maxSize, 1024), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ScanResult> eldest) {
+				return size() > _maxSize;
+			}
+		};
+		if (file != null && file.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				load(in);
+			} catch (IOException e) {
+				// corrupt or foreign file, start empty
+				_cache.clear();
+			}
+		}
+	}
+
+	public static MessageDigest createMessageDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toKey(MessageDigest messageDigest) {
+		return Base64.getEncoder().encodeToString(messageDigest.digest());
+	}
+
+	/**
+	 * Copies the content, e.g. to a spill buffer, and computes the cache key in the same pass.
+	 * @return The cache key.
+	 */
+	public static String digest(InputStream inputStream, OutputStream copy) throws IOException {
+		MessageDigest messageDigest = createMessageDigest();
+		IOUtils.copy(new DigestInputStream(inputStream, messageDigest), copy);
+		return toKey(messageDigest);
+	}
+
+	/**
+	 * Computes the cache key of the content from the current position on, the position is left unchanged.
+	 */
+	public static String digest(FileChannel fileChannel) throws IOException {
+		MessageDigest messageDigest = createMessageDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		long position = fileChannel.position();
+		for (int len; (len = fileChannel.read(buffer, position)) >= 0; position += len) {
+			buffer.flip();
+			messageDigest.update(buffer);
+			buffer.clear();
+		}
+		return toKey(messageDigest);
+	}
+
+	/**
+	 * Computes the cache key of the remaining content, the position is left unchanged.
+	 */
+	public static String digest(ByteBuffer content) {
+		MessageDigest messageDigest = createMessageDigest();
+		messageDigest.update(content.duplicate());
+		return toKey(messageDigest);
+	}
+
+	/**
+	 * @param ISTag The current ISTag of the server. If it differs from the one of the cached entries they are dropped.
+	 * @return The cached verdict or null, always null without a key.
+	 */
+	public synchronized ScanResult get(String key, String ISTag) {
+		if (key == null || ISTag == null) {
+			return null;
+		}
+		if (!ISTag.equals(_ISTag)) {
+			_cache.clear();
+			_ISTag = ISTag;
+			return null;
+		}
+		return _cache.get(key);
+	}
+
+	/**
+	 * A verdict without a key is not cached.
+	 */
+	public synchronized void put(String key, ScanResult scanResult) {
+		String ISTag = scanResult.getISTag();
+		if (key != null && ISTag != null && scanResult.isScanned()) {
+			if (!ISTag.equals(_ISTag)) {
+				_cache.clear();
+				_ISTag = ISTag;
+			}
+			_cache.put(key, scanResult);
+		}
+	}
+
+	public synchronized int size() {
+		return _cache.size();
+	}
+
+	private void load(DataInputStream in) throws IOException {
+		_ISTag = in.readUTF();
+		for (int size = in.readInt(); size > 0; --size) {
+			String key = in.readUTF();
+			boolean clean = in.readBoolean();
+			String responseText = in.readBoolean() ? readString(in) : null;
+			_cache.put(key, new ScanResult(clean, responseText, _ISTag));
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] ba = new byte[in.readInt()];
+		in.readFully(ba);
+		return new String(ba, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] ba = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(ba.length);
+		out.write(ba);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (_file != null && _ISTag != null) {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_file)))) {
+				out.writeUTF(_ISTag);
+				out.writeInt(_cache.size());
+				for (Map.Entry<String, ScanResult> entry : _cache.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeBoolean(entry.getValue().isClean());
+					String responseText = entry.getValue().getResponseText();
+					out.writeBoolean(responseText != null);
+					if (responseText != null) {
+						writeString(out, responseText);
+					}
+				}
+			}
+		}
+	}
+
+}
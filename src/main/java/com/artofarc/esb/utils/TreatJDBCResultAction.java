@@ -25,9 +25,6 @@ import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 import javax.json.JsonValue;
-import javax.mail.internet.MimeBodyPart;
-import javax.mail.internet.MimeMultipart;
-import javax.mail.util.ByteArrayDataSource;
 import javax.xml.bind.DatatypeConverter;
 import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
@@ -42,6 +39,7 @@ import static com.artofarc.esb.http.HttpConstants.*;
 import com.artofarc.esb.message.BodyType;
 import com.artofarc.esb.message.ESBMessage;
 import com.artofarc.util.IOUtils;
+import com.artofarc.util.MultipartParser;
 import static com.artofarc.util.JsonFactoryHelper.*;
 
 /**
@@ -88,16 +86,13 @@ public class TreatJDBCResultAction extends Action {
 				byte[] rawMessage = DatatypeConverter.parseBase64Binary(row.getString(posMessage));
 				JsonValue msg = JsonValue.NULL;
 				if (mediaType.startsWith("multipart/")) {
-					MimeMultipart mmp = new MimeMultipart(new ByteArrayDataSource(rawMessage, contentType));
-					String start = getValueFromHttpHeader(contentType, HTTP_HEADER_CONTENT_TYPE_PARAMETER_START);
-					for (int i = 0; i < mmp.getCount(); ++i) {
-						MimeBodyPart bodyPart = (MimeBodyPart) mmp.getBodyPart(i);
-						String cid = bodyPart.getContentID();
-						if (start == null && i == 0 || start != null && start.equals(cid)) {
-							String charset = getValueFromHttpHeader(bodyPart.getContentType(), HTTP_HEADER_CONTENT_TYPE_PARAMETER_CHARSET);
-							msg = Json.createValue(new String(IOUtils.copy(bodyPart.getInputStream()), charset != null ? charset : "UTF-8"));
-							break;
-						}
+					// only the root part is of interest, the others are skipped while streaming
+					MultipartParser multipartParser = new MultipartParser(new ByteArrayInputStream(rawMessage), mediaType);
+					String start = getValueFromHttpHeader(mediaType, HTTP_HEADER_CONTENT_TYPE_PARAMETER_START);
+					MultipartParser.Part bodyPart = start != null ? multipartParser.find(start) : multipartParser.next();
+					if (bodyPart != null) {
+						String charset = getValueFromHttpHeader(bodyPart.getContentType(), HTTP_HEADER_CONTENT_TYPE_PARAMETER_CHARSET);
+						msg = Json.createValue(new String(IOUtils.copy(bodyPart.getInputStream()), charset != null ? charset : "UTF-8"));
 					}
 				} else if (isFastInfoset(mediaType)) {
 					StringWriter sw = new StringWriter();
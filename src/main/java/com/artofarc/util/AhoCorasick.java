@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick automaton over an alphabet of symbol classes, class 0 stands for any symbol not contained in a pattern.
+ * The failure links are resolved at construction, so matching is a single table lookup per symbol.
+ */
+final class AhoCorasick {
+
+	final int width;
+	// next state is delta[state * width + symbol]
+	final int[] delta;
+	// longest pattern ending in a state or -1
+	final int[] output;
+	final int[] lengths;
+	// a state stands for the prefix of length depth of pattern source
+	final int[] depth, source;
+
+	/**
+	 * @param patterns Sequences of symbol classes in the range 1 to width - 1.
+	 */
+	AhoCorasick(int[][] patterns, int width) {
+		if (patterns.length == 0) {
+			throw new IllegalArgumentException("patterns must not be empty");
+		}
+		this.width = width;
+		lengths = new int[patterns.length];
+		int maxStates = 1;
+		for (int i = 0; i < patterns.length; ++i) {
+			if (patterns[i].length == 0) {
+				throw new IllegalArgumentException("pattern must not be empty");
+			}
+			lengths[i] = patterns[i].length;
+			maxStates += patterns[i].length;
+		}
+		// trie, 0 is the root and thus never a child
+		int[] trie = new int[maxStates * width];
+		int[] output = new int[maxStates];
+		Arrays.fill(output, -1);
+		int[] depth = new int[maxStates];
+		int[] source = new int[maxStates];
+		int states = 1;
+		for (int i = 0; i < patterns.length; ++i) {
+			int state = 0;
+			for (int symbol : patterns[i]) {
+				int index = state * width + symbol;
+				if (trie[index] == 0) {
+					depth[states] = depth[state] + 1;
+					source[states] = i;
+					trie[index] = states++;
+				}
+				state = trie[index];
+			}
+			if (output[state] < 0) {
+				output[state] = i;
+			}
+		}
+		// breadth first, the failure state of a node is always shallower and thus complete
+		int[] fail = new int[states];
+		int[] queue = new int[states];
+		int head = 0, tail = 0;
+		for (int symbol = 0; symbol < width; ++symbol) {
+			if (trie[symbol] != 0) {
+				queue[tail++] = trie[symbol];
+			}
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			if (output[state] < 0) {
+				output[state] = output[fail[state]];
+			}
+			for (int symbol = 0; symbol < width; ++symbol) {
+				int index = state * width + symbol;
+				int next = trie[fail[state] * width + symbol];
+				if (trie[index] != 0) {
+					fail[trie[index]] = next;
+					queue[tail++] = trie[index];
+				} else {
+					trie[index] = next;
+				}
+			}
+		}
+		delta = Arrays.copyOf(trie, states * width);
+		this.output = Arrays.copyOf(output, states);
+		this.depth = Arrays.copyOf(depth, states);
+		this.source = Arrays.copyOf(source, states);
+	}
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Searches a set of patterns in one pass while streaming. Like {@link KMPInputStream} reads and skips stop right after
+ * a match, {@link #getMatch()} tells which pattern it was. If several patterns end at the same position the longest is
+ * reported. Matching is allocation free, bytes read beyond a match are pushed back internally.
+ */
+public final class AhoCorasickInputStream extends FilterInputStream {
+
+	public final static class Patterns {
+		final byte[][] patterns;
+		final int[] classes = new int[256];
+		final AhoCorasick automaton;
+
+		public Patterns(byte[]... patterns) {
+			this.patterns = patterns;
+			int width = 1;
+			for (byte[] pattern : patterns) {
+				for (byte b : pattern) {
+					if (classes[b & 0xff] == 0) {
+						classes[b & 0xff] = width++;
+					}
+				}
+			}
+			int[][] symbols = new int[patterns.length][];
+			for (int i = 0; i < patterns.length; ++i) {
+				symbols[i] = new int[patterns[i].length];
+				for (int j = 0; j < patterns[i].length; ++j) {
+					symbols[i][j] = classes[patterns[i][j] & 0xff];
+				}
+			}
+			automaton = new AhoCorasick(symbols, width);
+		}
+
+		public int size() {
+			return patterns.length;
+		}
+
+		public byte[] bytes(int index) {
+			return patterns[index];
+		}
+	}
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private long pos, mark;
+	private Patterns patterns;
+	private int state;
+	private int match = -1;
+	// bytes read beyond the end of a match, delivered before reading from the underlying stream again
+	private byte[] pushback;
+	private int pushbackPos, pushbackEnd;
+	private byte[] markPushback;
+
+	public AhoCorasickInputStream(InputStream inputStream) {
+		super(inputStream);
+	}
+
+	public AhoCorasickInputStream(InputStream inputStream, Patterns patterns) {
+		super(inputStream);
+		this.patterns = patterns;
+	}
+
+	public void setPatterns(Patterns patterns) {
+		this.patterns = patterns;
+		state = 0;
+		match = -1;
+	}
+
+	/**
+	 * @return Index of the pattern which ends at the current position or -1.
+	 */
+	public int getMatch() {
+		return match;
+	}
+
+	/**
+	 * @return Start position of the pattern which ends at the current position or -1.
+	 */
+	public long indexOf() {
+		return match >= 0 ? pos - patterns.automaton.lengths[match] : -1;
+	}
+
+	public long position() {
+		return pos;
+	}
+
+	/**
+	 * @return Number of bytes up to and including the end of a match, len if there is none.
+	 */
+	private int search(byte[] b, int off, int len) {
+		final int[] classes = patterns.classes;
+		final int[] delta = patterns.automaton.delta;
+		final int[] output = patterns.automaton.output;
+		final int width = patterns.automaton.width;
+		int state = this.state;
+		for (int i = off, end = off + len; i < end;) {
+			state = delta[state * width + classes[b[i++] & 0xff]];
+			if (output[state] >= 0) {
+				this.state = state;
+				match = output[state];
+				return i - off;
+			}
+		}
+		this.state = state;
+		match = -1;
+		return len;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final int c = pushbackPos < pushbackEnd ? pushback[pushbackPos++] & 0xff : in.read();
+		if (c >= 0) {
+			++pos;
+			if (patterns != null) {
+				state = patterns.automaton.delta[state * patterns.automaton.width + patterns.classes[c]];
+				match = patterns.automaton.output[state];
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Without patterns this is a plain read. With patterns the buffer is filled until the end of the next match,
+	 * len bytes or the end of stream, whichever comes first. Bytes beyond the match are kept for the next read.
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		int n = 0;
+		while (n < len) {
+			final boolean fromPushback = pushbackPos < pushbackEnd;
+			final int r;
+			if (fromPushback) {
+				r = Math.min(len - n, pushbackEnd - pushbackPos);
+				System.arraycopy(pushback, pushbackPos, b, off + n, r);
+				pushbackPos += r;
+			} else {
+				r = in.read(b, off + n, len - n);
+				if (r < 0) {
+					return n > 0 ? n : -1;
+				}
+				if (r == 0) {
+					break;
+				}
+			}
+			if (patterns == null) {
+				pos += r;
+				return n + r;
+			}
+			final int k = search(b, off + n, r);
+			pos += k;
+			n += k;
+			if (match >= 0) {
+				unread(b, off + n, r - k, fromPushback);
+				break;
+			}
+		}
+		return n;
+	}
+
+	private void unread(byte[] b, int off, int len, boolean fromPushback) {
+		if (fromPushback) {
+			pushbackPos -= len;
+		} else if (len > 0) {
+			if (pushback == null || pushback.length < len) {
+				pushback = new byte[Math.max(BUFFER_SIZE, len)];
+			}
+			System.arraycopy(b, off, pushback, 0, len);
+			pushbackPos = 0;
+			pushbackEnd = len;
+		}
+	}
+
+	/**
+	 * With patterns skipping stops at the end of the next match.
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		if (pushbackPos == pushbackEnd) {
+			if (patterns == null) {
+				long skipped = in.skip(n);
+				pos += skipped;
+				return skipped;
+			}
+			if (pushback == null) {
+				pushback = new byte[BUFFER_SIZE];
+			}
+			int r = in.read(pushback, 0, pushback.length);
+			if (r < 0) {
+				return 0;
+			}
+			pushbackPos = 0;
+			pushbackEnd = r;
+		}
+		int len = (int) Math.min(n, pushbackEnd - pushbackPos);
+		int k = patterns != null ? search(pushback, pushbackPos, len) : len;
+		pushbackPos += k;
+		pos += k;
+		return k;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return pushbackEnd - pushbackPos + in.available();
+	}
+
+	@Override
+	public void mark(int readlimit) {
+		in.mark(readlimit);
+		mark = pos;
+		markPushback = pushbackPos < pushbackEnd ? Arrays.copyOfRange(pushback, pushbackPos, pushbackEnd) : null;
+	}
+
+	@Override
+	public void reset() throws IOException {
+		in.reset();
+		pos = mark;
+		state = 0;
+		match = -1;
+		if (markPushback != null) {
+			pushback = markPushback.clone();
+			pushbackPos = 0;
+			pushbackEnd = markPushback.length;
+		} else {
+			pushbackPos = pushbackEnd = 0;
+		}
+	}
+
+}
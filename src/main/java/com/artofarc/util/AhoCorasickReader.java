@@ -0,0 +1,280 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Character counterpart of {@link AhoCorasickInputStream}. Searches a set of patterns in one pass, reads and skips
+ * stop right after a match and {@link #getMatch()} tells which pattern it was.
+ */
+public final class AhoCorasickReader extends FilterReader {
+
+	public final static class Patterns {
+		final String[] patterns;
+		// symbol classes, direct for Latin-1 and by binary search above
+		private final int[] lowClasses = new int[256];
+		private final char[] highChars;
+		private final int[] highClasses;
+		final AhoCorasick automaton;
+
+		public Patterns(String... patterns) {
+			this.patterns = patterns;
+			int width = 1;
+			StringBuilder high = new StringBuilder();
+			for (String pattern : patterns) {
+				for (int i = 0; i < pattern.length(); ++i) {
+					char c = pattern.charAt(i);
+					if (c < 256) {
+						if (lowClasses[c] == 0) {
+							lowClasses[c] = width++;
+						}
+					} else if (high.indexOf(String.valueOf(c)) < 0) {
+						high.append(c);
+					}
+				}
+			}
+			highChars = high.toString().toCharArray();
+			Arrays.sort(highChars);
+			highClasses = new int[highChars.length];
+			for (int i = 0; i < highChars.length; ++i) {
+				highClasses[i] = width++;
+			}
+			int[][] symbols = new int[patterns.length][];
+			for (int i = 0; i < patterns.length; ++i) {
+				symbols[i] = new int[patterns[i].length()];
+				for (int j = 0; j < patterns[i].length(); ++j) {
+					symbols[i][j] = classOf(patterns[i].charAt(j));
+				}
+			}
+			automaton = new AhoCorasick(symbols, width);
+		}
+
+		int classOf(char c) {
+			if (c < 256) {
+				return lowClasses[c];
+			}
+			int i = highChars.length > 0 ? Arrays.binarySearch(highChars, c) : -1;
+			return i >= 0 ? highClasses[i] : 0;
+		}
+
+		public int size() {
+			return patterns.length;
+		}
+
+		public String get(int index) {
+			return patterns[index];
+		}
+	}
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private long pos, mark;
+	private Patterns patterns;
+	private int state;
+	private int match = -1;
+	// chars read beyond the end of a match, delivered before reading from the underlying reader again
+	private char[] pushback;
+	private int pushbackPos, pushbackEnd;
+	private char[] markPushback;
+
+	public AhoCorasickReader(Reader in) {
+		super(in);
+	}
+
+	public AhoCorasickReader(Reader in, Patterns patterns) {
+		super(in);
+		this.patterns = patterns;
+	}
+
+	public void setPatterns(Patterns patterns) {
+		this.patterns = patterns;
+		state = 0;
+		match = -1;
+	}
+
+	/**
+	 * @return Index of the pattern which ends at the current position or -1.
+	 */
+	public int getMatch() {
+		return match;
+	}
+
+	/**
+	 * @return Start position of the pattern which ends at the current position or -1.
+	 */
+	public long indexOf() {
+		return match >= 0 ? pos - patterns.automaton.lengths[match] : -1;
+	}
+
+	public long position() {
+		return pos;
+	}
+
+	/**
+	 * @return Number of chars up to and including the end of a match, len if there is none.
+	 */
+	private int search(char[] cbuf, int off, int len) {
+		final Patterns patterns = this.patterns;
+		final int[] delta = patterns.automaton.delta;
+		final int[] output = patterns.automaton.output;
+		final int width = patterns.automaton.width;
+		int state = this.state;
+		for (int i = off, end = off + len; i < end;) {
+			state = delta[state * width + patterns.classOf(cbuf[i++])];
+			if (output[state] >= 0) {
+				this.state = state;
+				match = output[state];
+				return i - off;
+			}
+		}
+		this.state = state;
+		match = -1;
+		return len;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final int c = pushbackPos < pushbackEnd ? pushback[pushbackPos++] : in.read();
+		if (c >= 0) {
+			++pos;
+			if (patterns != null) {
+				state = patterns.automaton.delta[state * patterns.automaton.width + patterns.classOf((char) c)];
+				match = patterns.automaton.output[state];
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Without patterns this is a plain read. With patterns the buffer is filled until the end of the next match,
+	 * len chars or the end of stream, whichever comes first. Chars beyond the match are kept for the next read.
+	 */
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > cbuf.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		int n = 0;
+		while (n < len) {
+			final boolean fromPushback = pushbackPos < pushbackEnd;
+			final int r;
+			if (fromPushback) {
+				r = Math.min(len - n, pushbackEnd - pushbackPos);
+				System.arraycopy(pushback, pushbackPos, cbuf, off + n, r);
+				pushbackPos += r;
+			} else {
+				r = in.read(cbuf, off + n, len - n);
+				if (r < 0) {
+					return n > 0 ? n : -1;
+				}
+				if (r == 0) {
+					break;
+				}
+			}
+			if (patterns == null) {
+				pos += r;
+				return n + r;
+			}
+			final int k = search(cbuf, off + n, r);
+			pos += k;
+			n += k;
+			if (match >= 0) {
+				unread(cbuf, off + n, r - k, fromPushback);
+				break;
+			}
+		}
+		return n;
+	}
+
+	private void unread(char[] cbuf, int off, int len, boolean fromPushback) {
+		if (fromPushback) {
+			pushbackPos -= len;
+		} else if (len > 0) {
+			if (pushback == null || pushback.length < len) {
+				pushback = new char[Math.max(BUFFER_SIZE, len)];
+			}
+			System.arraycopy(cbuf, off, pushback, 0, len);
+			pushbackPos = 0;
+			pushbackEnd = len;
+		}
+	}
+
+	/**
+	 * With patterns skipping stops at the end of the next match.
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		if (pushbackPos == pushbackEnd) {
+			if (patterns == null) {
+				long skipped = in.skip(n);
+				pos += skipped;
+				return skipped;
+			}
+			if (pushback == null) {
+				pushback = new char[BUFFER_SIZE];
+			}
+			int r = in.read(pushback, 0, pushback.length);
+			if (r < 0) {
+				return 0;
+			}
+			pushbackPos = 0;
+			pushbackEnd = r;
+		}
+		int len = (int) Math.min(n, pushbackEnd - pushbackPos);
+		int k = patterns != null ? search(pushback, pushbackPos, len) : len;
+		pushbackPos += k;
+		pos += k;
+		return k;
+	}
+
+	@Override
+	public boolean ready() throws IOException {
+		return pushbackPos < pushbackEnd || in.ready();
+	}
+
+	@Override
+	public void mark(int readlimit) throws IOException {
+		in.mark(readlimit);
+		mark = pos;
+		markPushback = pushbackPos < pushbackEnd ? Arrays.copyOfRange(pushback, pushbackPos, pushbackEnd) : null;
+	}
+
+	@Override
+	public void reset() throws IOException {
+		in.reset();
+		pos = mark;
+		state = 0;
+		match = -1;
+		if (markPushback != null) {
+			pushback = markPushback.clone();
+			pushbackPos = 0;
+			pushbackEnd = markPushback.length;
+		} else {
+			pushbackPos = pushbackEnd = 0;
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffer over a stream which is divided into segments by a delimiter, shared by {@link MultipartParser} and
+ * {@link RecordSplitter}. Each byte is searched once and a segment is served as a sub-stream of the buffer, so it is
+ * never held in memory as a whole.
+ */
+final class DelimitedInputBuffer {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final InputStream in;
+	private final PatternSearch delimiter;
+	private final int delimiterLength;
+	// whether the end of stream is an error within a segment rather than its end
+	private final boolean delimiterRequired;
+	final byte[] buf;
+	int pos, limit;
+	private boolean eof;
+	// index of the next delimiter in buf or -1 if there is none before scanned
+	private int match = -1, scanned;
+
+	DelimitedInputBuffer(InputStream in, PatternSearch delimiter, boolean delimiterRequired) {
+		this.in = in;
+		this.delimiter = delimiter;
+		this.delimiterRequired = delimiterRequired;
+		delimiterLength = delimiter.length();
+		buf = new byte[Math.max(BUFFER_SIZE, 4 * delimiterLength)];
+	}
+
+	/**
+	 * Reads into buf keeping the unread bytes.
+	 * @return false at end of stream.
+	 */
+	boolean fill() throws IOException {
+		if (eof) {
+			return false;
+		}
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			if (match >= 0) {
+				match -= pos;
+			}
+			scanned = Math.max(0, scanned - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		if (limit == buf.length) {
+			throw new IOException("Buffer exhausted");
+		}
+		int len = in.read(buf, limit, buf.length - limit);
+		if (len < 0) {
+			eof = true;
+			return false;
+		}
+		limit += len;
+		return true;
+	}
+
+	/**
+	 * @return false if the stream ends before n bytes are buffered.
+	 */
+	boolean ensure(int n) throws IOException {
+		while (limit - pos < n) {
+			if (!fill()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Marks the bytes up to pos as searched after they were consumed otherwise.
+	 */
+	void consumed() {
+		scanned = Math.max(scanned, pos);
+	}
+
+	/**
+	 * @param b Target or null to skip.
+	 * @return Bytes read or skipped, -1 at the end of the segment. A delimiter is consumed then.
+	 */
+	int read(byte[] b, int off, int len) throws IOException {
+		for (;;) {
+			if (match < 0) {
+				int i = delimiter.indexOf(buf, Math.max(scanned, pos), limit);
+				if (i >= 0) {
+					match = i;
+				} else {
+					scanned = eof ? limit : Math.max(pos, limit - delimiterLength + 1);
+				}
+			}
+			int avail = available();
+			if (avail > 0) {
+				int n = Math.min(len, avail);
+				if (b != null) {
+					System.arraycopy(buf, pos, b, off, n);
+				}
+				pos += n;
+				return n;
+			}
+			if (match == pos) {
+				pos += delimiterLength;
+				match = -1;
+				scanned = pos;
+				return -1;
+			}
+			if (!fill() && pos == limit) {
+				if (delimiterRequired) {
+					throw new EOFException("Missing closing delimiter");
+				}
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * @return Bytes of the segment which can be read without blocking.
+	 */
+	int available() {
+		return Math.max(0, (match >= 0 ? match : scanned) - pos);
+	}
+
+	/**
+	 * @return The rest of the current segment as a stream.
+	 */
+	Segment segment() {
+		return new Segment();
+	}
+
+	final class Segment extends InputStream {
+		private final byte[] single = new byte[1];
+		private boolean done;
+
+		@Override
+		public int read() throws IOException {
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (done) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			int n = DelimitedInputBuffer.this.read(b, off, len);
+			if (n < 0) {
+				done = true;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if (done || n <= 0) {
+				return 0;
+			}
+			int skipped = DelimitedInputBuffer.this.read(null, 0, (int) Math.min(n, Integer.MAX_VALUE));
+			if (skipped < 0) {
+				done = true;
+				return 0;
+			}
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return done ? 0 : DelimitedInputBuffer.this.available();
+		}
+
+		/**
+		 * Skips the rest of the segment including the delimiter.
+		 */
+		void skipRest() throws IOException {
+			if (!done) {
+				while (DelimitedInputBuffer.this.read(null, 0, Integer.MAX_VALUE) >= 0);
+				done = true;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.util.Arrays;
+
+/**
+ * Boyer-Moore-Horspool, shifts by the bad character rule for the byte aligned with the end of the pattern.
+ */
+final class HorspoolSearch implements PatternSearch {
+
+	private final byte[] pattern;
+	private final int[] shifts = new int[256];
+
+	HorspoolSearch(byte[] pattern) {
+		if (pattern.length == 0) {
+			throw new IllegalArgumentException("pattern must not be empty");
+		}
+		this.pattern = pattern;
+		Arrays.fill(shifts, pattern.length);
+		for (int i = 0; i < pattern.length - 1; ++i) {
+			shifts[pattern[i] & 0xff] = pattern.length - 1 - i;
+		}
+	}
+
+	@Override
+	public int length() {
+		return pattern.length;
+	}
+
+	@Override
+	public int indexOf(byte[] b, int from, int to) {
+		final byte[] pattern = this.pattern;
+		final int last = pattern.length - 1;
+		final byte lastByte = pattern[last];
+		outer: for (int i = from, end = to - pattern.length; i <= end;) {
+			final byte c = b[i + last];
+			if (c == lastByte) {
+				for (int j = 0; j < last; ++j) {
+					if (b[i + j] != pattern[j]) {
+						i += shifts[c & 0xff];
+						continue outer;
+					}
+				}
+				return i;
+			}
+			i += shifts[c & 0xff];
+		}
+		return -1;
+	}
+
+}
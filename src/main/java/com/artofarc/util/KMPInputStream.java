@@ -18,14 +18,28 @@ package com.artofarc.util;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
+/**
+ * Searches a pattern with the Knuth-Morris-Pratt automaton while streaming. Reads and skips stop right after a match,
+ * so the stream is positioned exactly behind it. The automaton runs over whole blocks of the underlying stream, bytes
+ * read beyond a match are pushed back internally.
+ * <p>
+ * Longer patterns may use a skipping {@link PatternSearch} instead. The blocks are then searched as a whole, the last
+ * bytes of the previous block are kept to find matches spanning two blocks.
+ */
 public final class KMPInputStream extends FilterInputStream {
 
-	public final static class Pattern {
+	public final static class Pattern implements PatternSearch {
 		private final byte[] pattern;
 		private final int[] prefixes;
+		private final PatternSearch search;
 
 		public Pattern(byte[] pattern) {
+			this(pattern, Algorithm.KMP);
+		}
+
+		public Pattern(byte[] pattern, Algorithm algorithm) {
 			if (pattern.length == 0) {
 				throw new IllegalArgumentException("pattern must not be empty");
 			}
@@ -39,17 +53,54 @@ public final class KMPInputStream extends FilterInputStream {
 				}
 				prefixes[++i] = ++j;
 			}
+			search = algorithm.resolve(pattern.length) == Algorithm.KMP ? this : PatternSearch.create(pattern, algorithm);
 		}
 
 		public byte[] bytes() {
 			return pattern;
 		}
+
+		/**
+		 * @return The strategy used for block search, this for KMP.
+		 */
+		public PatternSearch search() {
+			return search;
+		}
+
+		@Override
+		public int length() {
+			return pattern.length;
+		}
+
+		@Override
+		public int indexOf(byte[] b, int from, int to) {
+			int j = 0;
+			for (int i = from; i < to;) {
+				final byte c = b[i++];
+				while (j >= 0 && c != pattern[j]) {
+					j = prefixes[j];
+				}
+				if (++j == pattern.length) {
+					return i - pattern.length;
+				}
+			}
+			return -1;
+		}
 	}
 
+	private static final int BUFFER_SIZE = 8192;
+
 	private long pos, mark;
 	private Pattern kmp;
 	private int j;
 	private boolean found;
+	// bytes read beyond the end of a match, delivered before reading from the underlying stream again
+	private byte[] pushback;
+	private int pushbackPos, pushbackEnd;
+	private byte[] markPushback;
+	// for block search, the last bytes before the current position (at most pattern length - 1) and a window to search across blocks
+	private byte[] tail, window, single;
+	private int tailLen;
 
 	public KMPInputStream(InputStream inputStream) {
 		super(inputStream);
@@ -59,6 +110,7 @@ public final class KMPInputStream extends FilterInputStream {
 		kmp = pattern;
 		j = 0;
 		found = false;
+		tailLen = 0;
 	}
 
 	public long indexOf() {
@@ -69,12 +121,87 @@ public final class KMPInputStream extends FilterInputStream {
 		return pos;
 	}
 
+	/**
+	 * Runs the automaton over the given bytes.
+	 * @return Number of bytes up to and including the end of a match, len if there is none.
+	 */
+	private int search(byte[] b, int off, int len) {
+		if (kmp.search != kmp) {
+			return searchBlock(b, off, len);
+		}
+		final byte[] pattern = kmp.pattern;
+		final int[] prefixes = kmp.prefixes;
+		int j = this.j;
+		for (int i = off, end = off + len; i < end;) {
+			final byte c = b[i++];
+			while (j >= 0 && c != pattern[j]) {
+				j = prefixes[j];
+			}
+			if (++j == pattern.length) {
+				this.j = prefixes[j];
+				found = true;
+				return i - off;
+			}
+		}
+		this.j = j;
+		found = false;
+		return len;
+	}
+
+	private int searchBlock(byte[] b, int off, int len) {
+		final PatternSearch search = kmp.search;
+		final int m = kmp.pattern.length;
+		if (tail == null || tail.length < m - 1) {
+			tail = new byte[m - 1];
+			window = new byte[2 * (m - 1)];
+		}
+		int k = -1;
+		if (tailLen > 0) {
+			// a match starting in the tail
+			int head = Math.min(len, m - 1);
+			System.arraycopy(tail, 0, window, 0, tailLen);
+			System.arraycopy(b, off, window, tailLen, head);
+			int i = search.indexOf(window, 0, tailLen + head);
+			if (i >= 0 && i < tailLen) {
+				k = i + m - tailLen;
+			}
+		}
+		if (k < 0) {
+			int i = search.indexOf(b, off, off + len);
+			if (i >= 0) {
+				k = i - off + m;
+			}
+		}
+		found = k >= 0;
+		if (!found) {
+			k = len;
+		}
+		// remember the last bytes up to the current position
+		final int keep = m - 1;
+		if (k >= keep) {
+			System.arraycopy(b, off + k - keep, tail, 0, keep);
+			tailLen = keep;
+		} else {
+			int old = Math.min(tailLen, keep - k);
+			System.arraycopy(tail, tailLen - old, tail, 0, old);
+			System.arraycopy(b, off, tail, old, k);
+			tailLen = old + k;
+		}
+		return k;
+	}
+
 	@Override
 	public int read() throws IOException {
-		final int c = in.read();
+		final int c = pushbackPos < pushbackEnd ? pushback[pushbackPos++] & 0xff : in.read();
 		if (c >= 0) {
 			++pos;
-			if (kmp != null) {
+			if (kmp != null && kmp.search != kmp) {
+				if (single == null) {
+					single = new byte[1];
+				}
+				single[0] = (byte) c;
+				searchBlock(single, 0, 1);
+			} else if (kmp != null) {
 				while (j >= 0 && (byte) c != kmp.pattern[j]) {
 					j = kmp.prefixes[j];
 				}
@@ -86,44 +213,106 @@ public final class KMPInputStream extends FilterInputStream {
 		return c;
 	}
 
+	/**
+	 * Without a pattern this is a plain read. With a pattern the buffer is filled until the end of the next match,
+	 * len bytes or the end of stream, whichever comes first. Bytes beyond the match are kept for the next read.
+	 */
 	@Override
 	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
 		if (len == 0) {
 			return 0;
 		}
-		int c = read();
-		if (c == -1) {
-			return -1;
-		}
-		b[off] = (byte) c;
-		int i = 1;
-		try {
-			for (; i < len && !found; ++i) {
-				c = read();
-				if (c == -1) {
+		int n = 0;
+		while (n < len) {
+			final boolean fromPushback = pushbackPos < pushbackEnd;
+			final int r;
+			if (fromPushback) {
+				r = Math.min(len - n, pushbackEnd - pushbackPos);
+				System.arraycopy(pushback, pushbackPos, b, off + n, r);
+				pushbackPos += r;
+			} else {
+				r = in.read(b, off + n, len - n);
+				if (r < 0) {
+					return n > 0 ? n : -1;
+				}
+				if (r == 0) {
 					break;
 				}
-				b[off + i] = (byte) c;
 			}
-		} catch (IOException e) {
+			if (kmp == null) {
+				pos += r;
+				return n + r;
+			}
+			final int k = search(b, off + n, r);
+			pos += k;
+			n += k;
+			if (found) {
+				unread(b, off + n, r - k, fromPushback);
+				break;
+			}
 		}
-		return i;
+		return n;
 	}
 
+	private void unread(byte[] b, int off, int len, boolean fromPushback) {
+		if (fromPushback) {
+			pushbackPos -= len;
+		} else if (len > 0) {
+			if (pushback == null || pushback.length < len) {
+				pushback = new byte[Math.max(BUFFER_SIZE, len)];
+			}
+			System.arraycopy(b, off, pushback, 0, len);
+			pushbackPos = 0;
+			pushbackEnd = len;
+		}
+	}
+
+	/**
+	 * With a pattern skipping stops at the end of the next match.
+	 */
 	@Override
 	public long skip(long n) throws IOException {
 		if (n <= 0) {
 			return 0;
 		}
-		long remaining = n;
-		while (read() >= 0 && --remaining > 0 && !found); // no body in this loop
-		return n - remaining;
+		if (pushbackPos == pushbackEnd) {
+			if (kmp == null) {
+				// nothing to search for
+				long skipped = in.skip(n);
+				pos += skipped;
+				return skipped;
+			}
+			if (pushback == null) {
+				pushback = new byte[BUFFER_SIZE];
+			}
+			int r = in.read(pushback, 0, pushback.length);
+			if (r < 0) {
+				return 0;
+			}
+			pushbackPos = 0;
+			pushbackEnd = r;
+		}
+		int len = (int) Math.min(n, pushbackEnd - pushbackPos);
+		int k = kmp != null ? search(pushback, pushbackPos, len) : len;
+		pushbackPos += k;
+		pos += k;
+		return k;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return pushbackEnd - pushbackPos + in.available();
 	}
 
 	@Override
 	public void mark(int readlimit) {
 		in.mark(readlimit);
 		mark = pos;
+		// the pushback buffer is refilled meanwhile
+		markPushback = pushbackPos < pushbackEnd ? Arrays.copyOfRange(pushback, pushbackPos, pushbackEnd) : null;
 	}
 
 	@Override
@@ -132,6 +321,14 @@ public final class KMPInputStream extends FilterInputStream {
 		pos = mark;
 		j = 0;
 		found = false;
+		tailLen = 0;
+		if (markPushback != null) {
+			pushback = markPushback.clone();
+			pushbackPos = 0;
+			pushbackEnd = markPushback.length;
+		} else {
+			pushbackPos = pushbackEnd = 0;
+		}
 	}
 
 }
@@ -18,7 +18,14 @@ package com.artofarc.util;
 import java.io.FilterReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 
+/**
+ * Character counterpart of {@link KMPInputStream}. Reads, skips and transfers stop right after a match, the automaton
+ * runs over whole blocks of the underlying reader with chars read beyond a match pushed back internally.
+ */
 public class KMPReader extends FilterReader {
 
 	public final static class Pattern {
@@ -41,12 +48,39 @@ public class KMPReader extends FilterReader {
 				prefixes[++i] = ++j;
 			}
 		}
+
+		public int length() {
+			return pattern.length;
+		}
+
+		/**
+		 * @return Index of the first occurrence which lies completely within from (inclusive) and to (exclusive) or -1.
+		 */
+		int indexOf(char[] cbuf, int from, int to) {
+			int j = 0;
+			for (int i = from; i < to;) {
+				final char c = cbuf[i++];
+				while (j >= 0 && c != pattern[j]) {
+					j = prefixes[j];
+				}
+				if (++j == pattern.length) {
+					return i - pattern.length;
+				}
+			}
+			return -1;
+		}
 	}
 
+	private static final int BUFFER_SIZE = 8192;
+
 	private long pos, mark;
 	private Pattern kmp;
 	private int j;
 	private boolean found;
+	// chars read beyond the end of a match, delivered before reading from the underlying reader again
+	private char[] pushback;
+	private int pushbackPos, pushbackEnd;
+	private char[] markPushback, buffer;
 
 	public KMPReader(Reader in) {
 		super(in);
@@ -66,9 +100,33 @@ public class KMPReader extends FilterReader {
 		return pos;
 	}
 
+	/**
+	 * Runs the automaton over the given chars.
+	 * @return Number of chars up to and including the end of a match, len if there is none.
+	 */
+	private int search(char[] cbuf, int off, int len) {
+		final char[] pattern = kmp.pattern;
+		final int[] prefixes = kmp.prefixes;
+		int j = this.j;
+		for (int i = off, end = off + len; i < end;) {
+			final char c = cbuf[i++];
+			while (j >= 0 && c != pattern[j]) {
+				j = prefixes[j];
+			}
+			if (++j == pattern.length) {
+				this.j = prefixes[j];
+				found = true;
+				return i - off;
+			}
+		}
+		this.j = j;
+		found = false;
+		return len;
+	}
+
 	@Override
 	public int read() throws IOException {
-		final int c = in.read();
+		final int c = pushbackPos < pushbackEnd ? pushback[pushbackPos++] : in.read();
 		if (c >= 0) {
 			++pos;
 			if (kmp != null) {
@@ -83,44 +141,151 @@ public class KMPReader extends FilterReader {
 		return c;
 	}
 
+	/**
+	 * Without a pattern this is a plain read. With a pattern the buffer is filled until the end of the next match,
+	 * len chars or the end of stream, whichever comes first. Chars beyond the match are kept for the next read.
+	 */
 	@Override
 	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > cbuf.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
 		if (len == 0) {
 			return 0;
 		}
-		int c = read();
-		if (c == -1) {
-			return -1;
-		}
-		cbuf[off] = (char) c;
-		int i = 1;
-		try {
-			for (; i < len && !found; ++i) {
-				c = read();
-				if (c == -1) {
+		int n = 0;
+		while (n < len) {
+			final boolean fromPushback = pushbackPos < pushbackEnd;
+			final int r;
+			if (fromPushback) {
+				r = Math.min(len - n, pushbackEnd - pushbackPos);
+				System.arraycopy(pushback, pushbackPos, cbuf, off + n, r);
+				pushbackPos += r;
+			} else {
+				r = in.read(cbuf, off + n, len - n);
+				if (r < 0) {
+					return n > 0 ? n : -1;
+				}
+				if (r == 0) {
 					break;
 				}
-				cbuf[off + i] = (char) c;
 			}
-		} catch (IOException e) {
+			if (kmp == null) {
+				pos += r;
+				return n + r;
+			}
+			final int k = search(cbuf, off + n, r);
+			pos += k;
+			n += k;
+			if (found) {
+				unread(cbuf, off + n, r - k, fromPushback);
+				break;
+			}
+		}
+		return n;
+	}
+
+	private void unread(char[] cbuf, int off, int len, boolean fromPushback) {
+		if (fromPushback) {
+			pushbackPos -= len;
+		} else if (len > 0) {
+			if (pushback == null || pushback.length < len) {
+				pushback = new char[Math.max(BUFFER_SIZE, len)];
+			}
+			System.arraycopy(cbuf, off, pushback, 0, len);
+			pushbackPos = 0;
+			pushbackEnd = len;
+		}
+	}
+
+	/**
+	 * Reads directly into the backing array if there is one.
+	 */
+	@Override
+	public int read(CharBuffer target) throws IOException {
+		int len;
+		if (target.hasArray()) {
+			len = read(target.array(), target.arrayOffset() + target.position(), target.remaining());
+			if (len > 0) {
+				target.position(target.position() + len);
+			}
+		} else {
+			char[] buffer = getBuffer();
+			len = read(buffer, 0, Math.min(target.remaining(), buffer.length));
+			if (len > 0) {
+				target.put(buffer, 0, len);
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Streams to the writer until the end of the next match or the end of stream if there is no pattern.
+	 * @return Number of chars transferred including the match.
+	 */
+	public long transferTo(Writer out) throws IOException {
+		char[] buffer = getBuffer();
+		long transferred = 0;
+		for (int len; (len = read(buffer, 0, buffer.length)) >= 0;) {
+			out.write(buffer, 0, len);
+			transferred += len;
+			if (found) {
+				break;
+			}
+		}
+		return transferred;
+	}
+
+	private char[] getBuffer() {
+		if (buffer == null) {
+			buffer = new char[BUFFER_SIZE];
 		}
-		return i;
+		return buffer;
 	}
 
+	/**
+	 * With a pattern skipping stops at the end of the next match.
+	 */
 	@Override
 	public long skip(long n) throws IOException {
 		if (n <= 0) {
 			return 0;
 		}
-		long remaining = n;
-		while (read() >= 0 && --remaining > 0 && !found); // no body in this loop
-		return n - remaining;
+		if (pushbackPos == pushbackEnd) {
+			if (kmp == null) {
+				// nothing to search for
+				long skipped = in.skip(n);
+				pos += skipped;
+				return skipped;
+			}
+			if (pushback == null) {
+				pushback = new char[BUFFER_SIZE];
+			}
+			int r = in.read(pushback, 0, pushback.length);
+			if (r < 0) {
+				return 0;
+			}
+			pushbackPos = 0;
+			pushbackEnd = r;
+		}
+		int len = (int) Math.min(n, pushbackEnd - pushbackPos);
+		int k = kmp != null ? search(pushback, pushbackPos, len) : len;
+		pushbackPos += k;
+		pos += k;
+		return k;
+	}
+
+	@Override
+	public boolean ready() throws IOException {
+		return pushbackPos < pushbackEnd || in.ready();
 	}
 
 	@Override
 	public void mark(int readlimit) throws IOException {
 		in.mark(readlimit);
 		mark = pos;
+		// the pushback buffer is refilled meanwhile
+		markPushback = pushbackPos < pushbackEnd ? Arrays.copyOfRange(pushback, pushbackPos, pushbackEnd) : null;
 	}
 
 	@Override
@@ -129,6 +294,13 @@ public class KMPReader extends FilterReader {
 		pos = mark;
 		j = 0;
 		found = false;
+		if (markPushback != null) {
+			pushback = markPushback.clone();
+			pushbackPos = 0;
+			pushbackEnd = markPushback.length;
+		} else {
+			pushbackPos = pushbackEnd = 0;
+		}
 	}
 
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of latencies in microseconds. Each power of two is divided into 32 buckets, so the
+ * relative error of a percentile is below 3%. Recording is a single atomic increment, percentiles are computed on read.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 5, SUB = 1 << SUB_BITS;
+	// up to 2^36us, about 19 hours
+	private static final int MAX_EXP = 36;
+	private static final long MAX_VALUE = (1L << MAX_EXP) - 1;
+
+	private final AtomicLongArray _counts = new AtomicLongArray((MAX_EXP - SUB_BITS + 1) * SUB);
+
+	private static int index(long value) {
+		if (value < SUB) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB + (int) (value >>> shift) - SUB;
+	}
+
+	/**
+	 * @return The middle of the bucket.
+	 */
+	private static long value(int index) {
+		if (index < SUB) {
+			return index;
+		}
+		int shift = index / SUB - 1;
+		return ((long) (SUB + index % SUB) << shift) + (1L << shift >> 1);
+	}
+
+	public void recordNanos(long nanos) {
+		record(nanos / 1000L);
+	}
+
+	public void record(long micros) {
+		_counts.incrementAndGet(index(Math.max(0L, Math.min(micros, MAX_VALUE))));
+	}
+
+	public long getCount() {
+		long count = 0L;
+		for (int i = 0; i < _counts.length(); ++i) {
+			count += _counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @param quantile e.g. 0.99
+	 * @return The latency in microseconds or 0 if nothing was recorded.
+	 */
+	public long getPercentile(double quantile) {
+		return getPercentiles(quantile)[0];
+	}
+
+	/**
+	 * Computes several percentiles from one consistent pass over the buckets.
+	 * @param quantiles Ascending, e.g. 0.5, 0.99, 0.999
+	 */
+	public long[] getPercentiles(double... quantiles) {
+		long[] counts = new long[_counts.length()];
+		long total = 0L;
+		for (int i = 0; i < counts.length; ++i) {
+			total += counts[i] = _counts.get(i);
+		}
+		long[] result = new long[quantiles.length];
+		if (total > 0L) {
+			long cumulative = 0L;
+			for (int i = 0, q = 0; i < counts.length && q < quantiles.length; ++i) {
+				cumulative += counts[i];
+				while (q < quantiles.length && cumulative >= (long) Math.ceil(quantiles[q] * total)) {
+					result[q++] = value(i);
+				}
+			}
+		}
+		return result;
+	}
+
+	public void reset() {
+		for (int i = 0; i < _counts.length(); ++i) {
+			_counts.set(i, 0L);
+		}
+	}
+
+}
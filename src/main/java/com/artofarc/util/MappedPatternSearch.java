@@ -0,0 +1,149 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Finds all occurrences of a pattern in a file or buffer, e.g. to index the record boundaries of a huge spooled batch
+ * file. The content is split into segments which are memory-mapped and searched in parallel on a {@link ForkJoinPool}.
+ * Each segment is searched including the first pattern length - 1 bytes of its successor, so matches spanning a
+ * segment boundary are found exactly once. Overlapping matches are reported as well.
+ */
+public final class MappedPatternSearch {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	// segments are copied from the mapping in chunks of this size to be searched with the pattern's strategy
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private MappedPatternSearch() {
+	}
+
+	/**
+	 * @return Ascending offsets of all matches in the file.
+	 */
+	public static long[] indexOf(FileChannel channel, KMPInputStream.Pattern pattern) throws IOException {
+		return indexOf(channel, pattern, ForkJoinPool.commonPool(), DEFAULT_SEGMENT_SIZE);
+	}
+
+	public static long[] indexOf(FileChannel channel, KMPInputStream.Pattern pattern, ForkJoinPool pool, int segmentSize) throws IOException {
+		try {
+			return pool.invoke(new Search(channel, null, pattern, 0L, channel.size(), channel.size(), segmentSize));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * @param buffer Usually a {@link java.nio.MappedByteBuffer}, searched from its position to its limit.
+	 * @return Ascending offsets of all matches relative to the position.
+	 */
+	public static long[] indexOf(ByteBuffer buffer, KMPInputStream.Pattern pattern, ForkJoinPool pool, int segmentSize) {
+		ByteBuffer slice = buffer.slice();
+		return pool.invoke(new Search(null, slice, pattern, 0L, slice.limit(), slice.limit(), segmentSize));
+	}
+
+	private static final class Search extends RecursiveTask<long[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private final KMPInputStream.Pattern pattern;
+		// matches must start in [start, end), size is the total length
+		private final long start, end, size;
+		private final int segmentSize;
+
+		Search(FileChannel channel, ByteBuffer buffer, KMPInputStream.Pattern pattern, long start, long end, long size, int segmentSize) {
+			this.channel = channel;
+			this.buffer = buffer;
+			this.pattern = pattern;
+			this.start = start;
+			this.end = end;
+			this.size = size;
+			this.segmentSize = segmentSize;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (end - start > segmentSize) {
+				long middle = start + (end - start) / 2;
+				Search right = new Search(channel, buffer, pattern, middle, end, size, segmentSize);
+				right.fork();
+				long[] left = new Search(channel, buffer, pattern, start, middle, size, segmentSize).compute();
+				return concat(left, right.join());
+			}
+			try {
+				return searchSegment();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private long[] searchSegment() throws IOException {
+			final int overlap = pattern.length() - 1;
+			final long limit = Math.min(end + overlap, size);
+			if (limit - start < pattern.length()) {
+				return new long[0];
+			}
+			final ByteBuffer segment;
+			if (channel != null) {
+				segment = channel.map(FileChannel.MapMode.READ_ONLY, start, limit - start);
+			} else {
+				ByteBuffer duplicate = buffer.duplicate();
+				duplicate.position((int) start).limit((int) limit);
+				segment = duplicate.slice();
+			}
+			final PatternSearch search = pattern.search();
+			final byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE + overlap, limit - start)];
+			long[] result = new long[16];
+			int count = 0;
+			for (int offset = 0, length = (int) (end - start); offset < length; offset += CHUNK_SIZE) {
+				int len = Math.min(chunk.length, segment.limit() - offset);
+				segment.position(offset);
+				segment.get(chunk, 0, len);
+				// later starts are found by the next chunk
+				int stop = Math.min(CHUNK_SIZE, length - offset);
+				for (int i = 0; (i = search.indexOf(chunk, i, len)) >= 0 && i < stop; ++i) {
+					if (count == result.length) {
+						result = Arrays.copyOf(result, count * 2);
+					}
+					result[count++] = start + offset + i;
+				}
+			}
+			return Arrays.copyOf(result, count);
+		}
+	}
+
+	private static long[] concat(long[] left, long[] right) {
+		if (right.length == 0) {
+			return left;
+		}
+		if (left.length == 0) {
+			return right;
+		}
+		long[] result = Arrays.copyOf(left, left.length + right.length);
+		System.arraycopy(right, 0, result, left.length, right.length);
+		return result;
+	}
+
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Streaming parser for MIME multipart content (RFC 2046). Parts are iterated lazily, the body of a part is a sub-stream
+ * served from a single internal buffer which ends at the next delimiter. Skipped parts are never buffered as a whole.
+ * The delimiter is searched with a sub-linear {@link PatternSearch}, typical boundaries are long enough for Two-Way.
+ */
+public final class MultipartParser {
+
+	private static final int MAX_HEADER_LINE = 16 * 1024;
+
+	public final class Part {
+		private final Map<String, String> headers;
+		private final DelimitedInputBuffer.Segment inputStream = buffer.segment();
+
+		Part(Map<String, String> headers) {
+			this.headers = Collections.unmodifiableMap(headers);
+		}
+
+		/**
+		 * @return Header names are case insensitive.
+		 */
+		public Map<String, String> getHeaders() {
+			return headers;
+		}
+
+		public String getHeader(String name) {
+			return headers.get(name);
+		}
+
+		/**
+		 * @return The Content-Type, text/plain if missing.
+		 */
+		public String getContentType() {
+			String contentType = headers.get("Content-Type");
+			return contentType != null ? contentType : "text/plain";
+		}
+
+		public String getContentID() {
+			return headers.get("Content-ID");
+		}
+
+		/**
+		 * @return The raw body, valid until the next part is requested.
+		 */
+		public InputStream getRawInputStream() {
+			return inputStream;
+		}
+
+		/**
+		 * @return The body decoded according to Content-Transfer-Encoding, valid until the next part is requested.
+		 */
+		public InputStream getInputStream() throws IOException {
+			String encoding = headers.get("Content-Transfer-Encoding");
+			if (encoding == null) {
+				return inputStream;
+			}
+			switch (encoding.trim().toLowerCase()) {
+			case "7bit":
+			case "8bit":
+			case "binary":
+				return inputStream;
+			case "base64":
+				return Base64.getMimeDecoder().wrap(inputStream);
+			case "quoted-printable":
+				return new QuotedPrintableInputStream(inputStream);
+			default:
+				throw new IOException("Unsupported Content-Transfer-Encoding: " + encoding);
+			}
+		}
+	}
+
+	private final DelimitedInputBuffer buffer;
+	private boolean closed;
+	private Part current;
+
+	/**
+	 * @param contentType Must contain the boundary parameter.
+	 */
+	public MultipartParser(InputStream in, String contentType) {
+		this(in, getBoundary(contentType));
+	}
+
+	public MultipartParser(InputStream in, byte[] boundary) {
+		// CRLF belongs to the delimiter
+		byte[] pattern = new byte[boundary.length + 4];
+		pattern[0] = '\r';
+		pattern[1] = '\n';
+		pattern[2] = '-';
+		pattern[3] = '-';
+		System.arraycopy(boundary, 0, pattern, 4, boundary.length);
+		buffer = new DelimitedInputBuffer(in, new KMPInputStream.Pattern(pattern, PatternSearch.Algorithm.AUTO).search(), true);
+		// the first delimiter may start without a preceding CRLF
+		buffer.buf[buffer.limit++] = '\r';
+		buffer.buf[buffer.limit++] = '\n';
+	}
+
+	private static byte[] getBoundary(String contentType) {
+		String boundary = getParameter(contentType, "boundary");
+		if (boundary == null) {
+			throw new IllegalArgumentException("No boundary in Content-Type: " + contentType);
+		}
+		return boundary.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return The value of a parameter of a header like Content-Type without quotes or null.
+	 */
+	public static String getParameter(String headerValue, String name) {
+		if (headerValue == null) {
+			return null;
+		}
+		for (int i = headerValue.indexOf(';'); i >= 0;) {
+			int j = headerValue.indexOf('=', i);
+			if (j < 0) {
+				break;
+			}
+			String key = headerValue.substring(i + 1, j).trim();
+			String value;
+			int next;
+			int k = j + 1;
+			while (k < headerValue.length() && headerValue.charAt(k) == ' ') {
+				++k;
+			}
+			if (k < headerValue.length() && headerValue.charAt(k) == '"') {
+				int end = headerValue.indexOf('"', k + 1);
+				if (end < 0) {
+					end = headerValue.length();
+				}
+				value = headerValue.substring(k + 1, end);
+				next = headerValue.indexOf(';', end);
+			} else {
+				next = headerValue.indexOf(';', k);
+				value = headerValue.substring(k, next < 0 ? headerValue.length() : next).trim();
+			}
+			if (key.equalsIgnoreCase(name)) {
+				return value;
+			}
+			i = next;
+		}
+		return null;
+	}
+
+	/**
+	 * Skips the rest of the current part.
+	 * @return The next part or null after the closing delimiter.
+	 */
+	public Part next() throws IOException {
+		if (closed) {
+			return null;
+		}
+		if (current == null) {
+			// preamble
+			buffer.segment().skipRest();
+		} else {
+			current.inputStream.skipRest();
+		}
+		current = null;
+		// closing delimiter or transport padding up to CRLF
+		if (!buffer.ensure(2)) {
+			throw new EOFException("Missing closing delimiter");
+		}
+		if (buffer.buf[buffer.pos] == '-' && buffer.buf[buffer.pos + 1] == '-') {
+			closed = true;
+			return null;
+		}
+		readLine();
+		Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		String name = null;
+		for (String line; !(line = readLine()).isEmpty();) {
+			if (name != null && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+				// folded
+				headers.put(name, headers.get(name) + ' ' + line.trim());
+				continue;
+			}
+			int i = line.indexOf(':');
+			if (i > 0) {
+				name = line.substring(0, i).trim();
+				headers.putIfAbsent(name, line.substring(i + 1).trim());
+			}
+		}
+		return current = new Part(headers);
+	}
+
+	/**
+	 * Skips parts until one with the given Content-ID, angle brackets are optional.
+	 * @return The part or null if there is none.
+	 */
+	public Part find(String contentID) throws IOException {
+		String id = stripAngleBrackets(contentID);
+		for (Part part; (part = next()) != null;) {
+			if (id.equals(stripAngleBrackets(part.getContentID()))) {
+				return part;
+			}
+		}
+		return null;
+	}
+
+	private static String stripAngleBrackets(String s) {
+		if (s == null) {
+			return null;
+		}
+		s = s.trim();
+		return s.length() > 1 && s.charAt(0) == '<' && s.charAt(s.length() - 1) == '>' ? s.substring(1, s.length() - 1) : s;
+	}
+
+	private String readLine() throws IOException {
+		byte[] buf = buffer.buf;
+		for (int i = buffer.pos;; ++i) {
+			if (i + 1 >= buffer.limit) {
+				if (buffer.limit - buffer.pos >= MAX_HEADER_LINE) {
+					throw new IOException("Header line too long");
+				}
+				int old = buffer.pos;
+				if (!buffer.fill()) {
+					throw new EOFException("Unexpected end of multipart");
+				}
+				i -= old - buffer.pos + 1;
+				continue;
+			}
+			if (buf[i] == '\r' && buf[i + 1] == '\n') {
+				String line = new String(buf, buffer.pos, i - buffer.pos, StandardCharsets.ISO_8859_1);
+				buffer.pos = i + 2;
+				buffer.consumed();
+				return line;
+			}
+		}
+	}
+
+	private static final class QuotedPrintableInputStream extends InputStream {
+		private final InputStream in;
+		private int pending = -1;
+
+		QuotedPrintableInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			for (;;) {
+				int c = pending >= 0 ? pending : in.read();
+				pending = -1;
+				if (c != '=') {
+					return c;
+				}
+				int c1 = in.read();
+				if (c1 == '\r') {
+					// soft line break
+					int c2 = in.read();
+					if (c2 != '\n') {
+						pending = c2;
+					}
+					continue;
+				}
+				if (c1 == '\n') {
+					continue;
+				}
+				int c2 = in.read();
+				int hi = Character.digit(c1, 16), lo = Character.digit(c2, 16);
+				if (hi < 0 || lo < 0) {
+					throw new IOException("Invalid quoted-printable encoding");
+				}
+				return hi << 4 | lo;
+			}
+		}
+	}
+
+}
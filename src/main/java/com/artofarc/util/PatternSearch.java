@@ -0,0 +1,57 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+/**
+ * Strategy to find a fixed pattern in a block of bytes. KMP looks at every byte once, Horspool and Two-Way skip
+ * ahead on mismatches and are thus sub-linear for longer patterns. Two-Way additionally stays linear in the worst case.
+ */
+public interface PatternSearch {
+
+	enum Algorithm {
+		KMP, HORSPOOL, TWO_WAY,
+		/**
+		 * KMP for very short patterns, Horspool for medium and Two-Way for long ones.
+		 */
+		AUTO;
+
+		Algorithm resolve(int length) {
+			if (this != AUTO) {
+				return this;
+			}
+			return length < 4 ? KMP : length < 32 ? HORSPOOL : TWO_WAY;
+		}
+	}
+
+	int length();
+
+	/**
+	 * @return Index of the first occurrence which lies completely within from (inclusive) and to (exclusive) or -1.
+	 */
+	int indexOf(byte[] b, int from, int to);
+
+	static PatternSearch create(byte[] pattern, Algorithm algorithm) {
+		switch (algorithm.resolve(pattern.length)) {
+		case HORSPOOL:
+			return new HorspoolSearch(pattern);
+		case TWO_WAY:
+			return new TwoWaySearch(pattern);
+		default:
+			return new KMPInputStream.Pattern(pattern);
+		}
+	}
+
+}
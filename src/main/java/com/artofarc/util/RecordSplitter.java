@@ -0,0 +1,185 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Splits a stream into records separated by a delimiter. Records are lazy sub-streams served from a single internal
+ * buffer and end before the next delimiter, so even huge records are never held in memory. A record is valid until the
+ * next one is requested, the unread rest is skipped then. A delimiter at the end of the stream does not start an empty
+ * record.
+ * <p>
+ * For parallel streams {@link #trySplit()} hands out batches of records read into memory. A batch is closed after the
+ * record which exceeds the batch size, hence memory is bounded by the number of batches in flight times the batch size
+ * plus the largest record.
+ */
+public final class RecordSplitter implements Spliterator<InputStream>, Iterator<InputStream>, Closeable {
+
+	public static final int DEFAULT_BATCH_SIZE = 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final InputStream in;
+	private final DelimitedInputBuffer buffer;
+	private final int batchSize;
+	private DelimitedInputBuffer.Segment current;
+	private long count;
+
+	public RecordSplitter(InputStream in, KMPInputStream.Pattern delimiter) {
+		this(in, delimiter, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param batchSize Bytes per split for parallel processing, 0 disables splitting.
+	 */
+	public RecordSplitter(InputStream in, KMPInputStream.Pattern delimiter, int batchSize) {
+		if (batchSize < 0) {
+			throw new IllegalArgumentException("batchSize must not be negative");
+		}
+		this.in = in;
+		this.batchSize = batchSize;
+		buffer = new DelimitedInputBuffer(in, delimiter.search(), false);
+	}
+
+	/**
+	 * @return Stream of records which closes the underlying stream when closed.
+	 */
+	public Stream<InputStream> stream(boolean parallel) {
+		return StreamSupport.stream(this, parallel).onClose(() -> {
+			try {
+				close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * @return Number of records handed out so far.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Skips the rest of the current record.
+	 */
+	@Override
+	public boolean hasNext() {
+		try {
+			if (current != null) {
+				current.skipRest();
+				current = null;
+			}
+			return buffer.pos < buffer.limit || buffer.fill();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return The next record, valid until the next one is requested.
+	 */
+	@Override
+	public InputStream next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		++count;
+		return current = buffer.segment();
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super InputStream> action) {
+		if (!hasNext()) {
+			return false;
+		}
+		action.accept(next());
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super InputStream> action) {
+		while (hasNext()) {
+			action.accept(next());
+		}
+	}
+
+	/**
+	 * @return The next records read into memory up to the batch size or null if splitting is disabled or nothing is left.
+	 */
+	@Override
+	public Spliterator<InputStream> trySplit() {
+		if (batchSize == 0) {
+			return null;
+		}
+		byte[] batch = new byte[Math.min(batchSize, BUFFER_SIZE)];
+		int[] ends = new int[16];
+		int n = 0, len = 0;
+		try {
+			while (len < batchSize && hasNext()) {
+				for (int r; (r = buffer.read(batch, len, batch.length - len)) >= 0;) {
+					if ((len += r) == batch.length) {
+						batch = Arrays.copyOf(batch, len < Integer.MAX_VALUE / 2 ? 2 * len : Integer.MAX_VALUE - 8);
+					}
+				}
+				if (n == ends.length) {
+					ends = Arrays.copyOf(ends, 2 * n);
+				}
+				ends[n++] = len;
+				++count;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (n == 0) {
+			return null;
+		}
+		InputStream[] records = new InputStream[n];
+		for (int i = 0, start = 0; i < n; start = ends[i++]) {
+			records[i] = new ByteArrayInputStream(batch, start, ends[i] - start);
+		}
+		return Spliterators.spliterator(records, 0, n, ORDERED | NONNULL);
+	}
+
+	@Override
+	public long estimateSize() {
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
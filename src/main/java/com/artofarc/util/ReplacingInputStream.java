@@ -0,0 +1,197 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Replaces a set of patterns while streaming. The patterns are matched in one pass by the automaton of
+ * {@link AhoCorasickInputStream.Patterns}. Input which may be the beginning of a match is held back, it need not be
+ * buffered since the automaton state stands for a prefix of a pattern. Memory is thus constant, however long the stream.
+ * <p>
+ * Matches do not overlap and are replaced as soon as they are complete. If several patterns end at the same position the
+ * longest is replaced, if a pattern contains another one the inner one may thus win.
+ */
+public final class ReplacingInputStream extends FilterInputStream {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final AhoCorasickInputStream.Patterns patterns;
+	private final byte[][] replacements;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int bufferPos, bufferEnd;
+	// output of the last step not yet delivered, at most the held back input and a replacement
+	private final byte[] pending;
+	private int pendingPos, pendingEnd;
+	private int state;
+	private boolean eof;
+	private long count;
+	private byte[] single, skipBuffer;
+
+	public ReplacingInputStream(InputStream in, byte[] pattern, byte[] replacement) {
+		this(in, new AhoCorasickInputStream.Patterns(pattern), replacement);
+	}
+
+	/**
+	 * @param replacements One for each pattern.
+	 */
+	public ReplacingInputStream(InputStream in, AhoCorasickInputStream.Patterns patterns, byte[]... replacements) {
+		super(in);
+		if (replacements.length != patterns.size()) {
+			throw new IllegalArgumentException("Number of replacements must match the number of patterns");
+		}
+		this.patterns = patterns;
+		this.replacements = replacements;
+		int maxPattern = 0, maxReplacement = 0;
+		for (int i = 0; i < replacements.length; ++i) {
+			maxPattern = Math.max(maxPattern, patterns.bytes(i).length);
+			maxReplacement = Math.max(maxReplacement, replacements[i].length);
+		}
+		pending = new byte[2 * maxPattern + 1 + maxReplacement];
+	}
+
+	/**
+	 * @return Number of replacements so far.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	private void emit(byte[] b, int len) {
+		System.arraycopy(b, 0, pending, pendingEnd, len);
+		pendingEnd += len;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (single == null) {
+			single = new byte[1];
+		}
+		return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		final AhoCorasick automaton = patterns.automaton;
+		final int[] classes = patterns.classes;
+		final int[] delta = automaton.delta;
+		final int[] output = automaton.output;
+		final int[] depth = automaton.depth;
+		final int[] source = automaton.source;
+		final int width = automaton.width;
+		int n = 0;
+		while (n < len) {
+			if (pendingPos < pendingEnd) {
+				int r = Math.min(len - n, pendingEnd - pendingPos);
+				System.arraycopy(pending, pendingPos, b, off + n, r);
+				n += r;
+				if ((pendingPos += r) == pendingEnd) {
+					pendingPos = pendingEnd = 0;
+				}
+				continue;
+			}
+			if (bufferPos == bufferEnd) {
+				// do not block when there is something to return
+				if (eof || n > 0) {
+					break;
+				}
+				int r = in.read(buffer, 0, buffer.length);
+				if (r < 0) {
+					eof = true;
+					emit(patterns.patterns[source[state]], depth[state]);
+					state = 0;
+				} else {
+					bufferPos = 0;
+					bufferEnd = r;
+				}
+				continue;
+			}
+			int s = state;
+			while (bufferPos < bufferEnd && n < len) {
+				final byte c = buffer[bufferPos++];
+				int t = delta[s * width + classes[c & 0xff]];
+				if ((s | t) == 0) {
+					b[off + n++] = c;
+					continue;
+				}
+				// the state stands for the input held back, release what cannot be part of a match any more
+				final int ds = depth[s], dt = depth[t];
+				if (dt == 0) {
+					emit(patterns.patterns[source[s]], ds);
+					pending[pendingEnd++] = c;
+				} else if (ds + 1 > dt) {
+					emit(patterns.patterns[source[s]], ds + 1 - dt);
+				}
+				final int o = output[t];
+				if (o >= 0) {
+					emit(patterns.patterns[source[t]], dt - automaton.lengths[o]);
+					emit(replacements[o], replacements[o].length);
+					++count;
+					t = 0;
+				}
+				s = t;
+				if (pendingEnd > 0) {
+					break;
+				}
+			}
+			state = s;
+		}
+		return n > 0 ? n : -1;
+	}
+
+	/**
+	 * Skips replaced content.
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		if (skipBuffer == null) {
+			skipBuffer = new byte[BUFFER_SIZE];
+		}
+		int r = read(skipBuffer, 0, (int) Math.min(n, BUFFER_SIZE));
+		return r < 0 ? 0 : r;
+	}
+
+	@Override
+	public int available() {
+		return pendingEnd - pendingPos;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readlimit) {
+	}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Buffers in memory up to a threshold and spills to a temporary file beyond. The file is deleted when the stream
+ * returned by {@link #getInputStream()} is closed or when this stream is discarded.
+ */
+public final class SpillOutputStream extends OutputStream {
+
+	private final int threshold;
+	private byte[] buf = new byte[256];
+	private long count;
+	private File file;
+	private OutputStream fileOutputStream;
+	private boolean closed;
+
+	public SpillOutputStream(int threshold) {
+		this.threshold = threshold;
+	}
+
+	private void ensureCapacity(int len) throws IOException {
+		if (fileOutputStream == null) {
+			if (count + len <= threshold) {
+				if (count + len > buf.length) {
+					buf = Arrays.copyOf(buf, (int) Math.min(Math.max(buf.length << 1, count + len), threshold));
+				}
+			} else {
+				file = File.createTempFile("spill", ".tmp");
+				fileOutputStream = new FileOutputStream(file);
+				fileOutputStream.write(buf, 0, (int) count);
+				buf = null;
+			}
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureCapacity(1);
+		if (fileOutputStream != null) {
+			fileOutputStream.write(b);
+		} else {
+			buf[(int) count] = (byte) b;
+		}
+		++count;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureCapacity(len);
+		if (fileOutputStream != null) {
+			fileOutputStream.write(b, off, len);
+		} else {
+			System.arraycopy(b, off, buf, (int) count, len);
+		}
+		count += len;
+	}
+
+	/**
+	 * @return Number of bytes written so far, might exceed 2 GB when spilled.
+	 */
+	public long size() {
+		return count;
+	}
+
+	public boolean isSpilled() {
+		return fileOutputStream != null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			if (fileOutputStream != null) {
+				fileOutputStream.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes this stream and hands over the content. If spilled, it is a {@link FileInputStream} so that it can be read
+	 * without copying through its channel.
+	 */
+	public InputStream getInputStream() throws IOException {
+		close();
+		if (file == null) {
+			return new ByteArrayInputStream(buf, 0, (int) count);
+		}
+		final File spillFile = file;
+		file = null;
+		return new FileInputStream(spillFile) {
+
+			@Override
+			public void close() throws IOException {
+				super.close();
+				spillFile.delete();
+			}
+		};
+	}
+
+	/**
+	 * Closes this stream and hands over the content which must not have been spilled.
+	 */
+	public byte[] toByteArray() throws IOException {
+		if (file != null) {
+			throw new IllegalStateException("Content has been spilled");
+		}
+		close();
+		return buf.length == count ? buf : Arrays.copyOf(buf, (int) count);
+	}
+
+	/**
+	 * Closes this stream and hands over the content. If spilled, the file is mapped into memory and thus the content is
+	 * not on the heap. The file is deleted right away or, where this is not possible while mapped, when the JVM exits.
+	 */
+	public ByteBuffer getByteBuffer() throws IOException {
+		close();
+		if (file == null) {
+			return ByteBuffer.wrap(buf, 0, (int) count);
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+		} finally {
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+			file = null;
+		}
+	}
+
+	/**
+	 * Closes this stream and throws the content away.
+	 */
+	public void discard() throws IOException {
+		close();
+		buf = null;
+		if (file != null) {
+			file.delete();
+			file = null;
+		}
+	}
+
+}
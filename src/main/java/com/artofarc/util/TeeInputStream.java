@@ -0,0 +1,80 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies everything read to an {@link OutputStream}. Skipped bytes are read and copied as well, so the copy is
+ * always a prefix of the stream.
+ */
+public final class TeeInputStream extends FilterInputStream {
+
+	private final OutputStream copy;
+
+	public TeeInputStream(InputStream inputStream, OutputStream copy) {
+		super(inputStream);
+		this.copy = copy;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int c = in.read();
+		if (c >= 0) {
+			copy.write(c);
+		}
+		return c;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = in.read(b, off, len);
+		if (n > 0) {
+			copy.write(b, off, n);
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		byte[] buffer = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		for (int len; skipped < n && (len = read(buffer, 0, (int) Math.min(n - skipped, buffer.length))) >= 0;) {
+			skipped += len;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Reads the rest of the stream, so that the copy is complete.
+	 */
+	public void drain() throws IOException {
+		byte[] buffer = new byte[8192];
+		while (read(buffer, 0, buffer.length) >= 0);
+	}
+
+}
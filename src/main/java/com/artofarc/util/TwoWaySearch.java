@@ -0,0 +1,167 @@
+/*
+ * Copyright 2022 Andre Karalus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.artofarc.util;
+
+import java.util.Arrays;
+
+/**
+ * Crochemore-Perrin Two-Way search combined with a bad character shift like glibc does for long needles.
+ * Linear in the worst case, needs constant extra space and skips most of the input for long patterns.
+ */
+final class TwoWaySearch implements PatternSearch {
+
+	private final byte[] pattern;
+	private final int[] shifts = new int[256];
+	// critical factorization
+	private final int suffix, period;
+	private final boolean periodic;
+
+	TwoWaySearch(byte[] pattern) {
+		if (pattern.length == 0) {
+			throw new IllegalArgumentException("pattern must not be empty");
+		}
+		this.pattern = pattern;
+		final int m = pattern.length;
+		Arrays.fill(shifts, m);
+		for (int i = 0; i < m; ++i) {
+			shifts[pattern[i] & 0xff] = m - i - 1;
+		}
+		// maximal suffixes for both orderings, the later one gives the critical factorization
+		int maxSuffix = -1, j = 0, k = 1, p = 1;
+		while (j + k < m) {
+			int a = pattern[j + k] & 0xff, b = pattern[maxSuffix + k] & 0xff;
+			if (a < b) {
+				j += k;
+				k = 1;
+				p = j - maxSuffix;
+			} else if (a == b) {
+				if (k != p) {
+					++k;
+				} else {
+					j += p;
+					k = 1;
+				}
+			} else {
+				maxSuffix = j++;
+				k = p = 1;
+			}
+		}
+		int period = p;
+		int maxSuffixRev = -1;
+		j = 0;
+		k = p = 1;
+		while (j + k < m) {
+			int a = pattern[j + k] & 0xff, b = pattern[maxSuffixRev + k] & 0xff;
+			if (b < a) {
+				j += k;
+				k = 1;
+				p = j - maxSuffixRev;
+			} else if (a == b) {
+				if (k != p) {
+					++k;
+				} else {
+					j += p;
+					k = 1;
+				}
+			} else {
+				maxSuffixRev = j++;
+				k = p = 1;
+			}
+		}
+		if (maxSuffixRev < maxSuffix) {
+			suffix = maxSuffix + 1;
+		} else {
+			suffix = maxSuffixRev + 1;
+			period = p;
+		}
+		boolean periodic = suffix + period <= m;
+		for (int i = 0; periodic && i < suffix; ++i) {
+			periodic = pattern[i] == pattern[i + period];
+		}
+		this.periodic = periodic;
+		this.period = periodic ? period : Math.max(suffix, m - suffix) + 1;
+	}
+
+	@Override
+	public int length() {
+		return pattern.length;
+	}
+
+	@Override
+	public int indexOf(byte[] b, int from, int to) {
+		final byte[] pattern = this.pattern;
+		final int m = pattern.length;
+		if (periodic) {
+			// the part of the left half already known to match after a shift by the period
+			int memory = 0;
+			for (int j = from, end = to - m; j <= end;) {
+				int shift = shifts[b[j + m - 1] & 0xff];
+				if (shift > 0) {
+					if (memory > 0 && shift < period) {
+						shift = m - period;
+					}
+					memory = 0;
+					j += shift;
+					continue;
+				}
+				int i = Math.max(suffix, memory);
+				while (i < m - 1 && pattern[i] == b[i + j]) {
+					++i;
+				}
+				if (i >= m - 1) {
+					i = suffix - 1;
+					while (memory < i + 1 && pattern[i] == b[i + j]) {
+						--i;
+					}
+					if (i + 1 < memory + 1) {
+						return j;
+					}
+					j += period;
+					memory = m - period;
+				} else {
+					j += i - suffix + 1;
+					memory = 0;
+				}
+			}
+		} else {
+			for (int j = from, end = to - m; j <= end;) {
+				int shift = shifts[b[j + m - 1] & 0xff];
+				if (shift > 0) {
+					j += shift;
+					continue;
+				}
+				int i = suffix;
+				while (i < m - 1 && pattern[i] == b[i + j]) {
+					++i;
+				}
+				if (i >= m - 1) {
+					i = suffix - 1;
+					while (i >= 0 && pattern[i] == b[i + j]) {
+						--i;
+					}
+					if (i < 0) {
+						return j;
+					}
+					j += period;
+				} else {
+					j += i - suffix + 1;
+				}
+			}
+		}
+		return -1;
+	}
+
+}
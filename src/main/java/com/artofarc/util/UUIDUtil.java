@@ -15,11 +15,187 @@
  */
 package com.artofarc.util;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
 public final class UUIDUtil {
 
+	/**
+	 * Length of the unpadded URL safe Base64 encoding.
+	 */
+	public static final int BASE64_URL_LENGTH = 22;
+
+	private static final char[] BASE64_URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+	private static final byte[] BASE64_URL_VALUES = new byte[128];
+
+	static {
+		Arrays.fill(BASE64_URL_VALUES, (byte) -1);
+		for (int i = 0; i < BASE64_URL.length; ++i) {
+			BASE64_URL_VALUES[BASE64_URL[i]] = (byte) i;
+		}
+	}
+
+	private static final class Clock {
+		long millis;
+		int counter;
+	}
+
+	private static final ThreadLocal<Clock> CLOCK = ThreadLocal.withInitial(Clock::new);
+
+	/**
+	 * Creates a time ordered UUID version 7 (RFC 9562). The 12 bits following the millisecond timestamp are a counter
+	 * starting at a random value, so UUIDs created by the same thread are strictly increasing. On counter overflow the
+	 * timestamp is advanced. The state is thread local and the random bits come from {@link ThreadLocalRandom}, thus
+	 * there is no contention between threads.
+	 */
+	public static UUID randomUUIDv7() {
+		final Clock clock = CLOCK.get();
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final long now = System.currentTimeMillis();
+		if (now > clock.millis) {
+			clock.millis = now;
+			// leave room for increments
+			clock.counter = random.nextInt(1 << 11);
+		} else if (++clock.counter > 0xfff) {
+			++clock.millis;
+			clock.counter = 0;
+		}
+		long msb = clock.millis << 16 | 0x7000L | clock.counter;
+		long lsb = random.nextLong() & 0x3fffffffffffffffL | 0x8000000000000000L;
+		return new UUID(msb, lsb);
+	}
+
+	/**
+	 * @return The milliseconds since the epoch of a version 7 UUID.
+	 */
+	public static long getTimestamp(UUID uuid) {
+		if (uuid.version() != 7) {
+			throw new IllegalArgumentException("Not a version 7 UUID: " + uuid);
+		}
+		return uuid.getMostSignificantBits() >>> 16;
+	}
+
+	/**
+	 * Encodes to unpadded URL safe Base64 like {@code Base64.getUrlEncoder().withoutPadding()}, without intermediate arrays.
+	 * @param dst Receives {@link #BASE64_URL_LENGTH} chars.
+	 */
+	public static void toBase64Url(UUID uuid, char[] dst, int off) {
+		encodeBase64Url(uuid, dst, off);
+	}
+
+	public static StringBuilder appendBase64Url(UUID uuid, StringBuilder sb) {
+		final int off = sb.length();
+		sb.setLength(off + BASE64_URL_LENGTH);
+		encodeBase64Url(uuid, sb, off);
+		return sb;
+	}
+
+	/**
+	 * Puts {@link #BASE64_URL_LENGTH} ASCII bytes at the position of the buffer.
+	 */
+	public static void toBase64Url(UUID uuid, ByteBuffer dst) {
+		if (dst.remaining() < BASE64_URL_LENGTH) {
+			throw new BufferOverflowException();
+		}
+		encodeBase64Url(uuid, dst, dst.position());
+		dst.position(dst.position() + BASE64_URL_LENGTH);
+	}
+
+	public static String toBase64Url(UUID uuid) {
+		return appendBase64Url(uuid, new StringBuilder(BASE64_URL_LENGTH)).toString();
+	}
+
+	/**
+	 * @param dst A char[], StringBuilder or ByteBuffer, written at absolute indexes.
+	 */
+	private static void encodeBase64Url(UUID uuid, Object dst, int off) {
+		final long msb = uuid.getMostSignificantBits(), lsb = uuid.getLeastSignificantBits();
+		for (int i = 0; i < 10; ++i) {
+			put(dst, off + i, BASE64_URL[(int) (msb >>> 58 - 6 * i) & 63]);
+		}
+		put(dst, off + 10, BASE64_URL[(int) (msb << 2 & 60 | lsb >>> 62)]);
+		for (int i = 0; i < 10; ++i) {
+			put(dst, off + 11 + i, BASE64_URL[(int) (lsb >>> 56 - 6 * i) & 63]);
+		}
+		put(dst, off + 21, BASE64_URL[(int) (lsb << 4 & 48)]);
+	}
+
+	private static void put(Object dst, int index, char c) {
+		if (dst instanceof char[]) {
+			((char[]) dst)[index] = c;
+		} else if (dst instanceof StringBuilder) {
+			((StringBuilder) dst).setCharAt(index, c);
+		} else {
+			((ByteBuffer) dst).put(index, (byte) c);
+		}
+	}
+
+	private static int base64UrlValue(int c) {
+		final int value = c < 128 ? BASE64_URL_VALUES[c] : -1;
+		if (value < 0) {
+			throw new IllegalArgumentException("Illegal base64 char: " + (char) c);
+		}
+		return value;
+	}
+
+	/**
+	 * Decodes {@link #BASE64_URL_LENGTH} chars starting at off.
+	 */
+	public static UUID fromBase64Url(CharSequence base64, int off) {
+		if (base64.length() - off < BASE64_URL_LENGTH) {
+			throw new IllegalArgumentException("base64 is expected to have " + BASE64_URL_LENGTH + " chars");
+		}
+		return decodeBase64Url(base64, off);
+	}
+
+	public static UUID fromBase64Url(CharSequence base64) {
+		if (base64.length() != BASE64_URL_LENGTH) {
+			throw new IllegalArgumentException("base64 is expected to have " + BASE64_URL_LENGTH + " chars");
+		}
+		return fromBase64Url(base64, 0);
+	}
+
+	/**
+	 * Decodes {@link #BASE64_URL_LENGTH} ASCII bytes from the position of the buffer.
+	 */
+	public static UUID fromBase64Url(ByteBuffer src) {
+		if (src.remaining() < BASE64_URL_LENGTH) {
+			throw new IllegalArgumentException("base64 is expected to have " + BASE64_URL_LENGTH + " bytes");
+		}
+		final UUID uuid = decodeBase64Url(src, src.position());
+		src.position(src.position() + BASE64_URL_LENGTH);
+		return uuid;
+	}
+
+	/**
+	 * @param src A CharSequence or ByteBuffer, read at absolute indexes.
+	 */
+	private static UUID decodeBase64Url(Object src, int off) {
+		long msb = 0, lsb = 0;
+		for (int i = 0; i < 10; ++i) {
+			msb = msb << 6 | base64UrlValue(get(src, off + i));
+		}
+		final int mid = base64UrlValue(get(src, off + 10));
+		msb = msb << 4 | mid >>> 2;
+		lsb = mid & 3;
+		for (int i = 11; i < 21; ++i) {
+			lsb = lsb << 6 | base64UrlValue(get(src, off + i));
+		}
+		final int last = base64UrlValue(get(src, off + 21));
+		if ((last & 15) != 0) {
+			throw new IllegalArgumentException(src instanceof CharSequence ? "Non canonical base64: " + src : "Non canonical base64");
+		}
+		return new UUID(msb, lsb << 2 | last >>> 4);
+	}
+
+	private static int get(Object src, int index) {
+		return src instanceof CharSequence ? ((CharSequence) src).charAt(index) : ((ByteBuffer) src).get(index) & 0xff;
+	}
+
 	public static String toBase64(UUID uuid) {
 		final byte[] ba = new byte[2 * Long.BYTES];
 		longToBytes(uuid.getMostSignificantBits(), ba, 0);
@@ -0,0 +1,103 @@
+package com.artofarc.esb.icap;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the String based request framing and header parsing with the byte level templates.
+ * Run with the GC profiler to see the allocation rate per operation (gc.alloc.rate.norm).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ICAPFramingBenchmark {
+
+	private static final String HOST = "icap.example.com", SERVICE = "avscan", FILENAME = "invoice 2022-07.pdf";
+	private static final int PORT = 1344;
+
+	private static final String RESPONSE = "ICAP/1.0 204 Unmodified\r\nServer: C-ICAP/0.5.10\r\nConnection: keep-alive\r\n"
+			+ "ISTag: \"CI0001-000-0978-6918203\"\r\nEncapsulated: null-body=0\r\n\r\n";
+
+	private final ICAPRequestTemplate _template = new ICAPRequestTemplate(HOST, PORT, SERVICE);
+	private final byte[] _header = new byte[_template.maxRespmodLength(FILENAME)];
+	private final byte[] _response = RESPONSE.getBytes(StandardCharsets.ISO_8859_1);
+	private final ICAPResponseHeader _responseHeader = new ICAPResponseHeader();
+
+	@Benchmark
+	public byte[] legacyFraming() throws Exception {
+		String resHeader = "GET /" + URLEncoder.encode(FILENAME, "UTF-8") + " HTTP/1.1\r\nHost: " + HOST + ":" + PORT + "\r\n\r\n";
+		String resBody = resHeader + "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n";
+		String header = "RESPMOD icap://" + HOST + "/" + SERVICE + " ICAP/" + ICAP.VERSION + "\r\n" + "Host: " + HOST + "\r\n" + "User-Agent: " + ICAP.USERAGENT + "\r\n"
+				+ "Allow: 204\r\n" + "Preview: " + 1024 + "\r\n" + "Encapsulated: req-hdr=0, res-hdr=" + resHeader.length() + ", res-body=" + resBody.length() + "\r\n"
+				+ "\r\n" + resBody + Integer.toHexString(1024) + "\r\n";
+		return header.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Benchmark
+	public int templateFraming() {
+		return _template.writeRespmod(_header, 0, FILENAME, 1024);
+	}
+
+	@Benchmark
+	public void legacyParsing(Blackhole blackhole) {
+		Map<String, String> headers = parseHeaders(new String(_response, StandardCharsets.UTF_8));
+		blackhole.consume(Integer.parseInt(headers.get("StatusCode")));
+		blackhole.consume(headers.get("ISTag"));
+	}
+
+	@Benchmark
+	public void templateParsing(Blackhole blackhole) throws ICAPException {
+		_responseHeader.parse(_response, 0, _response.length);
+		blackhole.consume(_responseHeader.getStatus());
+		blackhole.consume(_responseHeader.getISTag());
+	}
+
+	// The former implementation of ICAP.parseHeaders as baseline
+	private static Map<String, String> parseHeaders(String response) {
+		Map<String, String> headers = new HashMap<>();
+		int x = response.indexOf(" ", 0);
+		int y = response.indexOf(" ", x + 1);
+		headers.put("StatusCode", response.substring(x + 1, y));
+		int i = response.indexOf("\r\n", y), j;
+		i += 2;
+		while (i + 2 < response.length() && (j = response.indexOf(':', i)) > 0) {
+			String key = response.substring(i, j);
+			j += 2;
+			i = response.indexOf("\r\n", j);
+			String value = response.substring(j, i);
+			i += 2;
+			while (i + 2 < response.length() && Character.isWhitespace(response.charAt(i))) {
+				j = response.indexOf("\r\n", i);
+				value += response.substring(i, j);
+				i = j + 2;
+			}
+			headers.put(key, value);
+		}
+		return headers;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(ICAPFramingBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+	}
+
+}
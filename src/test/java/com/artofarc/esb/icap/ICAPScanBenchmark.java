@@ -0,0 +1,114 @@
+package com.artofarc.esb.icap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Scans per second of the ICAP client against the {@link ICAPTestServer} across body and preview sizes.
+ * Run with the GC profiler to see the allocation per scan (gc.alloc.rate.norm). The server runs in the same JVM, so
+ * the numbers are only meaningful relative to each other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ICAPScanBenchmark {
+
+	private static final ICAP.ScanEngine SCAN_ENGINE = new ICAP.ScanEngine();
+
+	@Param({ "1024", "65536", "1048576" })
+	public int bodySize;
+
+	@Param({ "0", "1024", "4096" })
+	public int previewSize;
+
+	private ICAPTestServer _server;
+	private ScheduledExecutorService _scheduledExecutorService;
+	private ICAPConnectionPool _pool;
+	private ICAPMultiplexer _multiplexer;
+	private byte[] _body;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		_server = new ICAPTestServer(ICAPTestServer.Vendor.DEFAULT, previewSize);
+		_scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+		Properties properties = new Properties();
+		properties.setProperty("ICAPMaxConnections", "16");
+		ICAPConnectionData data = _server.createConnectionData(properties);
+		_pool = new ICAPConnectionPool(data, _scheduledExecutorService);
+		_multiplexer = new ICAPMultiplexer(data, _pool, 16);
+		_body = ICAPTest.content(bodySize, -1);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		_multiplexer.close();
+		_pool.close();
+		_scheduledExecutorService.shutdownNow();
+		_server.close();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean scanInputStream() throws IOException {
+		ICAP icap = _pool.borrow(SCAN_ENGINE);
+		try {
+			boolean clean = icap.scanFile("file.bin", new ByteArrayInputStream(_body));
+			_pool.release(icap);
+			return clean;
+		} catch (IOException e) {
+			_pool.invalidate(icap);
+			throw e;
+		}
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean scanByteBuffer() throws IOException {
+		ICAP icap = _pool.borrow(SCAN_ENGINE);
+		try {
+			boolean clean = icap.scanFile("file.bin", ByteBuffer.wrap(_body));
+			_pool.release(icap);
+			return clean;
+		} catch (IOException e) {
+			_pool.invalidate(icap);
+			throw e;
+		}
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean scanMultiplexed() throws Exception {
+		return _multiplexer.scan("file.bin", ByteBuffer.wrap(_body), SCAN_ENGINE).get().isClean();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(ICAPScanBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+	}
+
+}
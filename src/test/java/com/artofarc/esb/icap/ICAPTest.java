@@ -0,0 +1,453 @@
+package com.artofarc.esb.icap;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ICAPTest {
+
+	private static final int PREVIEW_SIZE = 1024;
+
+	private ScheduledExecutorService _scheduledExecutorService;
+
+	@Before
+	public void createScheduler() {
+		_scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "ICAPTest");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@After
+	public void shutdownScheduler() {
+		_scheduledExecutorService.shutdownNow();
+	}
+
+	/**
+	 * @param infectedAt Position of the signature or -1 for clean content.
+	 */
+	static byte[] content(int size, int infectedAt) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; ++i) {
+			content[i] = (byte) ('a' + i % 26);
+		}
+		if (infectedAt >= 0) {
+			byte[] signature = ICAPTestServer.SIGNATURE.getBytes(StandardCharsets.US_ASCII);
+			System.arraycopy(signature, 0, content, infectedAt, signature.length);
+		}
+		return content;
+	}
+
+	private static void assertVerdicts(ICAP icap, ICAPTestServer server, String filename, byte[] content, boolean clean) throws Exception {
+		assertEquals(clean, icap.scanFile(filename, new ByteArrayInputStream(content)));
+		assertEquals(clean, icap.getResponseText() == null);
+		assertEquals(clean, icap.scanFile(filename, ByteBuffer.wrap(content)));
+		File file = File.createTempFile("icap", ".bin");
+		try {
+			Files.write(file.toPath(), content);
+			assertEquals(clean, icap.scanFile(file.toPath()));
+		} finally {
+			file.delete();
+		}
+		assertEquals(ICAPTestServer.ISTAG, icap.getISTag());
+	}
+
+	private static void testVendor(ICAPTestServer.Vendor vendor) throws Exception {
+		try (ICAPTestServer server = new ICAPTestServer(vendor, PREVIEW_SIZE)) {
+			ICAP icap = new ICAP("127.0.0.1", server.getPort(), "avscan");
+			icap.setScanEngine(vendor.createScanEngine());
+			try {
+				// complete within preview
+				assertVerdicts(icap, server, "small.txt", content(100, -1), true);
+				assertVerdicts(icap, server, "small.txt", content(100, 10), false);
+				assertVerdicts(icap, server, "exact.txt", content(PREVIEW_SIZE, -1), true);
+				// preview, 100 Continue and remainder
+				assertVerdicts(icap, server, "large.txt", content(200000, -1), true);
+				assertVerdicts(icap, server, "large.txt", content(200000, 150000), false);
+				// verdict after preview
+				int previewVerdicts = server.getPreviewVerdictCount();
+				assertVerdicts(icap, server, "early.txt", content(200000, 0), false);
+				assertEquals(previewVerdicts + 3, server.getPreviewVerdictCount());
+				// empty body
+				assertVerdicts(icap, server, "empty.txt", new byte[0], true);
+				// all requests on one connection
+				assertEquals(1, server.getConnectionCount());
+			} finally {
+				icap.close();
+			}
+		}
+	}
+
+	@Test
+	public void testDefaultScanEngine() throws Exception {
+		testVendor(ICAPTestServer.Vendor.DEFAULT);
+	}
+
+	@Test
+	public void testClamScanEngine() throws Exception {
+		testVendor(ICAPTestServer.Vendor.CLAM);
+	}
+
+	@Test
+	public void testSymantecScanEngine() throws Exception {
+		testVendor(ICAPTestServer.Vendor.SYMANTEC);
+	}
+
+	@Test
+	public void testTrendMicroScanEngine() throws Exception {
+		testVendor(ICAPTestServer.Vendor.TRENDMICRO);
+	}
+
+	@Test
+	public void testTransferIgnore() throws Exception {
+		try (ICAPTestServer server = new ICAPTestServer(ICAPTestServer.Vendor.DEFAULT, PREVIEW_SIZE)) {
+			server.setExtraOptions("Transfer-Preview: *\r\nTransfer-Ignore: jpg\r\nTransfer-Complete: exe\r\n");
+			ICAP icap = new ICAP("127.0.0.1", server.getPort(), "avscan");
+			try {
+				assertTrue(icap.scanFile("image.jpg", ByteBuffer.wrap(content(5000, 100))));
+				assertEquals(0, server.getRespmodCount());
+				assertFalse(icap.scanFile("setup.exe", ByteBuffer.wrap(content(5000, 0))));
+				// without preview there is no early verdict
+				assertEquals(0, server.getPreviewVerdictCount());
+				assertFalse(icap.scanFile("data.bin", new ByteArrayInputStream(content(5000, 0))));
+				assertEquals(1, server.getPreviewVerdictCount());
+			} finally {
+				icap.close();
+			}
+		}
+	}
+
+	@Test
+	public void testMultiplexerTransferIgnore() throws Exception {
+		try (ICAPTestServer server = new ICAPTestServer(ICAPTestServer.Vendor.CLAM, PREVIEW_SIZE)) {
+			server.setExtraOptions("Transfer-Preview: *\r\nTransfer-Ignore: jpg\r\n");
+			ICAPConnectionData data = server.createConnectionData(new Properties());
+			try (ICAPConnectionPool pool = new ICAPConnectionPool(data, _scheduledExecutorService); ICAPMultiplexer multiplexer = new ICAPMultiplexer(data, pool, 2)) {
+				// the OPTIONS are not known yet
+				ScanResult result = multiplexer.scan("image.jpg", ByteBuffer.wrap(content(5000, 100)), new ClamScanEngine()).get(10L, TimeUnit.SECONDS);
+				assertTrue(result.isClean());
+				assertFalse(result.isScanned());
+				assertEquals(1, server.getConnectionCount());
+				// decided without a connection
+				result = multiplexer.scan("photo.jpg", ByteBuffer.wrap(content(5000, 100)), new ClamScanEngine()).getNow(null);
+				assertSame(ScanResult.NOT_SCANNED, result);
+				assertEquals(0, server.getRespmodCount());
+				assertTrue(multiplexer.scan("image.exe", ByteBuffer.wrap(content(5000, 100)), new ClamScanEngine()).get(10L, TimeUnit.SECONDS).isScanned());
+				assertEquals(1, server.getRespmodCount());
+			}
+		}
+	}
+
+	@Test
+	public void testNullBodyWithHeader() throws Exception {
+		try (ICAPTestServer server = new ICAPTestServer(ICAPTestServer.Vendor.CLAM, PREVIEW_SIZE)) {
+			server.setNullBody(true);
+			ICAP icap = new ICAP("127.0.0.1", server.getPort(), "avscan");
+			icap.setScanEngine(new ClamScanEngine());
+			try {
+				// the encapsulated header of each response must be consumed for the next one on the connection
+				assertTrue(icap.scanFile("clean.bin", ByteBuffer.wrap(content(5000, -1))));
+				assertFalse(icap.scanFile("infected.bin", ByteBuffer.wrap(content(5000, 4000))));
+				assertEquals("Eicar-Signature", icap.getResponseText());
+				assertFalse(icap.scanFile("preview.bin", ByteBuffer.wrap(content(5000, 0))));
+				assertTrue(icap.scanFile("clean.bin", new ByteArrayInputStream(content(5000, -1))));
+				assertEquals(1, server.getConnectionCount());
+			} finally {
+				icap.close();
+			}
+		}
+	}
+
+	@Test
+	public void testPoolAndMetrics() throws Exception {
+		try (ICAPTestServer server = new ICAPTestServer(ICAPTestServer.Vendor.DEFAULT, PREVIEW_SIZE)) {
+			Properties properties = new Properties();
+			properties.setProperty("ICAPMaxConnections", "2");
+			try (ICAPConnectionPool pool = new ICAPConnectionPool(server.createConnectionData(properties), _scheduledExecutorService)) {
+				for (int i = 0; i < 20; ++i) {
+					ICAP icap = pool.borrow(new ICAP.ScanEngine());
+					try {
+						assertEquals(i % 2 == 0, icap.scanFile("file" + i, ByteBuffer.wrap(content(4096, i % 2 == 0 ? -1 : 0))));
+					} finally {
+						pool.release(icap);
+					}
+				}
+				ICAPMetrics metrics = pool.getMetrics();
+				assertEquals(20, metrics.getScanCount());
+				assertEquals(10, metrics.getInfectedCount());
+				assertEquals(0.5, metrics.getPreviewOnlyRatio(), 0.0);
+				assertEquals(10 * 4096 + 10 * PREVIEW_SIZE, metrics.getBytesScanned());
+				assertEquals(1, metrics.getReconnectCount());
+				assertEquals(19, metrics.getConnectionReuseCount());
+				assertEquals(1, server.getConnectionCount());
+				assertEquals(1, server.getOptionsCount());
+				assertEquals(ICAPTestServer.ISTAG, metrics.getISTag());
+				assertTrue(metrics.getPreviewLatencyP99() >= metrics.getPreviewLatencyP50());
+			}
+		}
+	}
+
+	@Test
+	public void testMultiplexer() throws Exception {
+		try (ICAPTestServer server = new ICAPTestServer(ICAPTestServer.Vendor.CLAM, PREVIEW_SIZE)) {
+			server.setLatency(5L);
+			ICAPConnectionData data = server.createConnectionData(new Properties());
+			try (ICAPConnectionPool pool = new ICAPConnectionPool(data, _scheduledExecutorService); ICAPMultiplexer multiplexer = new ICAPMultiplexer(data, pool, 4)) {
+				List<CompletableFuture<ScanResult>> futures = new ArrayList<>();
+				for (int i = 0; i < 50; ++i) {
+					futures.add(multiplexer.scan("file" + i, ByteBuffer.wrap(content(10000 + i * 100, i % 5 == 0 ? 5000 : -1)), new ClamScanEngine()));
+				}
+				for (int i = 0; i < futures.size(); ++i) {
+					ScanResult result = futures.get(i).get(10L, TimeUnit.SECONDS);
+					assertEquals(i % 5 != 0, result.isClean());
+					assertEquals(ICAPTestServer.ISTAG, result.getISTag());
+				}
+				assertTrue(server.getConnectionCount() <= 4);
+				assertEquals(50, pool.getMetrics().getScanCount());
+			}
+		}
+	}
+
+	@Test
+	public void testMultiplexerSharesPermits() throws Exception {
+		try (ICAPTestServer server = new ICAPTestServer(ICAPTestServer.Vendor.CLAM, PREVIEW_SIZE)) {
+			Properties properties = new Properties();
+			properties.setProperty("ICAPMaxConnections", "2");
+			ICAPConnectionData data = server.createConnectionData(properties);
+			try (ICAPConnectionPool pool = new ICAPConnectionPool(data, _scheduledExecutorService); ICAPMultiplexer multiplexer = new ICAPMultiplexer(data, pool, 2)) {
+				ICAP first = pool.borrow(new ClamScanEngine());
+				ICAP second = pool.borrow(new ClamScanEngine());
+				CompletableFuture<ScanResult> future = multiplexer.scan("file", ByteBuffer.wrap(content(10000, -1)), new ClamScanEngine());
+				try {
+					future.get(200L, TimeUnit.MILLISECONDS);
+					fail("all permits are held by the pool");
+				} catch (TimeoutException e) {
+					// expected
+				}
+				pool.release(first);
+				assertTrue(future.get(10L, TimeUnit.SECONDS).isClean());
+				// the idle connection of the multiplexer gives its permit back
+				first = pool.borrow(new ClamScanEngine());
+				assertTrue(first.scanFile("file", ByteBuffer.wrap(content(4096, -1))));
+				pool.release(first);
+				pool.release(second);
+				assertEquals(0, pool.getActiveCount());
+			}
+		}
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		try (ICAPTestServer server = new ICAPTestServer(ICAPTestServer.Vendor.DEFAULT, PREVIEW_SIZE)) {
+			try (ICAPConnectionPool pool = new ICAPConnectionPool(server.createConnectionData(new Properties()), _scheduledExecutorService)) {
+				CompletableFuture<ScanResult> first = new CompletableFuture<>(), second = new CompletableFuture<>();
+				assertNull(pool.joinScan("digest", first));
+				assertSame(first, pool.joinScan("digest", second));
+				assertNull(pool.joinScan("other", second));
+				pool.leaveScan("other", second);
+				// the ISTag becomes known meanwhile
+				pool.setISTag(ICAPTestServer.ISTAG);
+				pool.leaveScan("digest", first);
+				assertNull(pool.joinScan("digest", second));
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrencyLimiterMixedSizes() throws Exception {
+		try (ICAPTestServer server = new ICAPTestServer(ICAPTestServer.Vendor.CLAM, PREVIEW_SIZE)) {
+			server.setLatency(10L);
+			// 10 ms for 10 KB, 500 ms for 5 MB
+			server.setLatencyPerKB(100L);
+			ICAPConnectionData data = server.createConnectionData(new Properties());
+			try (ICAPConnectionPool pool = new ICAPConnectionPool(data, _scheduledExecutorService); ICAPMultiplexer multiplexer = new ICAPMultiplexer(data, pool, 2)) {
+				ICAPConcurrencyLimiter limiter = pool.getLimiter();
+				int limit = limiter.getLimit();
+				for (int i = 0; i < 30; ++i) {
+					int size = i == 15 ? 5 * 1024 * 1024 : 10 * 1024;
+					assertTrue(limiter.tryAcquire());
+					long start = pool.scanStarted();
+					ScanResult result = multiplexer.scan("file" + i, ByteBuffer.wrap(content(size, -1)), new ClamScanEngine()).get(10L, TimeUnit.SECONDS);
+					assertTrue(result.getPreviewLatency() > 0L);
+					pool.scanSucceeded(start, result.getPreviewLatency(), result.getISTag());
+				}
+				// a healthy server is not throttled by a large file, a single outlier may cost one backoff
+				assertTrue(limiter.getLimit() >= limit - 1);
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrencyLimiter() throws Exception {
+		ICAPConcurrencyLimiter limiter = new ICAPConcurrencyLimiter(8, 1);
+		assertEquals(4, limiter.getLimit());
+		// saturated and fast, the limit grows
+		for (int i = 0; i < 40; ++i) {
+			while (limiter.tryAcquire());
+			for (int j = limiter.getInFlight(); j > 0; --j) {
+				limiter.release(1000000L);
+			}
+		}
+		assertEquals(8, limiter.getLimit());
+		// the server slows down
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(limiter.tryAcquire());
+			limiter.release(10000000L);
+		}
+		assertTrue(limiter.getLimit() < 8);
+		assertTrue(limiter.tryAcquire());
+		limiter.drop();
+		limiter.forceAcquire();
+		assertTrue(limiter.getLimit() < 4);
+		while (limiter.tryAcquire());
+		// one may wait, the next overflows
+		Thread waiting = new Thread(() -> {
+			try {
+				limiter.acquire(5000L);
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		});
+		waiting.start();
+		while (limiter.getQueued() == 0) {
+			Thread.sleep(1L);
+		}
+		assertFalse(limiter.acquire(5000L));
+		limiter.cancel();
+		waiting.join();
+		assertEquals(0, limiter.getQueued());
+	}
+
+	@Test(expected = SocketTimeoutException.class)
+	public void testReadTimeout() throws Exception {
+		try (ICAPTestServer server = new ICAPTestServer(ICAPTestServer.Vendor.DEFAULT, PREVIEW_SIZE)) {
+			Properties properties = new Properties();
+			properties.setProperty("ICAPReadTimeout", "100");
+			try (ICAPConnectionPool pool = new ICAPConnectionPool(server.createConnectionData(properties), _scheduledExecutorService)) {
+				ICAP icap = pool.borrow(new ICAP.ScanEngine());
+				server.setLatency(1000L);
+				try {
+					icap.scanFile("file", ByteBuffer.wrap(content(100, -1)));
+				} finally {
+					pool.invalidate(icap);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSecure() throws Exception {
+		try (ICAPTestServer server = new ICAPTestServer(ICAPTestServer.Vendor.CLAM, PREVIEW_SIZE, true)) {
+			ICAPConnectionData data = server.createConnectionData(new Properties());
+			assertTrue(data.isSecure());
+			try (ICAPConnectionPool pool = new ICAPConnectionPool(data, _scheduledExecutorService)) {
+				ICAP icap = pool.borrow(new ClamScanEngine());
+				try {
+					assertVerdicts(icap, server, "large.txt", content(200000, -1), true);
+					assertVerdicts(icap, server, "large.txt", content(200000, 150000), false);
+				} finally {
+					pool.invalidate(icap);
+				}
+				// the reconnect resumes the session
+				icap = pool.borrow(new ClamScanEngine());
+				try {
+					assertVerdicts(icap, server, "small.txt", content(100, 10), false);
+				} finally {
+					pool.release(icap);
+				}
+				ICAPMetrics metrics = pool.getMetrics();
+				assertEquals(2, metrics.getHandshakeCount());
+				assertEquals(1, metrics.getResumedHandshakeCount());
+				try (ICAPMultiplexer multiplexer = new ICAPMultiplexer(data, pool, 2)) {
+					List<CompletableFuture<ScanResult>> futures = new ArrayList<>();
+					for (int i = 0; i < 10; ++i) {
+						futures.add(multiplexer.scan("file" + i, ByteBuffer.wrap(content(50000 + i * 100, i % 5 == 0 ? 40000 : -1)), new ClamScanEngine()));
+					}
+					for (int i = 0; i < futures.size(); ++i) {
+						assertEquals(i % 5 != 0, futures.get(i).get(10L, TimeUnit.SECONDS).isClean());
+					}
+				}
+				assertEquals(server.getConnectionCount(), metrics.getHandshakeCount());
+				// TLS 1.3 tickets are used once, concurrent connections may not find one
+				assertTrue(metrics.getResumedHandshakeCount() >= 2);
+			}
+		}
+	}
+
+	@Test
+	public void testOptionsRefresh() throws Exception {
+		try (ICAPTestServer server = new ICAPTestServer(ICAPTestServer.Vendor.DEFAULT, PREVIEW_SIZE)) {
+			server.setOptionsTTL(1);
+			try (ICAPConnectionPool pool = new ICAPConnectionPool(server.createConnectionData(new Properties()), _scheduledExecutorService)) {
+				ICAP icap = pool.borrow(new ICAP.ScanEngine());
+				pool.release(icap);
+				// refreshed at 80% of the TTL in the background
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+				while (server.getOptionsCount() < 2) {
+					assertTrue("OPTIONS not refreshed", System.nanoTime() - deadline < 0L);
+					Thread.sleep(10L);
+				}
+				assertEquals(1, server.getConnectionCount());
+			}
+		}
+	}
+
+	@Test
+	public void testScanResultCache() {
+		ScanResultCache cache = new ScanResultCache(2, null);
+		// content without a key must never get the verdict of other content
+		cache.put(null, new ScanResult(true, null, "1"));
+		assertEquals(0, cache.size());
+		assertNull(cache.get(null, "1"));
+		// a file which was not sent has no verdict
+		cache.put("a", ScanResult.NOT_SCANNED);
+		assertEquals(0, cache.size());
+		cache.put("a", new ScanResult(false, "infected", "1"));
+		assertFalse(cache.get("a", "1").isClean());
+		// new signatures
+		assertNull(cache.get("a", "2"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testDigest() throws Exception {
+		byte[] content = content(200000, -1);
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		String key = ScanResultCache.digest(new ByteArrayInputStream(content), copy);
+		assertArrayEquals(content, copy.toByteArray());
+		assertEquals(key, ScanResultCache.digest(ByteBuffer.wrap(content)));
+		File file = File.createTempFile("digest", ".bin");
+		try {
+			Files.write(file.toPath(), content);
+			try (FileInputStream fileInputStream = new FileInputStream(file)) {
+				FileChannel fileChannel = fileInputStream.getChannel();
+				assertEquals(key, ScanResultCache.digest(fileChannel));
+				assertEquals(0L, fileChannel.position());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+}
@@ -0,0 +1,429 @@
+package com.artofarc.esb.icap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * In-process stand-in for an ICAP server. Speaks OPTIONS and RESPMOD with preview, answers 100, 200, 201, 204 and 403
+ * depending on the {@link Vendor} it mimics. A body containing the signature is considered infected, the verdict is
+ * given after the preview already if the signature is contained in the preview.
+ * In secure mode it speaks ICAPS with the self-signed certificate from icap-test.p12 (CN=localhost, SAN 127.0.0.1).
+ */
+public class ICAPTestServer implements AutoCloseable {
+
+	public static final String SIGNATURE = "EICAR-STANDARD-ANTIVIRUS-TEST-FILE";
+
+	/**
+	 * Sent in quotes as required by RFC 3507.
+	 */
+	public static final String ISTAG = "ESB0-TEST-1";
+
+	/**
+	 * How verdicts are reported, matching the scan engine used by the client.
+	 */
+	public enum Vendor {
+		/**
+		 * {@link ICAP.ScanEngine}: 204 if clean, 403 with X-Infection-Found if infected.
+		 */
+		DEFAULT,
+		/**
+		 * {@link ClamScanEngine}: 200 echoing the body if clean, 200 with X-Clam-Virus if infected.
+		 */
+		CLAM,
+		/**
+		 * {@link SymantecScanEngine}: 204 if clean, 201 with an HTML page if infected.
+		 */
+		SYMANTEC,
+		/**
+		 * {@link TrendMicroScanEngine}: 204 if clean, 200 with an HTML page if infected.
+		 */
+		TRENDMICRO;
+
+		ICAP.ScanEngine createScanEngine() {
+			switch (this) {
+			case CLAM:
+				return new ClamScanEngine();
+			case SYMANTEC:
+				return new SymantecScanEngine();
+			case TRENDMICRO:
+				return new TrendMicroScanEngine();
+			default:
+				return new ICAP.ScanEngine();
+			}
+		}
+	}
+
+	private static final byte[] SIGNATURE_BYTES = SIGNATURE.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HTTP_OK = "HTTP/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HTTP_FORBIDDEN = "HTTP/1.1 403 Forbidden\r\nContent-Type: text/html\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final int ECHO_CHUNK_SIZE = 4096;
+	private static final String KEYSTORE = "/icap-test.p12", KEYSTORE_PASSWORD = "changeit";
+
+	private final Vendor _vendor;
+	private final int _previewSize;
+	private final boolean _secure;
+	private final ServerSocket _serverSocket;
+	private final ExecutorService _executorService = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "ICAPTestServer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Set<Socket> _sockets = ConcurrentHashMap.newKeySet();
+	private volatile long _latency, _latencyPerKB;
+	private volatile int _optionsTTL = 3600;
+	private volatile String _extraOptions = "";
+	private volatile boolean _nullBody;
+	private final AtomicInteger _optionsCount = new AtomicInteger();
+	private final AtomicInteger _respmodCount = new AtomicInteger();
+	private final AtomicInteger _previewVerdictCount = new AtomicInteger();
+	private final AtomicInteger _connectionCount = new AtomicInteger();
+
+	public ICAPTestServer(Vendor vendor, int previewSize) throws IOException {
+		this(vendor, previewSize, false);
+	}
+
+	public ICAPTestServer(Vendor vendor, int previewSize, boolean secure) throws IOException {
+		_vendor = vendor;
+		_previewSize = previewSize;
+		_secure = secure;
+		if (secure) {
+			_serverSocket = createSSLContext().getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		} else {
+			_serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		}
+		_executorService.execute(this::accept);
+	}
+
+	private static SSLContext createSSLContext() throws IOException {
+		try (InputStream is = ICAPTestServer.class.getResourceAsStream(KEYSTORE)) {
+			KeyStore keyStore = KeyStore.getInstance("PKCS12");
+			keyStore.load(is, KEYSTORE_PASSWORD.toCharArray());
+			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
+			SSLContext sslContext = SSLContext.getInstance("TLS");
+			sslContext.init(kmf.getKeyManagers(), null, null);
+			return sslContext;
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public int getPort() {
+		return _serverSocket.getLocalPort();
+	}
+
+	public Vendor getVendor() {
+		return _vendor;
+	}
+
+	/**
+	 * In secure mode the keystore of the server is added as trust store.
+	 */
+	public ICAPConnectionData createConnectionData(Properties properties) {
+		String host = _serverSocket.getInetAddress().getHostAddress();
+		if (_secure) {
+			properties = new Properties(properties);
+			try {
+				properties.setProperty("ICAPTrustStore", new File(ICAPTestServer.class.getResource(KEYSTORE).toURI()).getPath());
+			} catch (URISyntaxException e) {
+				throw new IllegalStateException(e);
+			}
+			properties.setProperty("ICAPTrustStorePassword", KEYSTORE_PASSWORD);
+			properties.setProperty("ICAPTrustStoreType", "PKCS12");
+			host = "icaps://" + host;
+		}
+		return new ICAPConnectionData(host, String.valueOf(getPort()), "avscan", properties);
+	}
+
+	/**
+	 * @param latency Delay before each response in milliseconds, simulates the scan time of an appliance.
+	 */
+	public void setLatency(long latency) {
+		_latency = TimeUnit.MILLISECONDS.toNanos(latency);
+	}
+
+	/**
+	 * @param latencyPerKB Microseconds added to the final response per KB of body, like a real scan of a large file.
+	 */
+	public void setLatencyPerKB(long latencyPerKB) {
+		_latencyPerKB = TimeUnit.MICROSECONDS.toNanos(latencyPerKB);
+	}
+
+	public void setOptionsTTL(int optionsTTL) {
+		_optionsTTL = optionsTTL;
+	}
+
+	/**
+	 * @param extraOptions Additional OPTIONS headers, e.g. "Transfer-Ignore: jpg\r\n".
+	 */
+	public void setExtraOptions(String extraOptions) {
+		_extraOptions = extraOptions;
+	}
+
+	/**
+	 * @param nullBody Whether responses carry the HTTP response header only, i.e. "res-hdr=0, null-body=n".
+	 */
+	public void setNullBody(boolean nullBody) {
+		_nullBody = nullBody;
+	}
+
+	public int getOptionsCount() {
+		return _optionsCount.get();
+	}
+
+	public int getRespmodCount() {
+		return _respmodCount.get();
+	}
+
+	/**
+	 * @return Number of verdicts given after the preview without asking for the remainder.
+	 */
+	public int getPreviewVerdictCount() {
+		return _previewVerdictCount.get();
+	}
+
+	public int getConnectionCount() {
+		return _connectionCount.get();
+	}
+
+	private void accept() {
+		while (!_serverSocket.isClosed()) {
+			try {
+				Socket socket = _serverSocket.accept();
+				_connectionCount.incrementAndGet();
+				_sockets.add(socket);
+				_executorService.execute(() -> serve(socket));
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try (Socket s = socket) {
+			s.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			OutputStream out = new BufferedOutputStream(s.getOutputStream());
+			for (String requestLine; (requestLine = readLine(in)) != null;) {
+				Map<String, String> headers = readHeaders(in);
+				if (requestLine.startsWith("OPTIONS ")) {
+					_optionsCount.incrementAndGet();
+					delay();
+					write(out, "ICAP/1.0 200 OK\r\nMethods: RESPMOD\r\nISTag: \"" + ISTAG + "\"\r\nPreview: " + _previewSize + "\r\nAllow: 204\r\nOptions-TTL: " + _optionsTTL
+							+ "\r\n" + _extraOptions + "Encapsulated: null-body=0\r\n\r\n");
+				} else if (requestLine.startsWith("RESPMOD ")) {
+					_respmodCount.incrementAndGet();
+					respmod(in, out, headers);
+				} else {
+					write(out, "ICAP/1.0 405 Method Not Allowed\r\nISTag: \"" + ISTAG + "\"\r\nEncapsulated: null-body=0\r\n\r\n");
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			// client went away
+		} finally {
+			_sockets.remove(socket);
+		}
+	}
+
+	private void respmod(InputStream in, OutputStream out, Map<String, String> headers) throws IOException {
+		String encapsulated = headers.get("Encapsulated");
+		int i = encapsulated.indexOf("res-body=");
+		skip(in, Integer.parseInt(encapsulated.substring(i + 9).trim()));
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		boolean ieof = readChunks(in, body);
+		if (headers.containsKey("Preview") && !ieof) {
+			if (contains(body.toByteArray())) {
+				_previewVerdictCount.incrementAndGet();
+				delay();
+				infected(out);
+				return;
+			}
+			delay();
+			write(out, "ICAP/1.0 100 Continue\r\n\r\n");
+			out.flush();
+			readChunks(in, body);
+		}
+		delay();
+		delay(body.size() / 1024 * _latencyPerKB);
+		if (contains(body.toByteArray())) {
+			infected(out);
+		} else if (_vendor == Vendor.CLAM && _nullBody) {
+			write(out, "ICAP/1.0 200 OK\r\nISTag: \"" + ISTAG + "\"\r\nEncapsulated: res-hdr=0, null-body=" + HTTP_OK.length + "\r\n\r\n");
+			out.write(HTTP_OK);
+		} else if (_vendor == Vendor.CLAM) {
+			echo(out, body.toByteArray());
+		} else {
+			write(out, "ICAP/1.0 204 No Content\r\nISTag: \"" + ISTAG + "\"\r\nEncapsulated: null-body=0\r\n\r\n");
+		}
+	}
+
+	private void infected(OutputStream out) throws IOException {
+		String status, header;
+		switch (_vendor) {
+		case CLAM:
+			status = "200 OK";
+			header = "X-Clam-Virus: yes\r\nX-Virus-ID: Eicar-Signature\r\n";
+			break;
+		case SYMANTEC:
+			status = "201 Created";
+			header = "X-Violations-Found: 1\r\n";
+			break;
+		case TRENDMICRO:
+			status = "200 OK";
+			header = "X-Virus-ID: Eicar_test_file\r\n";
+			break;
+		default:
+			status = "403 Forbidden";
+			header = "X-Infection-Found: Type=0; Resolution=2; Threat=EICAR;\r\nX-Virus-ID: EICAR\r\n";
+			break;
+		}
+		if (_nullBody) {
+			write(out, "ICAP/1.0 " + status + "\r\nISTag: \"" + ISTAG + "\"\r\n" + header + "Encapsulated: res-hdr=0, null-body=" + HTTP_FORBIDDEN.length + "\r\n\r\n");
+			out.write(HTTP_FORBIDDEN);
+			return;
+		}
+		byte[] page = "<html><head><title>Virus found</title></head><body>EICAR</body></html>".getBytes(StandardCharsets.US_ASCII);
+		write(out, "ICAP/1.0 " + status + "\r\nISTag: \"" + ISTAG + "\"\r\n" + header + "Encapsulated: res-hdr=0, res-body=" + HTTP_FORBIDDEN.length + "\r\n\r\n");
+		out.write(HTTP_FORBIDDEN);
+		writeChunk(out, page, 0, page.length);
+		write(out, "0\r\n\r\n");
+	}
+
+	private static void echo(OutputStream out, byte[] body) throws IOException {
+		write(out, "ICAP/1.0 200 OK\r\nISTag: \"" + ISTAG + "\"\r\nEncapsulated: res-hdr=0, res-body=" + HTTP_OK.length + "\r\n\r\n");
+		out.write(HTTP_OK);
+		for (int pos = 0; pos < body.length; pos += ECHO_CHUNK_SIZE) {
+			writeChunk(out, body, pos, Math.min(ECHO_CHUNK_SIZE, body.length - pos));
+		}
+		write(out, "0\r\n\r\n");
+	}
+
+	private static void writeChunk(OutputStream out, byte[] data, int off, int len) throws IOException {
+		write(out, Integer.toHexString(len) + "\r\n");
+		out.write(data, off, len);
+		write(out, "\r\n");
+	}
+
+	private void delay() {
+		delay(_latency);
+	}
+
+	private static void delay(long latency) {
+		if (latency > 0L) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static boolean contains(byte[] data) {
+		outer: for (int i = 0; i <= data.length - SIGNATURE_BYTES.length; ++i) {
+			for (int j = 0; j < SIGNATURE_BYTES.length; ++j) {
+				if (data[i + j] != SIGNATURE_BYTES[j]) {
+					continue outer;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Whether the last chunk carried the ieof extension.
+	 */
+	private static boolean readChunks(InputStream in, ByteArrayOutputStream body) throws IOException {
+		for (;;) {
+			String line = readLine(in);
+			if (line == null) {
+				throw new EOFException();
+			}
+			int i = line.indexOf(';');
+			int size = Integer.parseInt((i >= 0 ? line.substring(0, i) : line).trim(), 16);
+			if (size == 0) {
+				// empty trailer
+				readLine(in);
+				return i >= 0 && line.indexOf("ieof", i) > 0;
+			}
+			byte[] chunk = new byte[size];
+			for (int pos = 0, len; pos < size; pos += len) {
+				if ((len = in.read(chunk, pos, size - pos)) < 0) {
+					throw new EOFException();
+				}
+			}
+			body.write(chunk);
+			readLine(in);
+		}
+	}
+
+	private static Map<String, String> readHeaders(InputStream in) throws IOException {
+		Map<String, String> headers = new HashMap<>();
+		for (String line; (line = readLine(in)) != null && !line.isEmpty();) {
+			int i = line.indexOf(':');
+			headers.put(line.substring(0, i), line.substring(i + 1).trim());
+		}
+		return headers;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (int c; (c = in.read()) != '\n';) {
+			if (c < 0) {
+				return line.length() > 0 ? line.toString() : null;
+			}
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return line.toString();
+	}
+
+	private static void skip(InputStream in, int n) throws IOException {
+		for (int i = 0; i < n; ++i) {
+			if (in.read() < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private static void write(OutputStream out, String s) throws IOException {
+		out.write(s.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Override
+	public void close() throws IOException {
+		_serverSocket.close();
+		for (Socket socket : _sockets) {
+			socket.close();
+		}
+		_executorService.shutdownNow();
+	}
+
+}
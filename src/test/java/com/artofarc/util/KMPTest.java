@@ -0,0 +1,326 @@
+package com.artofarc.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class KMPTest {
+
+	/**
+	 * Returns at most max bytes per read like a socket does.
+	 */
+	static InputStream trickle(byte[] content, int max) {
+		return new FilterInputStream(new ByteArrayInputStream(content)) {
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, max));
+			}
+		};
+	}
+
+	static byte[] randomContent(int size, String alphabet, long seed) {
+		Random random = new Random(seed);
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; ++i) {
+			content[i] = (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+		}
+		return content;
+	}
+
+	static List<Long> naiveIndexOf(byte[] content, byte[] pattern) {
+		List<Long> result = new ArrayList<>();
+		outer: for (int i = 0; i + pattern.length <= content.length; ++i) {
+			for (int j = 0; j < pattern.length; ++j) {
+				if (content[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			result.add((long) i);
+		}
+		return result;
+	}
+
+	@Test
+	public void testReadStopsAtMatch() throws IOException {
+		byte[] content = "ICAP/1.0 200 OK\r\nISTag: x\r\n\r\nbody\r\n\r\nrest".getBytes(StandardCharsets.US_ASCII);
+		for (int max = 1; max <= content.length; ++max) {
+			KMPInputStream in = new KMPInputStream(trickle(content, max));
+			in.setPattern(new KMPInputStream.Pattern("\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+			byte[] buffer = new byte[100];
+			assertEquals(29, in.read(buffer));
+			assertEquals(25, in.indexOf());
+			assertEquals(8, in.read(buffer));
+			assertEquals(33, in.indexOf());
+			assertEquals(4, in.read(buffer));
+			assertEquals(-1, in.indexOf());
+			assertEquals("rest", new String(buffer, 0, 4, StandardCharsets.US_ASCII));
+			assertEquals(-1, in.read(buffer));
+		}
+	}
+
+	@Test
+	public void testAllMatches() throws IOException {
+		byte[] content = randomContent(100000, "ab", 1L);
+		byte[] pattern = "abaab".getBytes(StandardCharsets.US_ASCII);
+		List<Long> expected = naiveIndexOf(content, pattern);
+		for (int max : new int[] { 1, 7, 8192 }) {
+			KMPInputStream in = new KMPInputStream(trickle(content, max));
+			in.setPattern(new KMPInputStream.Pattern(pattern));
+			List<Long> matches = new ArrayList<>();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[333];
+			for (int len; (len = in.read(buffer)) >= 0;) {
+				out.write(buffer, 0, len);
+				if (in.indexOf() >= 0) {
+					matches.add(in.indexOf());
+				}
+			}
+			assertArrayEquals(content, out.toByteArray());
+			// overlapping matches are found as well
+			assertEquals(expected, matches);
+		}
+	}
+
+	@Test
+	public void testSkip() throws IOException {
+		byte[] content = randomContent(50000, "abc", 2L);
+		byte[] pattern = "cabc".getBytes(StandardCharsets.US_ASCII);
+		List<Long> expected = naiveIndexOf(content, pattern);
+		KMPInputStream in = new KMPInputStream(trickle(content, 1000));
+		in.setPattern(new KMPInputStream.Pattern(pattern));
+		List<Long> matches = new ArrayList<>();
+		while (in.skip(Long.MAX_VALUE) > 0) {
+			if (in.indexOf() >= 0) {
+				matches.add(in.indexOf());
+			}
+		}
+		assertEquals(expected, matches);
+		assertEquals(content.length, in.position());
+		// skip without pattern consumes the pushback first
+		in = new KMPInputStream(new ByteArrayInputStream(content));
+		in.setPattern(new KMPInputStream.Pattern(pattern));
+		assertTrue(in.read(new byte[content.length]) < content.length);
+		long position = in.position();
+		in.setPattern(null);
+		assertEquals(10, in.skip(10));
+		assertEquals(content[(int) position + 10], (byte) in.read());
+	}
+
+	@Test
+	public void testMarkReset() throws IOException {
+		byte[] content = "aaa|bbb|ccc".getBytes(StandardCharsets.US_ASCII);
+		KMPInputStream in = new KMPInputStream(new ByteArrayInputStream(content));
+		in.setPattern(new KMPInputStream.Pattern(new byte[] { '|' }));
+		byte[] buffer = new byte[20];
+		assertEquals(4, in.read(buffer));
+		in.mark(20);
+		assertEquals(4, in.read(buffer));
+		assertEquals(3, in.read(buffer));
+		in.reset();
+		assertEquals(4, in.position());
+		assertEquals(4, in.read(buffer));
+		assertEquals("bbb|", new String(buffer, 0, 4, StandardCharsets.US_ASCII));
+	}
+
+	@Test(expected = IOException.class)
+	public void testIOExceptionPropagates() throws IOException {
+		KMPInputStream in = new KMPInputStream(new InputStream() {
+			int count;
+
+			@Override
+			public int read() throws IOException {
+				if (++count > 10) {
+					throw new IOException("broken");
+				}
+				return 'a';
+			}
+		});
+		in.setPattern(new KMPInputStream.Pattern(new byte[] { 'b' }));
+		in.read(new byte[100]);
+	}
+
+	@Test
+	public void testReader() throws IOException {
+		String content = new String(randomContent(100000, "ab\n", 3L), StandardCharsets.US_ASCII);
+		String pattern = "\nab\n";
+		KMPReader reader = new KMPReader(new StringReader(content));
+		reader.setPattern(new KMPReader.Pattern(pattern));
+		StringBuilder result = new StringBuilder();
+		List<Long> matches = new ArrayList<>();
+		char[] buffer = new char[777];
+		for (int len; (len = reader.read(buffer)) >= 0;) {
+			result.append(buffer, 0, len);
+			if (reader.indexOf() >= 0) {
+				matches.add(reader.indexOf());
+			}
+		}
+		assertEquals(content, result.toString());
+		assertEquals(naiveIndexOf(content.getBytes(StandardCharsets.US_ASCII), pattern.getBytes(StandardCharsets.US_ASCII)), matches);
+	}
+
+	@Test
+	public void testReaderTransferTo() throws IOException {
+		KMPReader reader = new KMPReader(new StringReader("first;second;third"));
+		reader.setPattern(new KMPReader.Pattern(";"));
+		StringWriter writer = new StringWriter();
+		assertEquals(6, reader.transferTo(writer));
+		assertEquals("first;", writer.toString());
+		CharBuffer direct = CharBuffer.allocate(20);
+		assertEquals(7, reader.read(direct));
+		assertEquals("second;", direct.flip().toString());
+		assertEquals(5, reader.skip(100));
+		assertEquals(-1, reader.read());
+	}
+
+	@Test
+	public void testAhoCorasick() throws IOException {
+		byte[] content = randomContent(100000, "abcd", 4L);
+		String[] patterns = { "abc", "bca", "dd", "cabcd", "c" };
+		byte[][] bytes = new byte[patterns.length][];
+		// expected: at each end position the longest pattern ending there
+		int[] expected = new int[content.length + 1];
+		Arrays.fill(expected, -1);
+		for (int i = 0; i < patterns.length; ++i) {
+			bytes[i] = patterns[i].getBytes(StandardCharsets.US_ASCII);
+			for (long index : naiveIndexOf(content, bytes[i])) {
+				int end = (int) index + bytes[i].length;
+				if (expected[end] < 0 || bytes[expected[end]].length < bytes[i].length) {
+					expected[end] = i;
+				}
+			}
+		}
+		AhoCorasickInputStream in = new AhoCorasickInputStream(trickle(content, 1000), new AhoCorasickInputStream.Patterns(bytes));
+		AhoCorasickReader reader = new AhoCorasickReader(new StringReader(new String(content, StandardCharsets.US_ASCII)), new AhoCorasickReader.Patterns(patterns));
+		byte[] buffer = new byte[500];
+		char[] cbuf = new char[500];
+		int matches = 0;
+		for (int len; (len = in.read(buffer)) >= 0;) {
+			assertEquals(len, reader.read(cbuf));
+			int end = (int) in.position();
+			assertEquals(expected[end], in.getMatch());
+			assertEquals(expected[end], reader.getMatch());
+			if (in.getMatch() >= 0) {
+				assertEquals(end - bytes[in.getMatch()].length, in.indexOf());
+				++matches;
+			}
+		}
+		assertEquals(content.length, in.position());
+		int total = 0;
+		for (int i : expected) {
+			if (i >= 0) {
+				++total;
+			}
+		}
+		assertEquals(total, matches);
+	}
+
+	@Test
+	public void testAhoCorasickReaderNonLatin() throws IOException {
+		AhoCorasickReader reader = new AhoCorasickReader(new StringReader("Stra\u00dfe \u20ac 10 and \u20ac20"), new AhoCorasickReader.Patterns("\u20ac", "\u00dfe"));
+		assertEquals(6, reader.skip(100));
+		assertEquals(1, reader.getMatch());
+		assertEquals(4, reader.indexOf());
+		assertEquals(2, reader.skip(100));
+		assertEquals(0, reader.getMatch());
+		assertEquals(7, reader.indexOf());
+		assertEquals(9, reader.read(new char[100]));
+		assertEquals(0, reader.getMatch());
+	}
+
+	@Test
+	public void testSearchStrategies() throws IOException {
+		String[] patterns = { "a", "ab", "aab", "abaabaab", "aaaaaaaab", "abababababababababababababababababababc", "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbba",
+				"abcabcabcabcabcabcabcabcabcabcabcabcabcab", "cababcabababcababcabcababcabababcababcabcababcabababcabababcababcabcababcabababcababcab" };
+		for (String alphabet : new String[] { "ab", "abc" }) {
+			byte[] content = randomContent(20000, alphabet, alphabet.length());
+			// plant some occurrences of the long patterns
+			for (int i = 0; i < patterns.length; ++i) {
+				System.arraycopy(patterns[i].getBytes(StandardCharsets.US_ASCII), 0, content, 1000 + i * 2000, patterns[i].length());
+			}
+			for (String p : patterns) {
+				byte[] pattern = p.getBytes(StandardCharsets.US_ASCII);
+				List<Long> expected = naiveIndexOf(content, pattern);
+				for (PatternSearch.Algorithm algorithm : PatternSearch.Algorithm.values()) {
+					PatternSearch search = PatternSearch.create(pattern, algorithm);
+					List<Long> matches = new ArrayList<>();
+					for (int i = 0; (i = search.indexOf(content, i, content.length)) >= 0; ++i) {
+						matches.add((long) i);
+					}
+					assertEquals(p + " " + algorithm, expected, matches);
+					for (int max : new int[] { 1, 5, 4096 }) {
+						KMPInputStream in = new KMPInputStream(trickle(content, max));
+						in.setPattern(new KMPInputStream.Pattern(pattern, algorithm));
+						matches.clear();
+						byte[] buffer = new byte[1000];
+						for (int len; (len = in.read(buffer)) >= 0;) {
+							if (in.indexOf() >= 0) {
+								matches.add(in.indexOf());
+							}
+							// mix in single byte reads
+							if (in.read() >= 0 && in.indexOf() >= 0) {
+								matches.add(in.indexOf());
+							}
+						}
+						assertEquals(p + " " + algorithm + " " + max, expected, matches);
+					}
+				}
+			}
+		}
+	}
+
+	private static long[] toArray(List<Long> list) {
+		long[] result = new long[list.size()];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+
+	@Test
+	public void testMappedPatternSearch() throws IOException {
+		byte[] content = randomContent(300000, "ab\n", 5L);
+		File file = File.createTempFile("records", ".txt");
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			Files.write(file.toPath(), content);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				for (String p : new String[] { "\n", "a\nb", "\nab\na", "abababababababababababababababab\n" }) {
+					byte[] pattern = p.getBytes(StandardCharsets.US_ASCII);
+					long[] expected = toArray(naiveIndexOf(content, pattern));
+					for (PatternSearch.Algorithm algorithm : PatternSearch.Algorithm.values()) {
+						KMPInputStream.Pattern kmp = new KMPInputStream.Pattern(pattern, algorithm);
+						// small segments, many matches span a boundary
+						assertTrue(p, Arrays.equals(expected, MappedPatternSearch.indexOf(channel, kmp, pool, 1000)));
+						assertTrue(p, Arrays.equals(expected, MappedPatternSearch.indexOf(ByteBuffer.wrap(content), kmp, pool, 777)));
+					}
+					assertTrue(p, Arrays.equals(expected, MappedPatternSearch.indexOf(channel, new KMPInputStream.Pattern(pattern))));
+				}
+			}
+		} finally {
+			pool.shutdown();
+			file.delete();
+		}
+	}
+
+}
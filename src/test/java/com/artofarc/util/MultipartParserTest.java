@@ -0,0 +1,87 @@
+package com.artofarc.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class MultipartParserTest {
+
+	private static final String CONTENT_TYPE = "multipart/related; type=\"application/xop+xml\"; boundary=\"uuid:0ca0e16e-feb1-426c-97d8-c4508ada5e82\"; start=\"<root.message@cxf.apache.org>\"; start-info=\"text/xml\"";
+
+	private static String multipart(String attachment) {
+		return "preamble\r\n--uuid:0ca0e16e-feb1-426c-97d8-c4508ada5e82\r\n"
+				+ "Content-Type: application/octet-stream\r\nContent-Transfer-Encoding: binary\r\nContent-ID: <attachment>\r\n\r\n" + attachment
+				+ "\r\n--uuid:0ca0e16e-feb1-426c-97d8-c4508ada5e82  \r\n"
+				+ "Content-Type: application/xop+xml;\r\n charset=UTF-8; type=\"text/xml\"\r\nContent-Transfer-Encoding: 8bit\r\nContent-ID: <root.message@cxf.apache.org>\r\n\r\n"
+				+ "<soap:Envelope/>\r\n--uuid:0ca0e16e-feb1-426c-97d8-c4508ada5e82--\r\nepilogue";
+	}
+
+	private static String toString(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[7];
+		for (int len; (len = in.read(buffer)) >= 0;) {
+			out.write(buffer, 0, len);
+		}
+		return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	@Test
+	public void testGetParameter() {
+		assertEquals("uuid:0ca0e16e-feb1-426c-97d8-c4508ada5e82", MultipartParser.getParameter(CONTENT_TYPE, "boundary"));
+		assertEquals("<root.message@cxf.apache.org>", MultipartParser.getParameter(CONTENT_TYPE, "start"));
+		assertEquals("text/xml", MultipartParser.getParameter(CONTENT_TYPE, "start-info"));
+		assertEquals("UTF-8", MultipartParser.getParameter("text/xml; charset=UTF-8", "CHARSET"));
+		assertNull(MultipartParser.getParameter("text/xml", "charset"));
+	}
+
+	@Test
+	public void testParts() throws IOException {
+		// the attachment contains partial delimiters and is larger than the buffer
+		StringBuilder attachment = new StringBuilder();
+		for (int i = 0; attachment.length() < 200000; ++i) {
+			attachment.append("\r\n--uuid:0ca0e16e-feb1-426c-97d8-c4508ada5e8").append(i % 10 == 2 ? '3' : 'x').append(i);
+		}
+		String content = multipart(attachment.toString());
+		MultipartParser parser = new MultipartParser(KMPTest.trickle(content.getBytes(StandardCharsets.ISO_8859_1), 1000), CONTENT_TYPE);
+		MultipartParser.Part part = parser.next();
+		assertEquals("<attachment>", part.getContentID());
+		assertEquals(attachment.toString(), toString(part.getInputStream()));
+		part = parser.next();
+		assertEquals("application/xop+xml; charset=UTF-8; type=\"text/xml\"", part.getContentType());
+		assertEquals("<soap:Envelope/>", toString(part.getInputStream()));
+		assertNull(parser.next());
+		assertNull(parser.next());
+	}
+
+	@Test
+	public void testFindStart() throws IOException {
+		String content = multipart("skipped without being read");
+		MultipartParser parser = new MultipartParser(new ByteArrayInputStream(content.getBytes(StandardCharsets.ISO_8859_1)), CONTENT_TYPE);
+		MultipartParser.Part part = parser.find(MultipartParser.getParameter(CONTENT_TYPE, "start"));
+		assertEquals("<soap:Envelope/>", toString(part.getInputStream()));
+		parser = new MultipartParser(new ByteArrayInputStream(content.getBytes(StandardCharsets.ISO_8859_1)), CONTENT_TYPE);
+		assertNull(parser.find("unknown"));
+	}
+
+	@Test
+	public void testTransferEncodings() throws IOException {
+		String content = "--b\r\nContent-Transfer-Encoding: base64\r\n\r\nSGVsbG8g\r\nV29ybGQ=\r\n--b\r\nContent-Transfer-Encoding: quoted-printable\r\n\r\nK=C3=B6ln =\r\nist sch=C3=B6n\r\n--b--";
+		MultipartParser parser = new MultipartParser(new ByteArrayInputStream(content.getBytes(StandardCharsets.ISO_8859_1)), "multipart/mixed; boundary=b");
+		assertEquals("Hello World", toString(parser.next().getInputStream()));
+		assertEquals("K\u00f6ln ist sch\u00f6n", new String(toString(parser.next().getInputStream()).getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8));
+		assertNull(parser.next());
+	}
+
+	@Test(expected = IOException.class)
+	public void testMissingClosingDelimiter() throws IOException {
+		MultipartParser parser = new MultipartParser(new ByteArrayInputStream("--b\r\n\r\nunterminated".getBytes(StandardCharsets.ISO_8859_1)), "multipart/mixed; boundary=b");
+		toString(parser.next().getInputStream());
+	}
+
+}
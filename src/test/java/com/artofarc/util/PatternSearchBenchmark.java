@@ -0,0 +1,98 @@
+package com.artofarc.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the {@link PatternSearch} algorithms on text resembling a multipart body, the pattern is a MIME boundary
+ * of the given length which occurs every 64 KB. Throughput is reported in bytes searched per microsecond by dividing
+ * the score by the payload size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatternSearchBenchmark {
+
+	@Param({ "4", "16", "70" })
+	public int patternLength;
+
+	@Param({ "4096", "1048576" })
+	public int payloadSize;
+
+	@Param({ "KMP", "HORSPOOL", "TWO_WAY" })
+	public PatternSearch.Algorithm algorithm;
+
+	private byte[] _payload;
+	private KMPInputStream.Pattern _pattern;
+	private PatternSearch _search;
+	private final byte[] _buffer = new byte[8192];
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(1L);
+		StringBuilder boundary = new StringBuilder("\r\n--");
+		while (boundary.length() < patternLength) {
+			boundary.append((char) ('a' + random.nextInt(26)));
+		}
+		byte[] pattern = boundary.substring(0, patternLength).getBytes(StandardCharsets.US_ASCII);
+		_payload = new byte[payloadSize];
+		for (int i = 0; i < payloadSize; ++i) {
+			// base64 like content with line breaks
+			_payload[i] = i % 77 == 76 ? (byte) '\n' : (byte) ('A' + random.nextInt(58));
+		}
+		for (int i = 65536; i + pattern.length < payloadSize; i += 65536) {
+			System.arraycopy(pattern, 0, _payload, i, pattern.length);
+		}
+		_pattern = new KMPInputStream.Pattern(pattern, algorithm);
+		_search = _pattern.search();
+	}
+
+	@Benchmark
+	public int searchArray() {
+		int count = 0;
+		for (int i = 0; (i = _search.indexOf(_payload, i, _payload.length)) >= 0; i += _pattern.length()) {
+			++count;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int searchStream() throws IOException {
+		KMPInputStream in = new KMPInputStream(new ByteArrayInputStream(_payload));
+		in.setPattern(_pattern);
+		int count = 0;
+		while (in.read(_buffer) >= 0) {
+			if (in.indexOf() >= 0) {
+				++count;
+			}
+		}
+		return count;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(PatternSearchBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
@@ -0,0 +1,128 @@
+package com.artofarc.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class RecordSplitterTest {
+
+	private static final KMPInputStream.Pattern CRLF = new KMPInputStream.Pattern("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+
+	private static String toString(InputStream in) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[5];
+			for (int len; (len = in.read(buffer)) >= 0;) {
+				out.write(buffer, 0, len);
+			}
+			return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static String toString(Reader in) {
+		try {
+			StringBuilder sb = new StringBuilder();
+			char[] buffer = new char[5];
+			for (int len; (len = in.read(buffer)) >= 0;) {
+				sb.append(buffer, 0, len);
+			}
+			return sb.toString();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static List<String> split(String content, KMPInputStream.Pattern delimiter) {
+		List<String> result = new ArrayList<>();
+		RecordSplitter splitter = new RecordSplitter(new ByteArrayInputStream(content.getBytes(StandardCharsets.ISO_8859_1)), delimiter);
+		while (splitter.hasNext()) {
+			result.add(toString(splitter.next()));
+		}
+		return result;
+	}
+
+	@Test
+	public void testSplit() {
+		assertEquals(0, split("", CRLF).size());
+		assertEquals("[a]", split("a", CRLF).toString());
+		assertEquals("[a]", split("a\r\n", CRLF).toString());
+		assertEquals("[, a, , b\r, \nc]", split("\r\na\r\n\r\nb\r\r\n\nc", CRLF).toString());
+	}
+
+	@Test
+	public void testLargeRecordsAndPartialReads() throws IOException {
+		KMPInputStream.Pattern delimiter = new KMPInputStream.Pattern("<<RECORD-SEPARATOR-WITH-SOME-LENGTH>>".getBytes(StandardCharsets.ISO_8859_1), PatternSearch.Algorithm.AUTO);
+		StringBuilder content = new StringBuilder();
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 20; ++i) {
+			StringBuilder record = new StringBuilder();
+			for (int j = 0; j < i * i * 100; ++j) {
+				record.append(j % 7 == 0 ? "<<RECORD-SEPARATOR" : "x");
+			}
+			expected.add(record.toString());
+			content.append(record).append("<<RECORD-SEPARATOR-WITH-SOME-LENGTH>>");
+		}
+		byte[] bytes = content.toString().getBytes(StandardCharsets.ISO_8859_1);
+		try (RecordSplitter splitter = new RecordSplitter(KMPTest.trickle(bytes, 999), delimiter)) {
+			for (int i = 0; i < 20; ++i) {
+				InputStream record = splitter.next();
+				if (i % 2 == 0) {
+					assertEquals(expected.get(i), toString(record));
+					assertEquals(-1, record.read());
+				} else if (i > 0) {
+					// rest is skipped
+					assertEquals('<', record.read());
+				}
+			}
+			assertFalse(splitter.hasNext());
+			assertEquals(20, splitter.getCount());
+		}
+	}
+
+	@Test
+	public void testParallel() {
+		StringBuilder content = new StringBuilder();
+		long sum = 0;
+		for (int i = 0; i < 100000; ++i) {
+			content.append(i).append('\n');
+			sum += i;
+		}
+		KMPInputStream.Pattern lf = new KMPInputStream.Pattern(new byte[] { '\n' });
+		byte[] bytes = content.toString().getBytes(StandardCharsets.ISO_8859_1);
+		RecordSplitter splitter = new RecordSplitter(new ByteArrayInputStream(bytes), lf, 4096);
+		assertEquals(sum, splitter.stream(true).mapToLong(record -> Long.parseLong(toString(record))).sum());
+		assertEquals(100000, splitter.getCount());
+		splitter = new RecordSplitter(new ByteArrayInputStream(bytes), lf, 4096);
+		List<String> ordered = splitter.stream(true).map(RecordSplitterTest::toString).collect(Collectors.toList());
+		for (int i = 0; i < ordered.size(); ++i) {
+			assertEquals(Integer.toString(i), ordered.get(i));
+		}
+		splitter = new RecordSplitter(new ByteArrayInputStream(bytes), lf, 0);
+		assertNull(splitter.trySplit());
+		assertEquals(100000, splitter.stream(true).count());
+	}
+
+	@Test
+	public void testReader() {
+		KMPReader.Pattern delimiter = new KMPReader.Pattern(" ");
+		RecordReaderSplitter splitter = new RecordReaderSplitter(new StringReader("K\u00f6ln  Z\u00fcrich "), delimiter);
+		assertEquals("[K\u00f6ln, , Z\u00fcrich]", splitter.stream(false).map(RecordSplitterTest::toString).collect(Collectors.toList()).toString());
+		splitter = new RecordReaderSplitter(new StringReader("a b c"), delimiter, 1);
+		assertEquals("[a, b, c]", splitter.stream(true).map(RecordSplitterTest::toString).collect(Collectors.toList()).toString());
+	}
+
+}
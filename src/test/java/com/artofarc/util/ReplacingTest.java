@@ -0,0 +1,114 @@
+package com.artofarc.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReplacingTest {
+
+	private static String toString(InputStream in, int chunk) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[chunk];
+		for (int len; (len = in.read(buffer)) >= 0;) {
+			out.write(buffer, 0, len);
+		}
+		return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	private static String toString(Reader in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int c; (c = in.read()) >= 0;) {
+			sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Matches are replaced as soon as they end, the longest of those ending at the same position.
+	 */
+	private static String replaceNaive(String s, String[] patterns, String[] replacements) {
+		StringBuilder sb = new StringBuilder();
+		int start = 0;
+		for (int end = 1; end <= s.length(); ++end) {
+			int best = -1;
+			for (int i = 0; i < patterns.length; ++i) {
+				int from = end - patterns[i].length();
+				if (from >= start && s.startsWith(patterns[i], from) && (best < 0 || patterns[i].length() > patterns[best].length())) {
+					best = i;
+				}
+			}
+			if (best >= 0) {
+				sb.append(s, start, end - patterns[best].length()).append(replacements[best]);
+				start = end;
+			}
+		}
+		return sb.append(s, start, s.length()).toString();
+	}
+
+	@Test
+	public void testReplace() throws IOException {
+		String content = "<ns:a xmlns:ns=\"http://old.example.com/ns\">http://old.example.com/nsx</ns:a>";
+		ReplacingInputStream in = new ReplacingInputStream(new ByteArrayInputStream(bytes(content)), bytes("http://old.example.com/ns"), bytes("urn:new"));
+		assertEquals("<ns:a xmlns:ns=\"urn:new\">urn:newx</ns:a>", toString(in, 3));
+		assertEquals(2, in.getCount());
+		AhoCorasickInputStream.Patterns patterns = new AhoCorasickInputStream.Patterns(bytes("secret"), bytes("sec"), bytes("host"));
+		in = new ReplacingInputStream(new ByteArrayInputStream(bytes("secsecsecrethost.ho")), patterns, bytes("******"), bytes(""), bytes("localhost"));
+		assertEquals(replaceNaive("secsecsecrethost.ho", new String[] { "secret", "sec", "host" }, new String[] { "******", "", "localhost" }), toString(in, 100));
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testRandom() throws IOException {
+		Random random = new Random(42);
+		for (int round = 0; round < 2000; ++round) {
+			String[] patterns = new String[1 + random.nextInt(4)];
+			String[] replacements = new String[patterns.length];
+			byte[][] bytePatterns = new byte[patterns.length][];
+			byte[][] byteReplacements = new byte[patterns.length][];
+			for (int i = 0; i < patterns.length; ++i) {
+				patterns[i] = randomString(random, 1 + random.nextInt(5), 3);
+				replacements[i] = randomString(random, random.nextInt(6), 26);
+				bytePatterns[i] = bytes(patterns[i]);
+				byteReplacements[i] = bytes(replacements[i]);
+			}
+			String content = randomString(random, random.nextInt(20000), 3);
+			String expected = replaceNaive(content, patterns, replacements);
+			InputStream in = new ReplacingInputStream(KMPTest.trickle(bytes(content), 1 + random.nextInt(100)), new AhoCorasickInputStream.Patterns(bytePatterns), byteReplacements);
+			assertEquals(expected, toString(in, 1 + random.nextInt(50)));
+			Reader reader = new ReplacingReader(new StringReader(content), new AhoCorasickReader.Patterns(patterns), replacements);
+			assertEquals(expected, toString(reader));
+		}
+	}
+
+	private static String randomString(Random random, int length, int alphabet) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; ++i) {
+			sb.append((char) ('a' + random.nextInt(alphabet)));
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testReader() throws IOException {
+		ReplacingReader reader = new ReplacingReader(new StringReader("{\"token\":\"abc\u20ac\",\"token2\":\"\u20ac\"}"), "\u20ac", "EUR");
+		char[] cbuf = new char[64];
+		int n = reader.read(cbuf, 0, cbuf.length);
+		assertEquals("{\"token\":\"abcEUR\",\"token2\":\"EUR\"}", new String(cbuf, 0, n));
+		assertEquals(-1, reader.read(cbuf, 0, cbuf.length));
+		assertEquals(2, reader.getCount());
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.artofarc.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class SpillOutputStreamTest {
+
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; ++i) {
+			content[i] = (byte) i;
+		}
+		return content;
+	}
+
+	private static byte[] toByteArray(ByteBuffer byteBuffer) {
+		byte[] result = new byte[byteBuffer.remaining()];
+		byteBuffer.duplicate().get(result);
+		return result;
+	}
+
+	@Test
+	public void testInMemory() throws IOException {
+		byte[] content = content(1000);
+		SpillOutputStream spill = new SpillOutputStream(1024);
+		spill.write(content);
+		assertFalse(spill.isSpilled());
+		assertArrayEquals(content, spill.toByteArray());
+		spill = new SpillOutputStream(1024);
+		spill.write(content);
+		assertArrayEquals(content, toByteArray(spill.getByteBuffer()));
+	}
+
+	@Test
+	public void testSpilled() throws IOException {
+		byte[] content = content(5000);
+		SpillOutputStream spill = new SpillOutputStream(1024);
+		spill.write(content, 0, 1000);
+		spill.write(content, 1000, 4000);
+		assertTrue(spill.isSpilled());
+		assertArrayEquals(content, toByteArray(spill.getByteBuffer()));
+		spill = new SpillOutputStream(1024);
+		spill.write(content);
+		try (InputStream inputStream = spill.getInputStream()) {
+			assertArrayEquals(content, IOUtils.copy(inputStream));
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testToByteArraySpilled() throws IOException {
+		SpillOutputStream spill = new SpillOutputStream(10);
+		spill.write(content(11));
+		try {
+			spill.toByteArray();
+		} finally {
+			spill.discard();
+		}
+	}
+
+	@Test
+	public void testTee() throws IOException {
+		byte[] content = content(5000);
+		SpillOutputStream spill = new SpillOutputStream(1024);
+		TeeInputStream inputStream = new TeeInputStream(new ByteArrayInputStream(content), spill);
+		assertEquals(0, inputStream.skip(-1));
+		assertEquals(0, inputStream.skip(0));
+		assertEquals(100, inputStream.skip(100));
+		assertEquals(100, inputStream.read());
+		inputStream.drain();
+		assertArrayEquals(content, toByteArray(spill.getByteBuffer()));
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.artofarc.util;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link UUID#randomUUID()} with {@link UUIDUtil#randomUUIDv7()} under contention and the padded Base64
+ * codec with the URL safe one writing into reused buffers. Run with the GC profiler to see the allocation per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UUIDBenchmark {
+
+	private final UUID _uuid = UUID.randomUUID();
+	private final String _base64 = UUIDUtil.toBase64(_uuid);
+	private final String _base64Url = UUIDUtil.toBase64Url(_uuid);
+	private final char[] _chars = new char[UUIDUtil.BASE64_URL_LENGTH];
+	private final StringBuilder _sb = new StringBuilder(64);
+	private final ByteBuffer _buffer = ByteBuffer.allocate(UUIDUtil.BASE64_URL_LENGTH);
+
+	@Benchmark
+	@Threads(4)
+	public UUID randomUUID() {
+		return UUID.randomUUID();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public UUID randomUUIDv7() {
+		return UUIDUtil.randomUUIDv7();
+	}
+
+	@Benchmark
+	public String toBase64() {
+		return UUIDUtil.toBase64(_uuid);
+	}
+
+	@Benchmark
+	public char[] toBase64UrlChars() {
+		UUIDUtil.toBase64Url(_uuid, _chars, 0);
+		return _chars;
+	}
+
+	@Benchmark
+	public StringBuilder appendBase64Url() {
+		_sb.setLength(0);
+		return UUIDUtil.appendBase64Url(_uuid, _sb);
+	}
+
+	@Benchmark
+	public ByteBuffer toBase64UrlBuffer() {
+		_buffer.clear();
+		UUIDUtil.toBase64Url(_uuid, _buffer);
+		return _buffer;
+	}
+
+	@Benchmark
+	public UUID fromBase64() {
+		return UUIDUtil.fromBase64(_base64);
+	}
+
+	@Benchmark
+	public UUID fromBase64Url() {
+		return UUIDUtil.fromBase64Url(_base64Url);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(UUIDBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+	}
+
+}
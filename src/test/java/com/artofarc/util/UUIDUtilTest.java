@@ -0,0 +1,81 @@
+package com.artofarc.util;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Test;
+
+public class UUIDUtilTest {
+
+	private static String toBase64UrlReference(UUID uuid) {
+		ByteBuffer bb = ByteBuffer.allocate(16);
+		bb.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bb.array());
+	}
+
+	@Test
+	public void testBase64() {
+		UUID uuid = UUID.randomUUID();
+		String base64 = UUIDUtil.toBase64(uuid);
+		assertEquals(24, base64.length());
+		assertEquals(uuid, UUIDUtil.fromBase64(base64));
+	}
+
+	@Test
+	public void testBase64Url() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		char[] cbuf = new char[UUIDUtil.BASE64_URL_LENGTH + 2];
+		StringBuilder sb = new StringBuilder();
+		ByteBuffer bb = ByteBuffer.allocate(UUIDUtil.BASE64_URL_LENGTH);
+		for (int i = 0; i < 10000; ++i) {
+			UUID uuid = i == 0 ? new UUID(-1L, -1L) : i == 1 ? new UUID(0L, 0L) : new UUID(random.nextLong(), random.nextLong());
+			String expected = toBase64UrlReference(uuid);
+			assertEquals(expected, UUIDUtil.toBase64Url(uuid));
+			UUIDUtil.toBase64Url(uuid, cbuf, 1);
+			assertEquals(expected, new String(cbuf, 1, UUIDUtil.BASE64_URL_LENGTH));
+			sb.setLength(0);
+			sb.append('x');
+			assertEquals('x' + expected, UUIDUtil.appendBase64Url(uuid, sb).toString());
+			bb.clear();
+			UUIDUtil.toBase64Url(uuid, bb);
+			assertEquals(expected, new String(bb.array(), StandardCharsets.US_ASCII));
+			assertEquals(uuid, UUIDUtil.fromBase64Url(expected));
+			assertEquals(uuid, UUIDUtil.fromBase64Url(" " + expected, 1));
+			bb.flip();
+			assertEquals(uuid, UUIDUtil.fromBase64Url(bb));
+			assertFalse(bb.hasRemaining());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBase64UrlIllegalChar() {
+		UUIDUtil.fromBase64Url("AAAAAAAAAAAAAAAAAAAA+A");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBase64UrlNonCanonical() {
+		UUIDUtil.fromBase64Url("AAAAAAAAAAAAAAAAAAAAAB");
+	}
+
+	@Test
+	public void testUUIDv7() {
+		long before = System.currentTimeMillis();
+		UUID last = UUIDUtil.randomUUIDv7();
+		assertEquals(7, last.version());
+		assertEquals(2, last.variant());
+		assertTrue(UUIDUtil.getTimestamp(last) >= before);
+		for (int i = 0; i < 100000; ++i) {
+			UUID uuid = UUIDUtil.randomUUIDv7();
+			// unsigned comparison, the timestamp may use the sign bit in the far future
+			assertTrue(Long.compareUnsigned(uuid.getMostSignificantBits(), last.getMostSignificantBits()) > 0);
+			last = uuid;
+		}
+		assertTrue(UUIDUtil.getTimestamp(last) <= System.currentTimeMillis() + 100);
+	}
+
+}